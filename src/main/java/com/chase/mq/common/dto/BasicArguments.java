@@ -17,8 +17,9 @@ public class BasicArguments implements Serializable {
 
     /**
      * 表示一次请求/响应的身份标识，可以把请求和响应对上
+     * 由客户端的 channel 递增分配，只在 channel 内唯一，服务器原样返回，服务器主动推送的消息为 0
      */
-    private String rid;
+    private int rid;
 
     /**
      * 这次通讯使用的 channel 的身份标识
@@ -0,0 +1,25 @@
+package com.chase.mq.common.dto;
+
+
+import lombok.Data;
+
+import java.io.Serializable;
+
+/**
+ * 服务器通知客户端：硬盘空间不足，持久化消息的发布被阻塞，或者空间回收之后已经恢复
+ * 这是连接级别的通知，不属于任何一个 channel
+ */
+@Data
+public class ConnectionBlockedReturns implements Serializable {
+
+    /**
+     * true 表示开始阻塞，false 表示恢复
+     */
+    private boolean blocked;
+
+    /**
+     * 阻塞的原因，恢复的时候为空字符串
+     */
+    private String reason;
+
+}
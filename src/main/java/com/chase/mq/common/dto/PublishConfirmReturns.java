@@ -0,0 +1,28 @@
+package com.chase.mq.common.dto;
+
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.io.Serializable;
+
+/**
+ * 发布确认模式下服务器对发布的消息的确认（0x10）
+ * 序号是 channel 进入确认模式之后发布的第几条消息，从 1 开始，客户端和服务器各自按发布的顺序计数
+ * ok 为 true 时表示消息已经写入（持久化消息按照队列的落盘策略完成组提交），为 false 时表示消息发送失败
+ */
+@Data
+@EqualsAndHashCode(callSuper = true)
+public class PublishConfirmReturns extends BasicReturns implements Serializable {
+
+    /**
+     * 被确认的消息序号
+     */
+    private long sequence;
+
+    /**
+     * true 表示确认序号小于等于 sequence 的所有还没有确认的消息（累积确认），false 表示只确认 sequence 这一条
+     */
+    private boolean multiple;
+
+}
@@ -10,6 +10,7 @@ import lombok.Data;
 public class Request {
 
     /**
+     * 0x0:握手，协商协议版本，必须是连接上的第一个请求
      * 0x1:创建 channel
      * 0x2:关闭 channel
      * 0x3:创建 exchange
@@ -22,6 +23,11 @@ public class Request {
      * 0xa:订阅 message
      * 0xb:返回 ack
      * 0xc:服务器给客户端推送消息。（被订阅的消息）响应独有的
+     * 0xd:服务器通知客户端连接被阻塞或者恢复（硬盘空间不足时阻塞持久化消息的发布），载荷是 ConnectionBlockedReturns。响应独有的
+     * 0xe:服务器给客户端推送持久化消息，消息体不序列化，直接跟在元数据后面（零拷贝投递）。响应独有的
+     * 0xf:开启发布确认模式，之后这个 channel 上发布的消息不再逐条响应，由服务器批量发送 0x10 确认
+     * 0x10:服务器确认发布确认模式下发布的消息，载荷是 PublishConfirmReturns，可以一次确认多条。响应独有的
+     * 每种类型的载荷格式参考 {@link com.chase.mq.common.server.WireCodec}
      */
     private int type;
 
@@ -0,0 +1,118 @@
+package com.chase.mq.common.server;
+
+import com.chase.mq.MqApplication;
+import lombok.Getter;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 处理请求、投递消息和执行客户端回调的线程使用哪种线程，通过 mq.thread-mode 配置：
+ * platform : 平台线程（默认），和原来一样使用固定大小或者按需增长的线程池
+ * virtual  : 虚拟线程，每个任务一个虚拟线程，阻塞在 fsync、等待硬盘空间、等待 socket 可写的时候不占用平台线程
+ * 服务器从 Spring 的配置中读取，客户端（没有 Spring 上下文）从系统属性 -Dmq.thread-mode 中读取
+ * 虚拟线程需要 Java 21，这里通过反射创建，运行在更低版本的 JVM 上时打印警告并退回平台线程
+ */
+public enum ThreadMode {
+    PLATFORM("platform"),
+    VIRTUAL("virtual");
+
+    public static final String THREAD_MODE_KEY = "mq.thread-mode";
+
+    @Getter
+    private final String value;
+
+    ThreadMode(String value) {
+        this.value = value;
+    }
+
+    public static ThreadMode fromValue(String value) {
+        for (ThreadMode mode : values())
+            if (mode.value.equalsIgnoreCase(value)) return mode;
+        throw new MQException("[ThreadMode] 不支持的线程模式! " + THREAD_MODE_KEY + "=" + value);
+    }
+
+    public static ThreadMode load() {
+        String value = MqApplication.context != null
+                ? MqApplication.context.getEnvironment().getProperty(THREAD_MODE_KEY, PLATFORM.value)
+                : System.getProperty(THREAD_MODE_KEY, PLATFORM.value);
+        return fromValue(value);
+    }
+
+    /**
+     * 当前 JVM 是否支持虚拟线程
+     */
+    public static boolean virtualThreadsSupported() {
+        return VirtualThreads.NAME != null;
+    }
+
+    /**
+     * 创建一个执行任务的线程池
+     * @param name 线程名前缀
+     * @param platformThreads 平台线程模式下的线程数，小于等于 0 表示按需增长的线程池
+     */
+    public ExecutorService newExecutor(String name, int platformThreads) {
+        if (this == VIRTUAL && virtualThreadsSupported()) {
+            try {
+                return (ExecutorService) VirtualThreads.NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, VirtualThreads.factory(name));
+            } catch (ReflectiveOperationException e) {
+                throw new MQException("[ThreadMode] 创建虚拟线程池失败! 错误原因：" + e.getMessage());
+            }
+        }
+        return platformThreads > 0 ? Executors.newFixedThreadPool(platformThreads) : Executors.newCachedThreadPool();
+    }
+
+    /**
+     * 创建一个还没有启动的线程，用来代替 new Thread(task)
+     */
+    public Thread newThread(String name, Runnable task) {
+        if (this == VIRTUAL && virtualThreadsSupported()) {
+            try {
+                return VirtualThreads.factory(name).newThread(task);
+            } catch (ReflectiveOperationException e) {
+                throw new MQException("[ThreadMode] 创建虚拟线程失败! 错误原因：" + e.getMessage());
+            }
+        }
+        return new Thread(task, name);
+    }
+
+    /**
+     * 通过反射访问 Java 21 的虚拟线程 API，第一次使用的时候才初始化
+     */
+    private static class VirtualThreads {
+        private static final Method OF_VIRTUAL;
+        private static final Method NAME;
+        private static final Method FACTORY;
+        private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+        static {
+            Method ofVirtual = null, name = null, factory = null, newThreadPerTaskExecutor = null;
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                name = builderClass.getMethod("name", String.class, long.class);
+                factory = builderClass.getMethod("factory");
+                newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("[ThreadMode] 当前 JVM 不支持虚拟线程，使用平台线程! java.version=" + System.getProperty("java.version"));
+                ofVirtual = null;
+                name = null;
+            }
+            OF_VIRTUAL = ofVirtual;
+            NAME = name;
+            FACTORY = factory;
+            NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+        }
+
+        /**
+         * Thread.ofVirtual().name(name + "-", 0).factory()
+         */
+        private static ThreadFactory factory(String name) throws ReflectiveOperationException {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", 0L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        }
+    }
+
+}
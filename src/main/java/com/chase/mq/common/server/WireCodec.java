@@ -0,0 +1,507 @@
+package com.chase.mq.common.server;
+
+import com.chase.mq.common.dto.*;
+import com.chase.mq.mqserver.core.BasicProperties;
+import com.chase.mq.mqserver.core.ExchangeType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 网络协议中请求和响应载荷的二进制编码，取代 BinaryTool 的 Java 序列化（每个帧都要写类描述信息，又大又慢）
+ * 所有整数都是大端序，字符串是 长度(2 字节) + UTF-8 字节，消息体是 长度(4 字节) + 字节，长度为 -1 表示 null
+ * 每种请求的载荷都以 rid(4 字节) + channelId 开头，后面是这种请求固定顺序的字段，布尔参数合并成一个标记字节：
+ * 0x1 / 0x2 创建 / 销毁 channel：没有其他字段
+ * 0x3 创建交换机：exchangeName + 交换机类型(1 字节) + 标记(durable=0x1, autoDelete=0x2) + 参数表
+ * 0x4 删除交换机：exchangeName
+ * 0x5 创建队列：queueName + 标记(durable=0x1, autoDelete=0x2, exclusive=0x4) + 参数表
+ * 0x6 删除队列：queueName
+ * 0x7 创建绑定：queueName + exchangeName + bindingKey
+ * 0x8 解除绑定：queueName + exchangeName
+ * 0x9 发送消息：exchangeName + routingKey + 消息属性 + 消息体
+ * 0xa 订阅消息：consumerTag + queueName + 标记(autoAck=0x1)
+ * 0xb 确认消息：queueName + messageId
+ * 0xf 开启发布确认模式：没有其他字段
+ * 响应：0x1 ~ 0xb 是 rid(4 字节) + channelId + ok(1 字节)，0xc 在后面再加上 consumerTag + 消息属性 + 消息体，
+ * 0xd 是 blocked(1 字节) + reason，0xe 的元数据和 0xc 相同但是不带消息体，
+ * 0x10 是 rid + channelId + ok(1 字节) + sequence(8 字节) + multiple(1 字节)
+ * 消息属性：是否存在(1 字节) + messageId + routingKey + deliverModel(1 字节)
+ * 参数表：条数(2 字节) + 每一条 key + 值类型(1 字节) + 值，值只支持 null、字符串、整数、长整数、布尔和浮点数
+ * 建立连接之后客户端先发送 0x0 握手请求协商协议版本，参考 {@link #encodeHello(short...)}
+ */
+public class WireCodec {
+
+    /**
+     * 握手请求和响应的魔数 "CMQP"
+     */
+    public static final int MAGIC = 0x434D5150;
+
+    /**
+     * 握手请求的类型
+     */
+    public static final int HELLO = 0x0;
+
+    /**
+     * 当前的协议版本，版本号从 1 开始，0 表示协商失败
+     */
+    public static final short PROTOCOL_VERSION = 1;
+
+    /**
+     * 这一端支持的所有协议版本，从低到高
+     */
+    public static final short[] SUPPORTED_VERSIONS = {PROTOCOL_VERSION};
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_STRING = 1;
+    private static final byte VALUE_INT = 2;
+    private static final byte VALUE_LONG = 3;
+    private static final byte VALUE_BOOLEAN = 4;
+    private static final byte VALUE_DOUBLE = 5;
+
+    /**
+     * 握手请求：魔数(4 字节) + 版本个数(1 字节) + 客户端支持的版本(每个 2 字节)
+     */
+    public static byte[] encodeHello(short... versions) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 2 * versions.length);
+        buffer.putInt(MAGIC).put((byte) versions.length);
+        for (short version : versions) buffer.putShort(version);
+        return buffer.array();
+    }
+
+    /**
+     * 解析握手请求，选出双方都支持的最高版本
+     * @return 协商出的版本，没有共同支持的版本时返回 0
+     */
+    public static short negotiate(byte[] payload) {
+        return negotiate(payload, payload.length);
+    }
+
+    /**
+     * @param length 载荷的实际长度，服务器读取请求用的数组是复用的，可能比载荷长
+     */
+    public static short negotiate(byte[] payload, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload, 0, length);
+        try {
+            if (buffer.getInt() != MAGIC)
+                throw new MQException("[WireCodec] 握手请求的魔数错误!");
+            int count = buffer.get() & 0xff;
+            short chosen = 0;
+            for (int i = 0; i < count; i++) {
+                short version = buffer.getShort();
+                for (short supported : SUPPORTED_VERSIONS)
+                    if (supported == version && version > chosen) chosen = version;
+            }
+            return chosen;
+        } catch (BufferUnderflowException e) {
+            throw new MQException("[WireCodec] 握手请求格式错误!");
+        }
+    }
+
+    /**
+     * 握手响应：魔数(4 字节) + 协商出的版本(2 字节)
+     */
+    public static byte[] encodeHelloOk(short version) {
+        return ByteBuffer.allocate(6).putInt(MAGIC).putShort(version).array();
+    }
+
+    public static short decodeHelloOk(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        try {
+            if (buffer.getInt() != MAGIC)
+                throw new MQException("[WireCodec] 握手响应的魔数错误!");
+            return buffer.getShort();
+        } catch (BufferUnderflowException e) {
+            throw new MQException("[WireCodec] 握手响应格式错误!");
+        }
+    }
+
+    /**
+     * 编码一个请求的载荷
+     * @param type 请求类型，决定载荷中有哪些字段
+     */
+    public static byte[] encodeArguments(int type, BasicArguments arguments) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(byteArrayOutputStream);
+        out.writeInt(arguments.getRid());
+        writeString(out, arguments.getChannelId());
+        switch (type) {
+            case 0x1, 0x2, 0xf -> {
+            }
+            case 0x3 -> {
+                ExchangeDeclareArguments declare = (ExchangeDeclareArguments) arguments;
+                writeString(out, declare.getExchangeName());
+                out.writeByte(declare.getExchangeType() == null ? -1 : declare.getExchangeType().getType());
+                out.writeByte((declare.isDurable() ? 0x1 : 0) | (declare.isAutoDelete() ? 0x2 : 0));
+                writeMap(out, declare.getArguments());
+            }
+            case 0x4 -> writeString(out, ((ExchangeDeleteArguments) arguments).getExchangeName());
+            case 0x5 -> {
+                QueueDeclareArguments declare = (QueueDeclareArguments) arguments;
+                writeString(out, declare.getQueueName());
+                out.writeByte((declare.isDurable() ? 0x1 : 0) | (declare.isAutoDelete() ? 0x2 : 0)
+                        | (declare.isExclusive() ? 0x4 : 0));
+                writeMap(out, declare.getArguments());
+            }
+            case 0x6 -> writeString(out, ((QueueDeleteArguments) arguments).getQueueName());
+            case 0x7 -> {
+                QueueBindArguments bind = (QueueBindArguments) arguments;
+                writeString(out, bind.getQueueName());
+                writeString(out, bind.getExchangeName());
+                writeString(out, bind.getBindingKey());
+            }
+            case 0x8 -> {
+                QueueUnbindArguments unbind = (QueueUnbindArguments) arguments;
+                writeString(out, unbind.getQueueName());
+                writeString(out, unbind.getExchangeName());
+            }
+            case 0x9 -> {
+                BasicPublishArguments publish = (BasicPublishArguments) arguments;
+                writeString(out, publish.getExchangeName());
+                writeString(out, publish.getRoutingKey());
+                writeProperties(out, publish.getBasicProperties());
+                writeBytes(out, publish.getBody());
+            }
+            case 0xa -> {
+                BasicConsumeArguments consume = (BasicConsumeArguments) arguments;
+                writeString(out, consume.getConsumerTag());
+                writeString(out, consume.getQueueName());
+                out.writeByte(consume.isAutoAck() ? 0x1 : 0);
+            }
+            case 0xb -> {
+                BasicAckArguments ack = (BasicAckArguments) arguments;
+                writeString(out, ack.getQueueName());
+                writeString(out, ack.getMessageId());
+            }
+            default -> throw new MQException("[WireCodec] 未知的请求类型! type=" + type);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * 解码一个请求的载荷
+     * @param type 请求类型，决定载荷中有哪些字段
+     */
+    public static BasicArguments decodeArguments(int type, byte[] payload) {
+        return decodeArguments(type, payload, payload.length);
+    }
+
+    /**
+     * @param length 载荷的实际长度，服务器读取请求用的数组是复用的，可能比载荷长
+     */
+    public static BasicArguments decodeArguments(int type, byte[] payload, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload, 0, length);
+        try {
+            int rid = buffer.getInt();
+            String channelId = readString(buffer);
+            BasicArguments arguments;
+            switch (type) {
+                case 0x1, 0x2, 0xf -> arguments = new BasicArguments();
+                case 0x3 -> {
+                    ExchangeDeclareArguments declare = new ExchangeDeclareArguments();
+                    declare.setExchangeName(readString(buffer));
+                    declare.setExchangeType(exchangeTypeOf(buffer.get()));
+                    byte flags = buffer.get();
+                    declare.setDurable((flags & 0x1) != 0);
+                    declare.setAutoDelete((flags & 0x2) != 0);
+                    declare.setArguments(readMap(buffer));
+                    arguments = declare;
+                }
+                case 0x4 -> {
+                    ExchangeDeleteArguments delete = new ExchangeDeleteArguments();
+                    delete.setExchangeName(readString(buffer));
+                    arguments = delete;
+                }
+                case 0x5 -> {
+                    QueueDeclareArguments declare = new QueueDeclareArguments();
+                    declare.setQueueName(readString(buffer));
+                    byte flags = buffer.get();
+                    declare.setDurable((flags & 0x1) != 0);
+                    declare.setAutoDelete((flags & 0x2) != 0);
+                    declare.setExclusive((flags & 0x4) != 0);
+                    declare.setArguments(readMap(buffer));
+                    arguments = declare;
+                }
+                case 0x6 -> {
+                    QueueDeleteArguments delete = new QueueDeleteArguments();
+                    delete.setQueueName(readString(buffer));
+                    arguments = delete;
+                }
+                case 0x7 -> {
+                    QueueBindArguments bind = new QueueBindArguments();
+                    bind.setQueueName(readString(buffer));
+                    bind.setExchangeName(readString(buffer));
+                    bind.setBindingKey(readString(buffer));
+                    arguments = bind;
+                }
+                case 0x8 -> {
+                    QueueUnbindArguments unbind = new QueueUnbindArguments();
+                    unbind.setQueueName(readString(buffer));
+                    unbind.setExchangeName(readString(buffer));
+                    arguments = unbind;
+                }
+                case 0x9 -> {
+                    BasicPublishArguments publish = new BasicPublishArguments();
+                    publish.setExchangeName(readString(buffer));
+                    publish.setRoutingKey(readString(buffer));
+                    publish.setBasicProperties(readProperties(buffer));
+                    publish.setBody(readBytes(buffer));
+                    arguments = publish;
+                }
+                case 0xa -> {
+                    BasicConsumeArguments consume = new BasicConsumeArguments();
+                    consume.setConsumerTag(readString(buffer));
+                    consume.setQueueName(readString(buffer));
+                    consume.setAutoAck((buffer.get() & 0x1) != 0);
+                    arguments = consume;
+                }
+                case 0xb -> {
+                    BasicAckArguments ack = new BasicAckArguments();
+                    ack.setQueueName(readString(buffer));
+                    ack.setMessageId(readString(buffer));
+                    arguments = ack;
+                }
+                default -> throw new MQException("[WireCodec] 未知的请求类型! type=" + type);
+            }
+            arguments.setRid(rid);
+            arguments.setChannelId(channelId);
+            return arguments;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new MQException("[WireCodec] 请求格式错误! type=" + type);
+        }
+    }
+
+    /**
+     * 编码 0x1 ~ 0xb 请求的响应
+     */
+    public static byte[] encodeReturns(BasicReturns returns) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(96);
+        DataOutputStream out = new DataOutputStream(byteArrayOutputStream);
+        writeReturns(out, returns);
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    public static BasicReturns decodeReturns(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        try {
+            BasicReturns returns = new BasicReturns();
+            readReturns(buffer, returns);
+            return returns;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new MQException("[WireCodec] 响应格式错误!");
+        }
+    }
+
+    /**
+     * 编码推送给消费者的消息（0xc），withBody 为 false 的时候不写消息体，用作零拷贝投递（0xe）的元数据
+     */
+    public static byte[] encodeSubscribe(SubScribeReturns returns, boolean withBody) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(
+                128 + (withBody && returns.getBody() != null ? returns.getBody().length : 0));
+        DataOutputStream out = new DataOutputStream(byteArrayOutputStream);
+        writeReturns(out, returns);
+        writeString(out, returns.getConsumerTag());
+        writeProperties(out, returns.getBasicProperties());
+        if (withBody) writeBytes(out, returns.getBody());
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * 解码推送给消费者的消息，withBody 为 false 的时候只解码元数据
+     */
+    public static SubScribeReturns decodeSubscribe(byte[] payload, int offset, int length, boolean withBody) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload, offset, length);
+        try {
+            SubScribeReturns returns = new SubScribeReturns();
+            readReturns(buffer, returns);
+            returns.setConsumerTag(readString(buffer));
+            returns.setBasicProperties(readProperties(buffer));
+            if (withBody) returns.setBody(readBytes(buffer));
+            return returns;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new MQException("[WireCodec] 推送消息格式错误!");
+        }
+    }
+
+    /**
+     * 编码发布确认（0x10）
+     */
+    public static byte[] encodeConfirm(PublishConfirmReturns returns) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(byteArrayOutputStream);
+        writeReturns(out, returns);
+        out.writeLong(returns.getSequence());
+        out.writeByte(returns.isMultiple() ? 1 : 0);
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    public static PublishConfirmReturns decodeConfirm(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        try {
+            PublishConfirmReturns returns = new PublishConfirmReturns();
+            readReturns(buffer, returns);
+            returns.setSequence(buffer.getLong());
+            returns.setMultiple(buffer.get() != 0);
+            return returns;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new MQException("[WireCodec] 发布确认格式错误!");
+        }
+    }
+
+    public static byte[] encodeBlocked(ConnectionBlockedReturns returns) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(byteArrayOutputStream);
+        out.writeByte(returns.isBlocked() ? 1 : 0);
+        writeString(out, returns.getReason());
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    public static ConnectionBlockedReturns decodeBlocked(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        try {
+            ConnectionBlockedReturns returns = new ConnectionBlockedReturns();
+            returns.setBlocked(buffer.get() != 0);
+            returns.setReason(readString(buffer));
+            return returns;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new MQException("[WireCodec] 阻塞通知格式错误!");
+        }
+    }
+
+    private static void writeReturns(DataOutputStream out, BasicReturns returns) throws IOException {
+        out.writeInt(returns.getRid());
+        writeString(out, returns.getChannelId());
+        out.writeByte(returns.isOk() ? 1 : 0);
+    }
+
+    private static void readReturns(ByteBuffer buffer, BasicReturns returns) {
+        returns.setRid(buffer.getInt());
+        returns.setChannelId(readString(buffer));
+        returns.setOk(buffer.get() != 0);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE)
+            throw new MQException("[WireCodec] 字符串太长! length=" + bytes.length);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        short length = buffer.getShort();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        if (length > buffer.remaining())
+            throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void writeProperties(DataOutputStream out, BasicProperties properties) throws IOException {
+        if (properties == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(1);
+        writeString(out, properties.getMessageId());
+        writeString(out, properties.getRoutingKey());
+        out.writeByte(properties.getDeliverModel());
+    }
+
+    private static BasicProperties readProperties(ByteBuffer buffer) {
+        if (buffer.get() == 0) return null;
+        BasicProperties properties = new BasicProperties();
+        properties.setMessageId(readString(buffer));
+        properties.setRoutingKey(readString(buffer));
+        properties.setDeliverModel(buffer.get());
+        return properties;
+    }
+
+    private static ExchangeType exchangeTypeOf(byte type) {
+        if (type < 0) return null;
+        for (ExchangeType exchangeType : ExchangeType.values())
+            if (exchangeType.getType() == type) return exchangeType;
+        throw new MQException("[WireCodec] 未知的交换机类型! type=" + type);
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, Object> map) throws IOException {
+        if (map == null) {
+            out.writeShort(-1);
+            return;
+        }
+        out.writeShort(map.size());
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            Object value = entry.getValue();
+            if (value == null) {
+                out.writeByte(VALUE_NULL);
+            } else if (value instanceof String) {
+                out.writeByte(VALUE_STRING);
+                writeString(out, (String) value);
+            } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                out.writeByte(VALUE_INT);
+                out.writeInt(((Number) value).intValue());
+            } else if (value instanceof Long) {
+                out.writeByte(VALUE_LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(VALUE_BOOLEAN);
+                out.writeByte((Boolean) value ? 1 : 0);
+            } else if (value instanceof Double || value instanceof Float) {
+                out.writeByte(VALUE_DOUBLE);
+                out.writeDouble(((Number) value).doubleValue());
+            } else {
+                throw new MQException("[WireCodec] 不支持的参数类型! key=" + entry.getKey() + ", type=" + value.getClass().getName());
+            }
+        }
+    }
+
+    private static Map<String, Object> readMap(ByteBuffer buffer) {
+        short size = buffer.getShort();
+        if (size < 0) return null;
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            String key = readString(buffer);
+            byte type = buffer.get();
+            Object value = switch (type) {
+                case VALUE_NULL -> null;
+                case VALUE_STRING -> readString(buffer);
+                case VALUE_INT -> buffer.getInt();
+                case VALUE_LONG -> buffer.getLong();
+                case VALUE_BOOLEAN -> buffer.get() != 0;
+                case VALUE_DOUBLE -> buffer.getDouble();
+                default -> throw new MQException("[WireCodec] 未知的参数类型! type=" + type);
+            };
+            map.put(key, value);
+        }
+        return map;
+    }
+
+}
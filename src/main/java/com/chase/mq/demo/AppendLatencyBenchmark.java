@@ -0,0 +1,72 @@
+package com.chase.mq.demo;
+
+import com.chase.mq.mqserver.core.MSGQueue;
+import com.chase.mq.mqserver.core.Message;
+import com.chase.mq.mqserver.datacenter.MessageFileManager;
+import com.chase.mq.mqserver.datacenter.StorageLayout;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 追加写入延迟的微基准：分别在预分配和不预分配活跃段的情况下逐条写入持久化消息，比较每条写入的延迟分布
+ * 每条消息都等待组提交的 fsync 完成，段设置得比较小，写入的过程中会多次滚动出新的段
+ * 用法：AppendLatencyBenchmark [消息条数] [消息体字节数] [段大小]
+ * 结果和硬盘、文件系统关系很大，只适合在同一台机器上对比两种配置
+ */
+public class AppendLatencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int bodySize = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        long segmentSize = args.length > 2 ? Long.parseLong(args[2]) : 4 * 1024 * 1024;
+//        MessageFileManager 的检查点定时任务一直在运行，所有数据都放在一个临时目录下，测完之后统一删除
+        File root = Files.createTempDirectory("mq-bench").toFile();
+        try {
+//            先各跑一轮预热，再正式测量
+            run(new File(root, "warmup-off"), false, count / 10, bodySize, segmentSize);
+            run(new File(root, "warmup-on"), true, count / 10, bodySize, segmentSize);
+            System.out.println("[AppendLatencyBenchmark] 不预分配: " + run(new File(root, "off"), false, count, bodySize, segmentSize));
+            System.out.println("[AppendLatencyBenchmark] 预分配:   " + run(new File(root, "on"), true, count, bodySize, segmentSize));
+        } finally {
+            deleteRecursively(root);
+        }
+        System.exit(0);
+    }
+
+    private static String run(File dir, boolean preallocate, int count, int bodySize, long segmentSize) throws Exception {
+        MessageFileManager messageFileManager = new MessageFileManager(segmentSize, false,
+                new StorageLayout(List.of(dir), StorageLayout.Placement.HASH), preallocate);
+        MSGQueue queue = new MSGQueue();
+        queue.setName("bench");
+        queue.setDurable(true);
+        messageFileManager.createQueueFiles(queue.getName());
+        byte[] body = new byte[bodySize];
+        long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            Message message = Message.createMessageWithId("bench", null, body);
+            long start = System.nanoTime();
+            messageFileManager.sendMessage(queue, message);
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        return String.format("count=%d, p50=%dus, p99=%dus, p999=%dus, max=%dus", count,
+                percentile(latencies, 0.50), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[count - 1] / 1000);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1000;
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children) deleteRecursively(child);
+        Files.deleteIfExists(file.toPath());
+    }
+
+}
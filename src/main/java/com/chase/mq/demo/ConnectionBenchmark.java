@@ -0,0 +1,74 @@
+package com.chase.mq.demo;
+
+import com.chase.mq.common.server.ThreadMode;
+import com.chase.mq.mqclient.Channel;
+import com.chase.mq.mqclient.Connection;
+import com.chase.mq.mqclient.ConnectionFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接数和请求延迟的压测工具：对一个已经启动的 broker 建立大量连接，每个连接并发地发送非持久化消息，统计每个请求往返的延迟分布
+ * 用法：ConnectionBenchmark [host] [port] [连接数] [每个连接的请求数] [platform|virtual]
+ * 最后一个参数决定客户端的读线程和发送任务使用平台线程还是虚拟线程（虚拟线程需要 Java 21），
+ * broker 这边通过 mq.thread-mode 配置，两边分别对比：平台线程下每个客户端连接要占一个读线程，虚拟线程下可以建立更多的连接
+ */
+public class ConnectionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 9090;
+        int connectionCount = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        ThreadMode threadMode = ThreadMode.fromValue(args.length > 4 ? args[4] : ThreadMode.PLATFORM.getValue());
+        System.setProperty(ThreadMode.THREAD_MODE_KEY, threadMode.getValue());
+
+        ConnectionFactory factory = new ConnectionFactory(host, port);
+        List<Connection> connections = new ArrayList<>();
+        List<Channel> channels = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < connectionCount; i++) {
+            Connection connection = factory.newConnection();
+            connections.add(connection);
+            channels.add(connection.createChannel());
+        }
+        System.out.println("[ConnectionBenchmark] 建立 " + connectionCount + " 个连接耗时 "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart) + "ms, 平台线程数=" + Thread.activeCount());
+        channels.get(0).queueDeclare("benchmarkQueue", false, false, false, null);
+
+        long[] latencies = new long[connectionCount * requests];
+        byte[] body = new byte[128];
+        ExecutorService senders = threadMode.newExecutor("benchmark-sender", connectionCount);
+        long start = System.nanoTime();
+        for (int i = 0; i < connectionCount; i++) {
+            Channel channel = channels.get(i);
+            int from = i * requests;
+            senders.submit(() -> {
+                for (int j = 0; j < requests; j++) {
+                    long begin = System.nanoTime();
+                    channel.basicPublish("", "benchmarkQueue", null, body);
+                    latencies[from + j] = System.nanoTime() - begin;
+                }
+                return null;
+            });
+        }
+        senders.shutdown();
+        senders.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        System.out.printf("[ConnectionBenchmark] mode=%s, connections=%d, requests=%d, throughput=%.0f/s, p50=%dus, p99=%dus, max=%dus%n",
+                threadMode.getValue(), connectionCount, latencies.length, latencies.length * 1e9 / elapsed,
+                latencies[latencies.length / 2] / 1000, latencies[(int) (latencies.length * 0.99)] / 1000,
+                latencies[latencies.length - 1] / 1000);
+
+        channels.get(0).queueDelete("benchmarkQueue");
+        for (Connection connection : connections)
+            connection.close();
+        System.exit(0);
+    }
+
+}
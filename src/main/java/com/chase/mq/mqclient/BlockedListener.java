@@ -0,0 +1,17 @@
+package com.chase.mq.mqclient;
+
+/**
+ * 连接被服务器阻塞或者恢复时的回调
+ * 服务器硬盘空间不足的时候会阻塞持久化消息的发布，发布请求要等到空间回收之后才会返回
+ * 生产者可以在收到阻塞通知之后暂停发送，避免大量请求堆积在服务器上
+ */
+@FunctionalInterface
+public interface BlockedListener {
+
+    /**
+     * @param blocked true 表示连接被阻塞，false 表示已经恢复
+     * @param reason 阻塞的原因，恢复的时候为空字符串
+     */
+    void handleBlocked(boolean blocked, String reason);
+
+}
@@ -2,9 +2,9 @@ package com.chase.mq.mqclient;
 
 
 import com.chase.mq.common.dto.*;
-import com.chase.mq.common.server.BinaryTool;
 import com.chase.mq.common.server.Consumer;
 import com.chase.mq.common.server.MQException;
+import com.chase.mq.common.server.WireCodec;
 import com.chase.mq.mqserver.core.BasicProperties;
 import com.chase.mq.mqserver.core.ExchangeType;
 import lombok.AllArgsConstructor;
@@ -12,12 +12,21 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Map;
-import java.util.UUID;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 一个连接中的信道
+ * 每个操作都有同步和异步两个版本，异步版本（xxxAsync）发出请求之后立即返回 CompletableFuture，
+ * 同一个 channel 上可以连续发出很多个请求，服务器按顺序处理，响应通过请求编号和请求对上
  */
 @Data
 @AllArgsConstructor
@@ -35,9 +44,35 @@ public class Channel {
     private Connection connection;
 
     /**
-     * 用来存储后续客户端收到服务器的响应
+     * 已经发出、还没有收到响应的请求，按请求编号索引，收到响应的时候完成对应的 future
+     * 一个 channel 上可以同时有很多个请求在等待响应（流水线），不需要等上一个请求的响应回来再发下一个
      */
-    private ConcurrentHashMap<String, BasicReturns> basicReturnsMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, CompletableFuture<BasicReturns>> pendingRequests = new ConcurrentHashMap<>();
+
+    /**
+     * 上一个请求的编号，请求编号只需要在 channel 内唯一，从 1 开始递增，0 留给服务器主动推送的消息
+     */
+    private final AtomicInteger lastRid = new AtomicInteger();
+
+    /**
+     * 是否开启了发布确认模式
+     */
+    private volatile boolean confirmMode = false;
+
+    /**
+     * 发布确认模式下下一条消息的序号，从 1 开始，和服务器按照同样的顺序计数，由 publishLock 保护
+     */
+    private long nextPublishSequence = 1;
+
+    /**
+     * 发布确认模式下还没有收到确认的消息，按序号排序，收到累积确认的时候一次完成序号小于等于确认序号的所有消息
+     */
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Boolean>> unconfirmed = new ConcurrentSkipListMap<>();
+
+    /**
+     * 分配序号和发送消息在同一个锁内完成，保证序号的顺序就是消息到达服务器的顺序
+     */
+    private final ReentrantLock publishLock = new ReentrantLock();
 
     /**
      * 如果当前 Channel 订阅了某个队列，就需要在此处记录下对应的回调是什么，当该队列的消息返回回来的时候，就会调用回调
@@ -58,77 +93,133 @@ public class Channel {
      */
     public boolean createChannel() throws IOException {
 //        对于创建 channel 来说，payload 就是一个 basicArguments 对象
-        BasicArguments basicArguments = new BasicArguments();
-        basicArguments.setChannelId(channelId);
-        basicArguments.setRid(generateRid());
-        byte[] payload = BinaryTool.toBytes(basicArguments);
+        return waitResult(send(0x1, new BasicArguments()));
+    }
+
+    /**
+     * 使用这个方法给请求分配一个 channel 内唯一的编号，用完 int 的范围之后从 1 重新开始
+     */
+    private int generateRid() {
+        return lastRid.updateAndGet(rid -> rid == Integer.MAX_VALUE ? 1 : rid + 1);
+    }
+
+    /**
+     * 填上请求编号和 channelId，编码之后发送给服务器，不等待响应
+     * 先把 future 放进等待表再发送，响应不会在登记之前到达
+     * @return 收到响应的时候完成的 future，结果是响应中的 ok，连接断开的时候以异常结束
+     */
+    private CompletableFuture<Boolean> send(int type, BasicArguments arguments) {
+        int rid = generateRid();
+        CompletableFuture<BasicReturns> future = new CompletableFuture<>();
+        pendingRequests.put(rid, future);
+        try {
+            write(type, rid, arguments);
+        } catch (IOException | MQException e) {
+            pendingRequests.remove(rid);
+            future.completeExceptionally(e);
+        }
+        return future.thenApply(BasicReturns::isOk);
+    }
+
+    private void write(int type, int rid, BasicArguments arguments) throws IOException {
+        arguments.setRid(rid);
+        arguments.setChannelId(channelId);
+        byte[] payload = WireCodec.encodeArguments(type, arguments);
         Request request = new Request();
-        request.setType(0x1);
+        request.setType(type);
         request.setLength(payload.length);
         request.setPayload(payload);
-//        构造出完整请求后就可以发送请求了
         connection.writeRequest(request);
-        System.out.println("[Channel] 请求发送成功！");
-//        等待服务器响应
-        BasicReturns basicReturns = waitResult(basicArguments.getRid());
-        System.out.println("[Channel] 等待响应成功！");
-        return basicReturns.isOk();
     }
 
     /**
-     * 使用这个方法给返回的响应设置一个唯一 id
+     * 发布确认模式下发送一条消息：服务器不逐条响应，而是在消息写入之后发送确认，一个确认可以覆盖多条消息
+     * @return 收到确认的时候完成的 future，结果是消息是否发送成功
      */
-    private String generateRid() {
-        return "R-" + UUID.randomUUID().toString();
+    private CompletableFuture<Boolean> sendConfirmed(BasicPublishArguments arguments) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        publishLock.lock();
+        try {
+            long sequence = nextPublishSequence++;
+            unconfirmed.put(sequence, future);
+            try {
+                write(0x9, generateRid(), arguments);
+            } catch (IOException | MQException e) {
+                unconfirmed.remove(sequence);
+                nextPublishSequence--;
+                future.completeExceptionally(e);
+            }
+        } finally {
+            publishLock.unlock();
+        }
+        return future;
     }
 
     /**
-     * 使用这个方法来等待服务器响应
+     * 同步接口使用这个方法来等待服务器响应，把 future 的异常还原成原来的异常抛出
      */
-    private BasicReturns waitResult (String rid){
-        BasicReturns basicReturns = null;
-        while((basicReturns = basicReturnsMap.get(rid)) == null){
-//            如果查询结果为 null 此时就需要进行阻塞等待
-            synchronized (this){
-                System.out.println("[Channel] 还有收到结果！");
-                try{
-                    wait();
-                }catch (InterruptedException e){
-                    e.printStackTrace();
-                }
-            }
+    private boolean waitResult(CompletableFuture<Boolean> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("[Channel] 等待响应时被中断! channelId=" + channelId);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
         }
-//        读取成功之后，还需要把这个消息从哈希表中删除掉
-        basicReturnsMap.remove(rid);
-        return basicReturns;
     }
 
     /**
-     * 给当前 channel 的响应池中添加消息，并通知对应的消费者来进行消费
+     * 收到服务器的响应，按请求编号找到等待的请求并完成它
+     * 由连接的读线程调用，调用方在 future 上直接注册的回调（thenApply、thenAccept 等）也在读线程中执行，
+     * 回调中不要阻塞或者调用同步接口，否则读线程无法读取后面的响应，需要阻塞的回调请使用 thenApplyAsync 等方法
      */
     public void putReturns(BasicReturns basicReturns){
-        basicReturnsMap.put(basicReturns.getRid(),basicReturns);
-        synchronized (this){
-//            当前也不知道有多少个线程在等待上述响应，把所有等待线程都换醒
-            notifyAll();
+        CompletableFuture<BasicReturns> future = pendingRequests.remove(basicReturns.getRid());
+        if (future == null) {
+            System.out.println("[Channel] 收到没有对应请求的响应! rid=" + basicReturns.getRid() + ", channelId=" + channelId);
+            return;
         }
+        future.complete(basicReturns);
+    }
+
+    /**
+     * 收到服务器的发布确认，由连接的读线程调用
+     * 累积确认完成序号小于等于确认序号的所有消息，单条确认只完成这一条（服务器用它通知发送失败的消息）
+     */
+    void putConfirm(PublishConfirmReturns confirm) {
+        if (!confirm.isMultiple()) {
+            CompletableFuture<Boolean> future = unconfirmed.remove(confirm.getSequence());
+            if (future != null) future.complete(confirm.isOk());
+            return;
+        }
+        NavigableMap<Long, CompletableFuture<Boolean>> confirmed = unconfirmed.headMap(confirm.getSequence(), true);
+        for (CompletableFuture<Boolean> future : confirmed.values())
+            future.complete(confirm.isOk());
+        confirmed.clear();
+    }
+
+    /**
+     * 连接断开的时候，让所有还在等待响应或者确认的请求以异常结束
+     */
+    void failPendingRequests(IOException cause) {
+        for (Integer rid : pendingRequests.keySet()) {
+            CompletableFuture<BasicReturns> future = pendingRequests.remove(rid);
+            if (future != null) future.completeExceptionally(cause);
+        }
+        Map.Entry<Long, CompletableFuture<Boolean>> entry;
+        while ((entry = unconfirmed.pollFirstEntry()) != null)
+            entry.getValue().completeExceptionally(cause);
     }
 
     /**
      * 关闭 channel ，给服务器发送一个 type = 0x2 的请求
      */
     public boolean close() throws IOException {
-        BasicArguments basicArguments = new BasicArguments();
-        basicArguments.setRid(generateRid());
-        basicArguments.setChannelId(channelId);
-        byte[] payload = BinaryTool.toBytes(basicArguments);
-        Request request = new Request();
-        request.setType(0x2);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(basicArguments.getRid());
-        return basicReturns.isOk();
+        return waitResult(send(0x2, new BasicArguments()));
     }
 
     /**
@@ -136,40 +227,34 @@ public class Channel {
      */
     public boolean exchangeDeclare(String exchangeName, ExchangeType exchangeType, boolean durable, boolean autoDelete,
                                    Map<String, Object> arguments) throws IOException {
+        return waitResult(exchangeDeclareAsync(exchangeName, exchangeType, durable, autoDelete, arguments));
+    }
+
+    /**
+     * 创建交换机，不等待响应，下同：xxxAsync 返回收到响应时完成的 future，同名的同步方法等待这个 future
+     */
+    public CompletableFuture<Boolean> exchangeDeclareAsync(String exchangeName, ExchangeType exchangeType, boolean durable,
+                                                           boolean autoDelete, Map<String, Object> arguments) {
         ExchangeDeclareArguments exchangeDeclareArguments = new ExchangeDeclareArguments();
-        exchangeDeclareArguments.setRid(generateRid());
-        exchangeDeclareArguments.setChannelId(channelId);
         exchangeDeclareArguments.setExchangeName(exchangeName);
         exchangeDeclareArguments.setExchangeType(exchangeType);
         exchangeDeclareArguments.setDurable(durable);
         exchangeDeclareArguments.setAutoDelete(autoDelete);
         exchangeDeclareArguments.setArguments(arguments);
-        byte[] payload = BinaryTool.toBytes(exchangeDeclareArguments);
-        Request request = new Request();
-        request.setType(0x3);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(exchangeDeclareArguments.getRid());
-        return basicReturns.isOk();
+        return send(0x3, exchangeDeclareArguments);
     }
 
     /**
      * 删除交换机
      */
     public boolean exchangeDelete(String exchangeName) throws IOException {
+        return waitResult(exchangeDeleteAsync(exchangeName));
+    }
+
+    public CompletableFuture<Boolean> exchangeDeleteAsync(String exchangeName) {
         ExchangeDeleteArguments arguments = new ExchangeDeleteArguments();
-        arguments.setRid(generateRid());
-        arguments.setChannelId(channelId);
         arguments.setExchangeName(exchangeName);
-        byte[] payload = BinaryTool.toBytes(arguments);
-        Request request = new Request();
-        request.setType(0x4);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(arguments.getRid());
-        return basicReturns.isOk();
+        return send(0x4, arguments);
     }
 
     /**
@@ -177,114 +262,115 @@ public class Channel {
      */
     public boolean queueDeclare(String queueName, boolean durable, boolean exclusive, boolean autoDelete,
                                 Map<String, Object> arguments) throws IOException {
+        return waitResult(queueDeclareAsync(queueName, durable, exclusive, autoDelete, arguments));
+    }
+
+    public CompletableFuture<Boolean> queueDeclareAsync(String queueName, boolean durable, boolean exclusive, boolean autoDelete,
+                                                        Map<String, Object> arguments) {
         QueueDeclareArguments queueDeclareArguments = new QueueDeclareArguments();
-        queueDeclareArguments.setRid(generateRid());
-        queueDeclareArguments.setChannelId(channelId);
         queueDeclareArguments.setQueueName(queueName);
         queueDeclareArguments.setDurable(durable);
         queueDeclareArguments.setExclusive(exclusive);
         queueDeclareArguments.setAutoDelete(autoDelete);
         queueDeclareArguments.setArguments(arguments);
-        byte[] payload = BinaryTool.toBytes(queueDeclareArguments);
-        Request request = new Request();
-        request.setType(0x5);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(queueDeclareArguments.getRid());
-        return basicReturns.isOk();
+        return send(0x5, queueDeclareArguments);
     }
 
     /**
      * 删除队列
      */
     public boolean queueDelete(String queueName) throws IOException {
+        return waitResult(queueDeleteAsync(queueName));
+    }
+
+    public CompletableFuture<Boolean> queueDeleteAsync(String queueName) {
         QueueDeleteArguments arguments = new QueueDeleteArguments();
-        arguments.setRid(generateRid());
-        arguments.setChannelId(channelId);
         arguments.setQueueName(queueName);
-        byte[] payload = BinaryTool.toBytes(arguments);
-
-        Request request = new Request();
-        request.setType(0x6);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(arguments.getRid());
-        return basicReturns.isOk();
+        return send(0x6, arguments);
     }
 
     /**
      * 创建绑定
      */
     public boolean queueBind(String queueName,String exchangeName,String bindingKey) throws IOException {
+        return waitResult(queueBindAsync(queueName, exchangeName, bindingKey));
+    }
+
+    public CompletableFuture<Boolean> queueBindAsync(String queueName, String exchangeName, String bindingKey) {
         QueueBindArguments arguments = new QueueBindArguments();
-        arguments.setRid(generateRid());
-        arguments.setChannelId(channelId);
         arguments.setQueueName(queueName);
         arguments.setExchangeName(exchangeName);
         arguments.setBindingKey(bindingKey);
-        byte[] payload = BinaryTool.toBytes(arguments);
-
-        Request request = new Request();
-        request.setType(0x7);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(arguments.getRid());
-        return basicReturns.isOk();
+        return send(0x7, arguments);
     }
 
     /**
      * 解除绑定
      */
     public boolean queueUnbind(String queueName,String exchangeName) throws IOException {
+        return waitResult(queueUnbindAsync(queueName, exchangeName));
+    }
+
+    public CompletableFuture<Boolean> queueUnbindAsync(String queueName, String exchangeName) {
         QueueUnbindArguments arguments = new QueueUnbindArguments();
-        arguments.setRid(generateRid());
-        arguments.setChannelId(channelId);
         arguments.setQueueName(queueName);
         arguments.setExchangeName(exchangeName);
-        byte[] payload = BinaryTool.toBytes(arguments);
-
-        Request request = new Request();
-        request.setType(0x8);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(arguments.getRid());
-        return basicReturns.isOk();
+        return send(0x8, arguments);
     }
 
     /**
      * 发送消息
      */
     public boolean basicPublish(String exchangeName, String routingKey, BasicProperties basicProperties,byte[] body) throws IOException {
+        return waitResult(basicPublishAsync(exchangeName, routingKey, basicProperties, body));
+    }
+
+    /**
+     * 发送消息，不等待响应，同一个 channel 上连续发送的消息按发送的顺序到达服务器
+     * 发布确认模式下返回的 future 在收到服务器的确认时完成
+     */
+    public CompletableFuture<Boolean> basicPublishAsync(String exchangeName, String routingKey, BasicProperties basicProperties, byte[] body) {
         BasicPublishArguments arguments = new BasicPublishArguments();
-        arguments.setRid(generateRid());
-        arguments.setChannelId(channelId);
         arguments.setExchangeName(exchangeName);
         arguments.setRoutingKey(routingKey);
         arguments.setBasicProperties(basicProperties);
         arguments.setBody(body);
-        byte[] payload = BinaryTool.toBytes(arguments);
+        if (confirmMode) return sendConfirmed(arguments);
+        return send(0x9, arguments);
+    }
 
-        Request request = new Request();
-        request.setType(0x9);
-        request.setLength(payload.length);
-        request.setPayload(payload);
+    /**
+     * 开启发布确认模式，需要在这个 channel 发布消息之前调用：
+     * 之后发布的消息服务器不再逐条响应，而是在一批消息写入完成（持久化消息完成组提交）之后发送一次累积确认，
+     * 连续调用 basicPublishAsync 发布多条消息时不需要每条消息等待一次往返
+     */
+    public boolean confirmSelect() throws IOException {
+        boolean ok = waitResult(send(0xf, new BasicArguments()));
+        if (ok) confirmMode = true;
+        return ok;
+    }
 
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(arguments.getRid());
-        return basicReturns.isOk();
+    /**
+     * 等待目前所有还没有确认的消息收到确认
+     * @return 这些消息都发送成功返回 true，有消息发送失败返回 false
+     */
+    public boolean waitForConfirms() throws IOException {
+        if (!confirmMode)
+            throw new MQException("[Channel] channel 没有开启发布确认模式! channelId=" + channelId);
+        boolean ok = true;
+        for (CompletableFuture<Boolean> future : new ArrayList<>(unconfirmed.values()))
+            ok &= waitResult(future);
+        return ok;
     }
 
     /**
      * 订阅消息
      */
     public boolean basicConsume(String queueName,boolean autoAck,Consumer consumer) throws IOException {
+        return waitResult(basicConsumeAsync(queueName, autoAck, consumer));
+    }
+
+    public CompletableFuture<Boolean> basicConsumeAsync(String queueName, boolean autoAck, Consumer consumer) {
         // 先设置回调.
         if (this.consumer != null) {
             throw new MQException("该 channel 已经设置过消费消息的回调了, 不能重复设置!");
@@ -292,41 +378,23 @@ public class Channel {
         this.consumer = consumer;
 
         BasicConsumeArguments arguments = new BasicConsumeArguments();
-        arguments.setRid(generateRid());
-        arguments.setChannelId(channelId);
         arguments.setConsumerTag(channelId);  // 此处 consumerTag 也使用 channelId 来表示了.
         arguments.setQueueName(queueName);
         arguments.setAutoAck(autoAck);
-        byte[] payload = BinaryTool.toBytes(arguments);
-
-        Request request = new Request();
-        request.setType(0xa);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(arguments.getRid());
-        return basicReturns.isOk();
+        return send(0xa, arguments);
     }
 
     /**
      * 确认消息
      */
     public boolean basicAck(String queueName,String messageId) throws IOException {
+        return waitResult(basicAckAsync(queueName, messageId));
+    }
+
+    public CompletableFuture<Boolean> basicAckAsync(String queueName, String messageId) {
         BasicAckArguments arguments = new BasicAckArguments();
-        arguments.setRid(generateRid());
-        arguments.setChannelId(channelId);
         arguments.setQueueName(queueName);
         arguments.setMessageId(messageId);
-        byte[] payload = BinaryTool.toBytes(arguments);
-
-        Request request = new Request();
-        request.setType(0xb);
-        request.setLength(payload.length);
-        request.setPayload(payload);
-
-        connection.writeRequest(request);
-        BasicReturns basicReturns = waitResult(arguments.getRid());
-        return basicReturns.isOk();
+        return send(0xb, arguments);
     }
 }
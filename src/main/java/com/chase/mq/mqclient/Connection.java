@@ -1,11 +1,14 @@
 package com.chase.mq.mqclient;
 
 import com.chase.mq.common.dto.BasicReturns;
+import com.chase.mq.common.dto.ConnectionBlockedReturns;
+import com.chase.mq.common.dto.PublishConfirmReturns;
 import com.chase.mq.common.dto.Request;
 import com.chase.mq.common.dto.Response;
 import com.chase.mq.common.dto.SubScribeReturns;
-import com.chase.mq.common.server.BinaryTool;
 import com.chase.mq.common.server.MQException;
+import com.chase.mq.common.server.ThreadMode;
+import com.chase.mq.common.server.WireCodec;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -13,10 +16,14 @@ import lombok.NoArgsConstructor;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 一个连接
@@ -58,10 +65,30 @@ public class Connection {
     private DataInputStream dataInputStream;
 
     /**
-     * 引入线程池来处理回调请求
+     * 引入线程池来处理回调请求，虚拟线程模式下每个回调一个虚拟线程，参考 {@link ThreadMode}
      */
     private ExecutorService callbackPool = null;
 
+    /**
+     * 服务器是否阻塞了这个连接上持久化消息的发布（服务器硬盘空间不足）
+     */
+    private volatile boolean blocked = false;
+
+    /**
+     * 阻塞状态变化的监听器
+     */
+    private List<BlockedListener> blockedListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 和服务器协商出的协议版本
+     */
+    private int protocolVersion;
+
+    /**
+     * 发送请求的写锁，调用方可能是虚拟线程，不使用 synchronized
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
     /**
      * 连接构造方法，初始化连接之前需要做的事情
      */
@@ -70,10 +97,15 @@ public class Connection {
         inputStream = socket.getInputStream();
         outputStream = socket.getOutputStream();
         dataInputStream = new DataInputStream(inputStream);
-        dataOutputStream = new DataOutputStream(outputStream);
-        callbackPool = Executors.newFixedThreadPool(4);
+//        多个请求连续发送的时候先攒在缓冲区里，每个请求写完之后 flush 一次
+        dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+//        先和服务器握手协商协议版本，握手完成之前不启动读线程，直接同步读取握手响应
+        handshake();
+        ThreadMode threadMode = ThreadMode.load();
+        callbackPool = threadMode.newExecutor("mq-callback", 4);
 //        创建一个扫描消除，这个线程负责不停的从 socket 中读取响应数据，把这个响应数据在交给对应的 channel 负责处理
-        Thread t = new Thread(() -> {
+//        虚拟线程模式下这个线程也是虚拟线程，一个进程中可以保持大量的连接
+        Thread t = threadMode.newThread("mq-connection-reader", () -> {
             try{
                 while(!socket.isClosed()){
                     Response response = readResponse();
@@ -82,20 +114,45 @@ public class Connection {
             }catch (SocketException e){
                 // 连接正常断开的. 此时这个异常直接忽略.
                 System.out.println("[Connection] 连接正常断开!");
-            }catch (IOException | ClassNotFoundException | MQException e) {
+            }catch (IOException | MQException e) {
                 System.out.println("[Connection] 连接异常断开!");
                 e.printStackTrace();
+            }finally {
+//                读线程退出之后不会再有响应，还在等待响应的请求都以异常结束
+                failPendingRequests();
             }
         });
         t.start();
     }
 
+    /**
+     * 发送客户端支持的协议版本，读取服务器选出的版本，服务器不支持任何一个版本的时候关闭连接
+     */
+    private void handshake() throws IOException {
+        byte[] payload = WireCodec.encodeHello(WireCodec.SUPPORTED_VERSIONS);
+        Request request = new Request();
+        request.setType(WireCodec.HELLO);
+        request.setLength(payload.length);
+        request.setPayload(payload);
+        writeRequest(request);
+        Response response = readResponse();
+        if (response.getType() != WireCodec.HELLO)
+            throw new MQException("[Connection] 握手响应的类型错误! type = " + response.getType());
+        protocolVersion = WireCodec.decodeHelloOk(response.getPayload());
+        if (protocolVersion == 0) {
+            socket.close();
+            throw new MQException("[Connection] 服务器不支持客户端的协议版本! versions = " + Arrays.toString(WireCodec.SUPPORTED_VERSIONS));
+        }
+        System.out.println("[Connection] 握手完成! version = " + protocolVersion);
+    }
+
     /**
      * 关闭 Connection 并释放上述资源
      */
     public void close(){
         try{
             callbackPool.shutdownNow();
+            failPendingRequests();
             channelMap.clear();
             inputStream.close();
             outputStream.close();
@@ -105,6 +162,12 @@ public class Connection {
         }
     }
 
+    private void failPendingRequests() {
+        SocketException cause = new SocketException("[Connection] 连接已经关闭!");
+        for (Channel channel : channelMap.values())
+            channel.failPendingRequests(cause);
+    }
+
     /**
      * 读取响应
      */
@@ -115,11 +178,11 @@ public class Connection {
             response.setLength(dataInputStream.readInt());
         } catch (EOFException e){
             System.out.println("[Connection] 读取响应失败");
+            throw e;
         }
         byte[] payload = new byte[response.getLength()];
-        int n = dataInputStream.read(payload);
-        if(n != response.getLength())
-            throw new IOException("[Connection] 读取响应数据不完整");
+//        一个帧可能分多次到达，read 一次不一定能读完
+        dataInputStream.readFully(payload);
         response.setPayload(payload);
         System.out.println("[Connection] 收到响应！type = " + response.getType());
         return response;
@@ -128,10 +191,19 @@ public class Connection {
     /**
      * 使用这个方法来分别处理，当前响应是一个针对控制请求的响应，还是服务器推送的消息
      */
-    private void dispatchResponse(Response response) throws IOException, ClassNotFoundException {
-        if(response.getType() == 0xc){
+    private void dispatchResponse(Response response) throws IOException {
+        if(response.getType() == 0xd){
+//            服务器通知连接被阻塞或者恢复，不属于任何一个 channel
+            ConnectionBlockedReturns blockedReturns = WireCodec.decodeBlocked(response.getPayload());
+            blocked = blockedReturns.isBlocked();
+            System.out.println("[Connection] 连接" + (blocked ? "被阻塞! 原因：" + blockedReturns.getReason() : "已经恢复!"));
+            for (BlockedListener listener : blockedListeners)
+                callbackPool.submit(() -> listener.handleBlocked(blockedReturns.isBlocked(), blockedReturns.getReason()));
+        } else if(response.getType() == 0xc || response.getType() == 0xe){
 //            服务器推动过来的消息数据
-            SubScribeReturns subScribeReturns = (SubScribeReturns) BinaryTool.fromBytes(response.getPayload());
+            SubScribeReturns subScribeReturns = response.getType() == 0xc
+                    ? WireCodec.decodeSubscribe(response.getPayload(), 0, response.getLength(), true)
+                    : readDelivery(response.getPayload());
 //            根据 channelId 找到对应的 channel 对象
             Channel channel = channelMap.get(subScribeReturns.getChannelId());
             if(channel == null){
@@ -146,9 +218,16 @@ public class Connection {
                     e.printStackTrace();
                 }
             });
+        } else if(response.getType() == 0x10){
+//            发布确认模式下服务器对发布的消息的确认
+            PublishConfirmReturns confirmReturns = WireCodec.decodeConfirm(response.getPayload());
+            Channel channel = channelMap.get(confirmReturns.getChannelId());
+            if (channel == null)
+                throw new MQException("[Connection] 该确认对应的 channel 在客户端中不存在! channelId=" + confirmReturns.getChannelId());
+            channel.putConfirm(confirmReturns);
         } else {
 //            当前响应是针对之前的控制请求的响应
-            BasicReturns basicReturns = (BasicReturns) BinaryTool.fromBytes(response.getPayload());
+            BasicReturns basicReturns = WireCodec.decodeReturns(response.getPayload());
 //            把这个结果放到对应 channel 的 hash 表中
             Channel channel = channelMap.get(basicReturns.getChannelId());
             if (channel == null) {
@@ -159,16 +238,40 @@ public class Connection {
     }
 
     /**
-     * 发送请求
+     * 解析零拷贝投递的消息：元数据长度(4 字节) + 元数据（编码后的 SubScribeReturns） + 消息体
+     */
+    private SubScribeReturns readDelivery(byte[] payload) throws IOException {
+        int metaLength = ByteBuffer.wrap(payload).getInt();
+        if(metaLength < 0 || 4 + metaLength > payload.length)
+            throw new IOException("[Connection] 投递消息的格式错误! metaLength=" + metaLength);
+        SubScribeReturns subScribeReturns = WireCodec.decodeSubscribe(payload, 4, metaLength, false);
+        subScribeReturns.setBody(Arrays.copyOfRange(payload, 4 + metaLength, payload.length));
+        return subScribeReturns;
+    }
+
+    /**
+     * 发送请求，多个线程可能同时在同一个连接上发送请求（异步接口），写一个完整的帧期间持有写锁，帧之间不会交错
      */
     public void writeRequest(Request request) throws IOException {
-        dataOutputStream.writeInt(request.getType());
-        dataOutputStream.writeInt(request.getLength());
-        dataOutputStream.write(request.getPayload());
-        dataOutputStream.flush();
+        writeLock.lock();
+        try {
+            dataOutputStream.writeInt(request.getType());
+            dataOutputStream.writeInt(request.getLength());
+            dataOutputStream.write(request.getPayload());
+            dataOutputStream.flush();
+        } finally {
+            writeLock.unlock();
+        }
         System.out.println("[Connection] 发送请求! type=" + request.getType() + ", length=" + request.getLength());
     }
 
+    /**
+     * 注册连接阻塞状态的监听器
+     */
+    public void addBlockedListener(BlockedListener listener) {
+        blockedListeners.add(listener);
+    }
+
     /**
      * 在 connection 中创建出一个 channel
      */
@@ -2,25 +2,35 @@ package com.chase.mq.mqserver;
 
 
 import com.chase.mq.common.dto.*;
-import com.chase.mq.common.server.BinaryTool;
-import com.chase.mq.common.server.Consumer;
 import com.chase.mq.common.server.MQException;
+import com.chase.mq.common.server.ThreadMode;
+import com.chase.mq.common.server.WireCodec;
 import com.chase.mq.mqserver.core.BasicProperties;
+import com.chase.mq.mqserver.core.MessageBody;
+import com.chase.mq.mqserver.core.ZeroCopyConsumer;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * 这个 BrokerServer 就是消息队列本体服务器
  * 本纸上就是一个 TCP 服务器
+ * 网络传输使用非阻塞 I/O：接收到的连接平均分配给少量的事件循环线程（参考 {@link EventLoop}），
+ * 事件循环把读到的数据拆分成完整的请求帧，再交给工作线程池调用 {@link #process}，
+ * 空闲的连接不占用线程，一个 broker 可以同时保持数万个连接
  */
 public class BrokerServer {
 
@@ -36,15 +46,46 @@ public class BrokerServer {
 
     /**
      * 使用这个来代替一个 connection 中存在的多个 channel （也就是说有哪些客户端正在和服务器通讯）
-     * 此处的 key 是 channelId，value 为对应的 Socket 对象
+     * 此处的 key 是 channelId，value 为对应的连接
      */
-    private ConcurrentHashMap<String, Socket> sessions = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, ClientConnection> sessions = new ConcurrentHashMap<>();
 
     /**
-     * 引入一个线程池，来处理多个客户端请求
+     * 开启了发布确认模式的 channel，value 是这个 channel 上最后一条已经分配了确认序号的消息的序号
+     * 只在处理这个 channel 所在连接的请求的线程中修改
+     */
+    private ConcurrentHashMap<String, Long> confirmSequences = new ConcurrentHashMap<>();
+
+    /**
+     * 每个连接还没有发送出去的最新一次阻塞通知，发送期间又有新的通知时直接替换，只发送最新的状态
+     */
+    private final ConcurrentHashMap<ClientConnection, ConnectionBlockedReturns> blockedNotices = new ConcurrentHashMap<>();
+
+    /**
+     * 引入一个线程池，来处理多个客户端请求，只有正在处理请求的连接才占用线程
      */
     private ExecutorService executorService = null;
 
+    /**
+     * 处理请求的线程池使用平台线程还是虚拟线程
+     */
+    private final ThreadMode threadMode;
+
+    /**
+     * 默认的事件循环线程数
+     */
+    public static final int DEFAULT_IO_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * 事件循环线程，接收到的连接轮流分配给它们
+     */
+    private final EventLoop[] eventLoops;
+
+    /**
+     * 下一个连接分配给哪个事件循环
+     */
+    private int nextLoop = 0;
+
     /**
      * 引入 boolean 变量控制服务器是否继续运行
      */
@@ -55,7 +96,33 @@ public class BrokerServer {
      * @param port 指定运行端口
      */
     public BrokerServer(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
+        this(port, DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * @param port 指定运行端口
+     * @param ioThreads 事件循环线程数
+     */
+    public BrokerServer(int port, int ioThreads) throws IOException {
+        this(port, ioThreads, ThreadMode.load());
+    }
+
+    /**
+     * @param port 指定运行端口
+     * @param ioThreads 事件循环线程数
+     * @param threadMode 处理请求的线程池使用的线程
+     */
+    public BrokerServer(int port, int ioThreads, ThreadMode threadMode) throws IOException {
+        this.threadMode = threadMode;
+//        通过 ServerSocketChannel 创建，这样接收到的 socket 都带有 SocketChannel，可以注册到 Selector 上，投递消息时也可以用 transferTo 零拷贝发送
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(port));
+        serverSocket = serverSocketChannel.socket();
+        eventLoops = new EventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < eventLoops.length; i++)
+            eventLoops[i] = new EventLoop("mq-event-loop-" + i);
+//        硬盘空间不足或者恢复的时候，通知所有连接
+        virtualHost.getDiskDataCenter().addDiskListener(this::notifyBlocked);
     }
 
     /**
@@ -63,15 +130,53 @@ public class BrokerServer {
      */
     public void start() throws IOException{
         System.out.println("[BrokerServer] 启动！");
-        executorService = Executors.newCachedThreadPool();
+//        虚拟线程模式下每个请求批次一个虚拟线程，阻塞在 fsync 或者等待硬盘空间上的请求不占用平台线程
+        executorService = threadMode.newExecutor("mq-worker", 0);
+        for (EventLoop eventLoop : eventLoops)
+            eventLoop.start();
+        ClientConnection.Handler handler = new ClientConnection.Handler() {
+            @Override
+            public void handle(ClientConnection connection, List<Request> requests) throws IOException {
+//                发布确认模式的 channel 上连续到达的消息攒成一批，一起发布，一起确认
+                List<BasicPublishArguments> confirmBatch = new ArrayList<>();
+                for (Request request : requests) {
+//                    连接上的第一个请求必须是握手请求，协商出协议版本之后才能处理其他请求
+                    if (connection.getProtocolVersion() == 0) {
+                        handshake(request, connection);
+                        continue;
+                    }
+                    BasicArguments basicArguments = WireCodec.decodeArguments(request.getType(), request.getPayload(), request.getLength());
+                    if (request.getType() == 0x9 && confirmSequences.containsKey(basicArguments.getChannelId())) {
+                        confirmBatch.add((BasicPublishArguments) basicArguments);
+                        continue;
+                    }
+//                    其他请求要看到前面的消息已经发布完成，先把攒下的消息处理掉
+                    publishConfirmed(connection, confirmBatch);
+                    connection.write(process(request, basicArguments, connection));
+                }
+                publishConfirmed(connection, confirmBatch);
+            }
+
+            @Override
+            public void onClosed(ClientConnection connection) {
+//                一个 TCP 连接，可能包含多个 channel
+//                因此需要把当前这个连接对应的所有 channel 也顺便清理完
+                clearClosedSession(connection);
+            }
+        };
         try{
             while(runnable){
                 Socket clientSocket = serverSocket.accept();
-//                把处理连接的逻辑放在这个线程池中
-                System.out.println("[BrokerServer] 接收到请求");
-                executorService.submit(() -> {
-                    processConnection(clientSocket);
-                });
+//                把连接交给一个事件循环，有完整的请求时再交给线程池处理
+                System.out.println("[BrokerServer] 接收到连接! 客户端的地址: " + clientSocket.getRemoteSocketAddress());
+                try {
+                    ClientConnection connection = new ClientConnection(clientSocket.getChannel(), handler, executorService);
+                    eventLoops[nextLoop].register(connection);
+                    nextLoop = (nextLoop + 1) % eventLoops.length;
+                } catch (IOException e) {
+                    System.out.println("[BrokerServer] 接收连接失败! 错误原因：" + e.getMessage());
+                    clientSocket.close();
+                }
             }
         }catch (SocketException e){
             System.out.println("[BrokerServer] 服务器停止运行！");
@@ -84,87 +189,56 @@ public class BrokerServer {
      */
     public void stop() throws IOException {
         runnable = false;
+        for (EventLoop eventLoop : eventLoops)
+            eventLoop.shutdown();
 //        把线程池中的任务放弃，让线程都销毁
         executorService.shutdownNow();
         serverSocket.close();
     }
 
     /**
-     * 通过这个方法，来处理一个客户端的连接
-     * 在这一个连接中可能会涉及到多个请求和响应
-     * 由于这里需要按照指定格式来读取，所以需要使用到 DataInputStream /DataOutputStream
-     * 来读取指定长度
-     * 1，读取请求并指定长度
-     * 2，根据请求计算响应
-     * 3，把响应写回客户端
-     * @param clientSocket 一个客户端连接
-     */
-    private void processConnection(Socket clientSocket) {
-        try(InputStream inputStream = clientSocket.getInputStream();
-            OutputStream outputStream = clientSocket.getOutputStream()){
-            try (DataInputStream dataInputStream = new DataInputStream(inputStream);
-                 DataOutputStream dataOutputStream = new DataOutputStream(outputStream)){
-                while(true){
-                    Request request = readRequest(dataInputStream);
-                    Response response = process(request,clientSocket);
-                    writeResponse(dataOutputStream, response);
-                }
-            }
-        }catch (EOFException | SocketException exception){
-            System.out.println("[BrokerServer] connection 关闭! 客户端的地址: " + clientSocket.getInetAddress().toString()
-                    + ":" + clientSocket.getPort());
-        }catch (IOException | ClassNotFoundException | MQException exception){
-            System.out.println("[BrokerServer] connection 出现异常! 错误原因： "+exception.getMessage());
-        }finally {
-            try{
-//                当前连接处理完，关闭 socket
-                clientSocket.close();
-//                一个 TCP 连接，可能包含多个 channel
-//                因此需要把当前这个 socket 对应的所有 channel 也顺便清理完
-                clearClosedSession(clientSocket);
-            }catch (IOException e){
-                System.out.println("[BrokerServer] connection 关闭异常！错误原因 : " + e.getMessage());
-            }
-        }
-    }
-
-    /**
-     * 读取请求并指定长度
+     * 处理握手请求，从客户端支持的版本中选出服务器也支持的最高版本，写回给客户端
+     * 没有共同支持的版本时写回版本 0 并断开连接
      */
-    private Request readRequest(DataInputStream dataInputStream) throws IOException, ClassNotFoundException {
-        System.out.println("[BrokerServer] 读取到请求");
-        Request request = new Request();
-        request.setType(dataInputStream.readInt());
-        request.setLength(dataInputStream.readInt());
-        byte[] payload = new byte[request.getLength()];
-        Object o = BinaryTool.fromBytes(payload);
-        System.out.println("[BrokerServer] payload = " + o.toString());
-        int n = dataInputStream.read(payload);
-        if(n != request.getLength())
-            throw new IOException("[BrokerServer] 读取请求格式出错！");
-        request.setPayload(payload);
-        return request;
+    private void handshake(Request request, ClientConnection connection) throws IOException {
+        if (request.getType() != WireCodec.HELLO)
+            throw new MQException("[BrokerServer] 连接还没有握手! type = " + request.getType() + ", 客户端的地址: " + connection.getRemoteAddress());
+        short version = WireCodec.negotiate(request.getPayload(), request.getLength());
+        byte[] payload = WireCodec.encodeHelloOk(version);
+        Response response = new Response();
+        response.setType(WireCodec.HELLO);
+        response.setLength(payload.length);
+        response.setPayload(payload);
+        connection.write(response);
+        if (version == 0)
+            throw new MQException("[BrokerServer] 没有和客户端共同支持的协议版本! 客户端的地址: " + connection.getRemoteAddress());
+        connection.setProtocolVersion(version);
+        System.out.println("[BrokerServer] 握手完成! version = " + version + ", 客户端的地址: " + connection.getRemoteAddress());
     }
 
     /**
      * 根据请求计算响应
      * @see com.chase.mq.common.dto.Request
+     * @see WireCodec
      */
-    private Response process(Request request, Socket clientSocket) throws IOException, ClassNotFoundException {
+    private Response process(Request request, BasicArguments basicArguments, ClientConnection connection) throws IOException {
         System.out.println("[BrokerServer] 根据请求计算响应");
-//        1，把 request 中的 payload 做个初步解析
-        BasicArguments basicArguments = (BasicArguments) BinaryTool.fromBytes(request.getPayload());
+//        1，request 中的 payload 已经按照 type 解析成对应的参数
         System.out.println("[Request] rid = " + basicArguments.getRid() + ", channelId = " + basicArguments.getChannelId()
         + ", type = " + request.getType() + ",length = " + request.getLength());
 //        2，根据 type 值，来进一步区分接下来这次请求要干嘛
         boolean ok = true;
         if(request.getType() == 0x1) {
 //            创建 channel
-            sessions.put(basicArguments.getChannelId(), clientSocket);
+            sessions.put(basicArguments.getChannelId(), connection);
             System.out.println("[BrokerServer] 创建 channel 完成! channelId= " + basicArguments.getChannelId());
+//            已经处于阻塞状态的时候，新的连接也要知道
+            if (virtualHost.getDiskDataCenter().isDiskBlocked())
+                writeBlocked(connection, blockedNotice(true, "硬盘剩余空间不足!"));
         } else if (request.getType() == 0x2) {
 //            销毁 channel
             sessions.remove(basicArguments.getChannelId());
+            confirmSequences.remove(basicArguments.getChannelId());
             System.out.println("[BrokerServer] 销毁 channel 完成! channelId= " + basicArguments.getChannelId());
         } else if (request.getType() == 0x3) {
 //            创建交换机，此时 payload 就是 ExchangeDeclareArguments 对象
@@ -200,40 +274,50 @@ public class BrokerServer {
 //            订阅消息 -> 服务端如果接受到某个客户端的订阅之后要将该队列的消息推送给指定客户端
             BasicConsumeArguments arguments = (BasicConsumeArguments) basicArguments;
             ok = virtualHost.basicConsume(arguments.getConsumerTag(), arguments.getQueueName(), arguments.isAutoAck(),
-                    new Consumer() {
+                    new ZeroCopyConsumer() {
 //                            这个回调函数要做的就是把服务器收到的消息直接推送回对应的客户端
                         @Override
                         public void handleDelivery(String consumerTag, BasicProperties basicProperties, byte[] body) throws IOException {
 //                            先知道当前这个收到的消息，要发送给哪个客户端
-//                            这里的 consumerTag 就是 channelId ，根据 channelId 去 sessions 中查询对应 socket 对象，再往这个里面写东西就行了
-//                            1,根据 channelId 找到 socket 对象
-                            Socket socket = sessions.get(consumerTag);
-                            if(socket == null || socket.isClosed())
+//                            这里的 consumerTag 就是 channelId ，根据 channelId 去 sessions 中查询对应的连接，再往这个里面写东西就行了
+//                            1,根据 channelId 找到连接
+                            ClientConnection client = sessions.get(consumerTag);
+                            if(client == null || client.isClosed())
                                 throw new MQException("[BrokerServer] 订阅消息的客户端已经关闭！");
 //                            2,构造响应数据
                             SubScribeReturns subScribeReturns = new SubScribeReturns();
                             subScribeReturns.setChannelId(consumerTag);
-                            subScribeReturns.setRid(""); // 由于这里只有响应, 没有请求, 不需要去对应. rid 暂时不需要.
+                            subScribeReturns.setRid(0); // 由于这里只有响应, 没有请求, 不需要去对应. rid 固定为 0.
                             subScribeReturns.setOk(true);
                             subScribeReturns.setConsumerTag(consumerTag);
                             subScribeReturns.setBasicProperties(basicProperties);
                             subScribeReturns.setBody(body);
-                            byte[] payload = BinaryTool.toBytes(subScribeReturns);
+                            byte[] payload = WireCodec.encodeSubscribe(subScribeReturns, true);
                             Response response = new Response();
                             response.setType(0xc);
                             response.setLength(payload.length);
                             response.setPayload(payload);
-//                            把数据写回客户端
-//                            注意！此处的 dataOutputStream 这个对象不能 close
-//                            如果把 dataOutputStream 关闭，就会直接把 clientSocket 里的 outputStream 关闭
-                            DataOutputStream dataOutputStream = new DataOutputStream(clientSocket.getOutputStream());
-                            writeResponse(dataOutputStream,response);
+//                            把数据写回客户端，写一个完整的帧期间持有连接的写锁，不会和其他响应交错
+                            client.write(response);
+                        }
+
+//                        持久化消息走这里：消息体不序列化，直接从段文件发送到 socket
+                        @Override
+                        public void handleDelivery(String consumerTag, BasicProperties basicProperties, MessageBody body) throws IOException {
+                            ClientConnection client = sessions.get(consumerTag);
+                            if(client == null || client.isClosed())
+                                throw new MQException("[BrokerServer] 订阅消息的客户端已经关闭！");
+                            writeDelivery(client, consumerTag, basicProperties, body);
                         }
                     });
         } else if (request.getType() == 0xb) {
 //            调用 basicAck 确认消息
             BasicAckArguments arguments = (BasicAckArguments) basicArguments;
             ok = virtualHost.basicAck(arguments.getQueueName(),arguments.getMessageId());
+        } else if (request.getType() == 0xf) {
+//            开启发布确认模式，重复开启不会重置序号
+            confirmSequences.putIfAbsent(basicArguments.getChannelId(), 0L);
+            System.out.println("[BrokerServer] channel 开启发布确认模式! channelId= " + basicArguments.getChannelId());
         }else {
 //            当前 type 是非法的
             throw new MQException("[BrokerServer] 未知的 type！type = " + request.getType());
@@ -243,7 +327,7 @@ public class BrokerServer {
         basicReturns.setChannelId(basicArguments.getChannelId());
         basicReturns.setRid(basicArguments.getRid());
         basicReturns.setOk(ok);
-        byte[] payload = BinaryTool.toBytes(basicReturns);
+        byte[] payload = WireCodec.encodeReturns(basicReturns);
         Response response = new Response();
         response.setType(request.getType());
         response.setLength(payload.length);
@@ -254,32 +338,130 @@ public class BrokerServer {
     }
 
     /**
-     * 把响应写回客户端
+     * 发布一批发布确认模式下的消息，全部处理完成（持久化消息完成组提交）之后再发送确认：
+     * 失败的消息逐条发送 ok = false 的确认，最后每个 channel 发送一次累积确认，确认到这一批中这个 channel 的最后一条消息
+     * 确认的序号按照消息到达的顺序分配，和客户端发送的顺序一致
      */
-    private void writeResponse(DataOutputStream dataOutputStream, Response response) throws IOException {
-        System.out.println("写回响应中");
-        dataOutputStream.writeInt(response.getType());
-        dataOutputStream.writeInt(response.getLength());
-        dataOutputStream.write(response.getPayload());
-//        注意！需要刷新缓冲区才能及时把消息发出去！！！
-        dataOutputStream.flush();
+    private void publishConfirmed(ClientConnection connection, List<BasicPublishArguments> batch) throws IOException {
+        if (batch.isEmpty()) return;
+        List<Boolean> results = virtualHost.basicPublishBatch(batch);
+        Map<String, Long> lastSequences = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            String channelId = batch.get(i).getChannelId();
+            Long sequence = confirmSequences.computeIfPresent(channelId, (k, v) -> v + 1);
+            if (sequence == null) continue;
+            if (!results.get(i)) writeConfirm(connection, channelId, sequence, false, false);
+            lastSequences.put(channelId, sequence);
+        }
+        for (Map.Entry<String, Long> entry : lastSequences.entrySet())
+            writeConfirm(connection, entry.getKey(), entry.getValue(), true, true);
+        System.out.println("[BrokerServer] 批量发布完成! count=" + batch.size() + ", confirms=" + lastSequences);
+        batch.clear();
+    }
+
+    private void writeConfirm(ClientConnection connection, String channelId, long sequence, boolean multiple, boolean ok) throws IOException {
+        PublishConfirmReturns confirmReturns = new PublishConfirmReturns();
+        confirmReturns.setChannelId(channelId);
+        confirmReturns.setRid(0);
+        confirmReturns.setOk(ok);
+        confirmReturns.setSequence(sequence);
+        confirmReturns.setMultiple(multiple);
+        byte[] payload = WireCodec.encodeConfirm(confirmReturns);
+        Response response = new Response();
+        response.setType(0x10);
+        response.setLength(payload.length);
+        response.setPayload(payload);
+        connection.write(response);
+    }
+
+    /**
+     * 零拷贝推送一条消息，帧格式：
+     * type(4 字节，0xe) + length(4 字节) + 元数据长度(4 字节) + 元数据（编码后的 SubScribeReturns，不含消息体） + 消息体
+     * length 是元数据长度字段、元数据和消息体的总长度，客户端可以和其他响应一样按 length 读取整个帧
+     * 帧头和元数据直接写出，消息体通过 FileChannel.transferTo 从段文件直接发送到 socket
+     */
+    private void writeDelivery(ClientConnection connection, String consumerTag, BasicProperties basicProperties, MessageBody body) throws IOException {
+        SubScribeReturns subScribeReturns = new SubScribeReturns();
+        subScribeReturns.setChannelId(consumerTag);
+        subScribeReturns.setRid(0);
+        subScribeReturns.setOk(true);
+        subScribeReturns.setConsumerTag(consumerTag);
+        subScribeReturns.setBasicProperties(basicProperties);
+        byte[] meta = WireCodec.encodeSubscribe(subScribeReturns, false);
+        connection.write(0xe, meta, body);
+    }
+
+    /**
+     * 硬盘空间不足导致阻塞或者恢复的时候，给每个连接发送一次 0xd 通知
+     * 同一个连接上的多个 channel 共用一个 socket，只发送一次
+     * 这里在存储的定时器线程中调用，只登记通知，由工作线程池发送：写一个卡住的连接可能一直等待可写，
+     * 不能让定时器线程（还负责检查硬盘空间、定时刷盘和写检查点）跟着卡住
+     */
+    private void notifyBlocked(boolean blocked, String reason) {
+        ExecutorService workers = executorService;
+        if (workers == null) return;
+        ConnectionBlockedReturns blockedReturns = blockedNotice(blocked, reason);
+        Set<ClientConnection> connections = Collections.newSetFromMap(new IdentityHashMap<>());
+        connections.addAll(sessions.values());
+        for (ClientConnection connection : connections) {
+//            这个连接已经有发送任务的时候只替换通知，由那个任务接着发送最新的状态
+            if (blockedNotices.put(connection, blockedReturns) == null)
+                workers.execute(() -> sendBlockedNotices(connection));
+        }
+    }
+
+    /**
+     * 在工作线程中发送一个连接上登记的阻塞通知，直到没有新的通知为止
+     */
+    private void sendBlockedNotices(ClientConnection connection) {
+        while (true) {
+            ConnectionBlockedReturns blockedReturns = blockedNotices.get(connection);
+            if (blockedReturns == null) return;
+            try {
+                writeBlocked(connection, blockedReturns);
+            } catch (IOException e) {
+                System.out.println("[BrokerServer] 发送阻塞通知失败! 错误原因：" + e.getMessage());
+                blockedNotices.remove(connection);
+                return;
+            }
+            if (blockedNotices.remove(connection, blockedReturns)) return;
+        }
+    }
+
+    private static ConnectionBlockedReturns blockedNotice(boolean blocked, String reason) {
+        ConnectionBlockedReturns blockedReturns = new ConnectionBlockedReturns();
+        blockedReturns.setBlocked(blocked);
+        blockedReturns.setReason(reason);
+        return blockedReturns;
+    }
+
+    private void writeBlocked(ClientConnection connection, ConnectionBlockedReturns blockedReturns) throws IOException {
+        if (connection.isClosed()) return;
+        byte[] payload = WireCodec.encodeBlocked(blockedReturns);
+        Response response = new Response();
+        response.setType(0xd);
+        response.setLength(payload.length);
+        response.setPayload(payload);
+        connection.write(response);
     }
 
     /**
-     * 把当前 socket 对应所有的 channel 也顺便清理
+     * 把当前连接对应所有的 channel 也顺便清理
      */
-    private void clearClosedSession(Socket clientSocket) {
-//        这里主要就是遍历上述的 sessions hash 表，把应该被关闭的 socket 对应的键值对删掉
+    private void clearClosedSession(ClientConnection connection) {
+//        这里主要就是遍历上述的 sessions hash 表，把应该被关闭的连接对应的键值对删掉
         List<String> toDeleteChannelId = new ArrayList<>();
-        for(Map.Entry<String,Socket> entry : sessions.entrySet()){
-            if(entry.getValue() == clientSocket){
+        for(Map.Entry<String,ClientConnection> entry : sessions.entrySet()){
+            if(entry.getValue() == connection){
 //                不能一边遍历一遍删除，将需要删除的保存起来放在链表中统一删除
                 toDeleteChannelId.add(entry.getKey());
             }
         }
         for (String channelId : toDeleteChannelId) {
             sessions.remove(channelId);
+            confirmSequences.remove(channelId);
         }
+        blockedNotices.remove(connection);
         System.out.println("[BrokerServer] 清理 session 完成！ 被清理的 channelId = " + toDeleteChannelId);
     }
 }
@@ -0,0 +1,388 @@
+package com.chase.mq.mqserver;
+
+import com.chase.mq.common.dto.Request;
+import com.chase.mq.common.dto.Response;
+import com.chase.mq.mqserver.core.MessageBody;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 服务器上的一个客户端连接（非阻塞的 SocketChannel）
+ * 读：由所属的 {@link EventLoop} 线程读取数据，按照 type(4 字节) + length(4 字节) + payload 拆分成完整的请求帧，
+ *     载荷的数组从 {@link FrameBufferPool} 借出，这批请求处理完之后归还
+ *     请求按照到达的顺序交给工作线程池处理，同一个连接上同一时刻只有一个请求在处理，保证请求之间的顺序
+ *     等待处理的请求太多的时候暂停读取这个连接，处理完一半之后再恢复，发送过快的客户端不会把请求无限堆积在内存中
+ * 写：由处理请求或者投递消息的线程直接写到 socket 中，写的时候持有写锁，保证一个帧不会和别的帧交错
+ *     帧头写在连接上复用的缓冲区中，和载荷一起通过一次 gathering write 写出，不再为每个响应拼出一个完整的帧
+ *     socket 的发送缓冲区满了的时候，写线程等待事件循环通知连接重新可写，不会空转
+ * 写线程可能是虚拟线程（参考 {@link com.chase.mq.common.server.ThreadMode}），等待写锁和等待可写都使用 ReentrantLock，不会占住平台线程
+ */
+class ClientConnection {
+
+    /**
+     * 帧头长度：type(4 字节) + length(4 字节)
+     */
+    static final int FRAME_HEADER_SIZE = 8;
+
+    /**
+     * 一个请求帧载荷的最大长度，超过这个长度说明数据错乱或者是恶意的客户端，直接断开连接
+     */
+    static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * 一个连接上等待处理的请求达到这个个数的时候暂停读取
+     */
+    static final int MAX_PENDING_REQUESTS = 64;
+
+    /**
+     * 连接上的请求处理和关闭的回调，由 BrokerServer 实现
+     */
+    interface Handler {
+        /**
+         * 处理一批请求，按照到达的顺序排列，一起交给处理方的请求可以合并处理（例如发布确认模式下的消息合并到同一次组提交中）
+         */
+        void handle(ClientConnection connection, List<Request> requests) throws IOException;
+
+        void onClosed(ClientConnection connection);
+    }
+
+    @Getter
+    private final SocketChannel channel;
+
+    /**
+     * 客户端的地址，用于打印日志
+     */
+    @Getter
+    private final String remoteAddress;
+
+    private final Handler handler;
+
+    /**
+     * 处理请求的工作线程池
+     */
+    private final Executor workers;
+
+    private EventLoop loop;
+
+    private SelectionKey key;
+
+    /**
+     * 当前帧的帧头，只在事件循环线程中访问
+     */
+    private final ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+
+    /**
+     * 正在读取的请求，帧头已经读完，载荷还没读完，只在事件循环线程中访问
+     */
+    private Request reading;
+
+    private int payloadRead;
+
+    /**
+     * 已经读完、等待处理的请求，同时也作为锁对象
+     */
+    private final ArrayDeque<Request> inbox = new ArrayDeque<>();
+
+    /**
+     * 是否已经有工作线程在处理这个连接的请求
+     */
+    private boolean processing = false;
+
+    /**
+     * 是否因为等待处理的请求太多暂停了读取
+     */
+    private volatile boolean readPaused = false;
+
+    /**
+     * 是否有写线程在等待连接可写，只在事件循环线程中访问
+     */
+    private boolean writeWaiting = false;
+
+    /**
+     * 写锁，一个帧的所有数据写完之前其他线程不能写
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * 写出帧头用的缓冲区，由写锁保护，零拷贝推送还要写一个元数据长度，所以多留 4 字节
+     */
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE + 4);
+
+    /**
+     * 保护可写状态和关闭状态的锁，写线程在它的条件变量上等待连接可写
+     */
+    private final ReentrantLock stateLock = new ReentrantLock();
+
+    private final Condition writableCondition = stateLock.newCondition();
+
+    /**
+     * 事件循环通知的可写状态，由 stateLock 保护
+     */
+    private boolean writable = true;
+
+    private volatile boolean closed = false;
+
+    /**
+     * 握手时协商出的协议版本，0 表示还没有握手，只在处理请求的工作线程中访问
+     */
+    @Getter
+    @Setter
+    private int protocolVersion = 0;
+
+    ClientConnection(SocketChannel channel, Handler handler, Executor workers) throws IOException {
+        this.channel = channel;
+        this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+        this.handler = handler;
+        this.workers = workers;
+        channel.configureBlocking(false);
+    }
+
+    /**
+     * 注册到事件循环之后由事件循环线程调用
+     */
+    void attach(EventLoop loop, SelectionKey key) {
+        this.loop = loop;
+        this.key = key;
+        if (closed) key.cancel();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 连接可读，由事件循环线程调用，读缓冲区是事件循环线程共用的，返回之前必须把其中的数据全部取走
+     */
+    void onReadable(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        int n;
+        try {
+            n = channel.read(readBuffer);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            System.out.println("[BrokerServer] connection 关闭! 客户端的地址: " + remoteAddress);
+            close();
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            if (reading == null) {
+                while (header.hasRemaining() && readBuffer.hasRemaining()) header.put(readBuffer.get());
+                if (header.hasRemaining()) return;
+                header.flip();
+                int type = header.getInt();
+                int length = header.getInt();
+                header.clear();
+                if (length < 0 || length > MAX_FRAME_LENGTH) {
+                    System.out.println("[BrokerServer] 读取请求格式出错！length=" + length + ", 客户端的地址: " + remoteAddress);
+                    close();
+                    return;
+                }
+                reading = new Request();
+                reading.setType(type);
+                reading.setLength(length);
+                reading.setPayload(FrameBufferPool.acquire(length));
+                payloadRead = 0;
+            }
+            int count = Math.min(readBuffer.remaining(), reading.getLength() - payloadRead);
+            readBuffer.get(reading.getPayload(), payloadRead, count);
+            payloadRead += count;
+            if (payloadRead == reading.getLength()) {
+                dispatch(reading);
+                reading = null;
+            }
+        }
+    }
+
+    /**
+     * 把一个完整的请求放到待处理队列中，没有工作线程在处理这个连接的时候提交一个
+     */
+    private void dispatch(Request request) {
+        synchronized (inbox) {
+            inbox.add(request);
+            if (inbox.size() >= MAX_PENDING_REQUESTS && !readPaused) {
+                readPaused = true;
+                updateInterest();
+            }
+            if (processing) return;
+            processing = true;
+        }
+        workers.execute(this::drain);
+    }
+
+    /**
+     * 在工作线程中按顺序处理待处理队列中的请求，每次取走队列中已有的全部请求作为一批，队列空了就退出
+     */
+    private void drain() {
+        while (true) {
+            List<Request> requests = new ArrayList<>();
+            synchronized (inbox) {
+//                上一批请求已经处理完了，还没处理的请求降到一半以下的时候才恢复读取
+                if (readPaused && inbox.size() <= MAX_PENDING_REQUESTS / 2)
+                    loop.execute(this::resumeReading);
+                if (!closed) {
+                    requests.addAll(inbox);
+                    inbox.clear();
+                }
+                if (requests.isEmpty()) {
+                    processing = false;
+                    return;
+                }
+            }
+            try {
+                handler.handle(this, requests);
+            } catch (IOException | RuntimeException e) {
+//                包括 MQException 在内的任何运行时异常都要关闭连接，否则 processing 一直是 true，这个连接上的请求再也不会被处理
+                System.out.println("[BrokerServer] connection 出现异常! 错误原因： " + e.getMessage());
+                close();
+            } finally {
+//                请求的参数在处理的时候已经从载荷中解码并复制出来了，载荷可以归还
+                for (Request request : requests)
+                    FrameBufferPool.release(request.getPayload());
+            }
+        }
+    }
+
+    private void resumeReading() {
+        synchronized (inbox) {
+            if (!readPaused) return;
+            readPaused = false;
+        }
+        updateInterest();
+    }
+
+    /**
+     * 根据当前的状态设置关注的事件，只在事件循环线程中调用
+     */
+    private void updateInterest() {
+        if (key == null || !key.isValid()) return;
+        key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writeWaiting ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * 连接重新可写，由事件循环线程调用，唤醒等待的写线程
+     */
+    void onWritable() {
+        writeWaiting = false;
+        updateInterest();
+        stateLock.lock();
+        try {
+            writable = true;
+            writableCondition.signalAll();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * 发送缓冲区满了，让事件循环关注可写事件，等到连接可写或者关闭
+     */
+    private void awaitWritable() throws IOException {
+        stateLock.lock();
+        try {
+            writable = false;
+        } finally {
+            stateLock.unlock();
+        }
+        loop.execute(() -> {
+            writeWaiting = true;
+            updateInterest();
+        });
+        stateLock.lock();
+        try {
+            while (!writable && !closed) writableCondition.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("[BrokerServer] 等待连接可写时被中断!");
+        } finally {
+            stateLock.unlock();
+        }
+        if (closed) throw new SocketException("[BrokerServer] 连接已经关闭! 客户端的地址: " + remoteAddress);
+    }
+
+    private void writeFully(ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) remaining += buffer.remaining();
+        while (remaining > 0) {
+            long n = channel.write(buffers);
+            if (n == 0) awaitWritable();
+            remaining -= n;
+        }
+    }
+
+    /**
+     * 把一个响应写回客户端
+     */
+    void write(Response response) throws IOException {
+        writeLock.lock();
+        try {
+            frameHeader.clear();
+            frameHeader.putInt(response.getType());
+            frameHeader.putInt(response.getLength());
+            frameHeader.flip();
+            writeFully(frameHeader, ByteBuffer.wrap(response.getPayload(), 0, response.getLength()));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 先写出帧头和元数据，再把消息体直接从段文件发送到 socket（零拷贝）
+     * 帧格式：type(4 字节) + length(4 字节) + 元数据长度(4 字节) + 元数据 + 消息体
+     */
+    void write(int type, byte[] meta, MessageBody body) throws IOException {
+        writeLock.lock();
+        try {
+            frameHeader.clear();
+            frameHeader.putInt(type);
+            frameHeader.putInt(4 + meta.length + body.length());
+            frameHeader.putInt(meta.length);
+            frameHeader.flip();
+            writeFully(frameHeader, ByteBuffer.wrap(meta));
+            long sent = 0;
+            while (sent < body.length()) {
+                long n = body.transferTo(sent, channel);
+                if (n == 0) awaitWritable();
+                sent += n;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 关闭连接，唤醒等待可写的写线程，丢弃还没有处理的请求
+     */
+    void close() {
+        stateLock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            writableCondition.signalAll();
+        } finally {
+            stateLock.unlock();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("[BrokerServer] connection 关闭异常！错误原因 : " + e.getMessage());
+        }
+        handler.onClosed(this);
+    }
+
+}
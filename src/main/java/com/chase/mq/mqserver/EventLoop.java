@@ -0,0 +1,131 @@
+package com.chase.mq.mqserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 一个事件循环线程，通过一个 Selector 监听分配给它的所有连接
+ * 1，连接可读的时候，把数据读到这个线程自己的读缓冲区中，再拆分成完整的请求帧交给连接处理
+ *    读缓冲区由这个线程上的所有连接共用，连接只保存还没有读完的那一帧，空闲的连接几乎不占用内存
+ * 2，连接可写的时候，唤醒正在等待这个连接可写的写线程
+ * 注册连接、修改关注的事件都通过 {@link #execute(Runnable)} 交给事件循环线程执行，SelectionKey 只在这个线程中修改
+ */
+class EventLoop implements Runnable {
+
+    /**
+     * 读缓冲区的大小，一次 read 最多读取这么多字节
+     */
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+
+    private final Thread thread;
+
+    /**
+     * 其他线程提交给事件循环执行的任务
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 这个线程上所有连接共用的读缓冲区
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * 把一个新接收的连接注册到这个事件循环上，开始监听可读事件
+     */
+    void register(ClientConnection connection) {
+        execute(() -> {
+            try {
+                SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                connection.attach(this, key);
+            } catch (IOException e) {
+                System.out.println("[EventLoop] 注册连接失败! 错误原因：" + e.getMessage());
+                connection.close();
+            }
+        });
+    }
+
+    /**
+     * 在事件循环线程中执行一个任务
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                runTasks();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    ClientConnection connection = (ClientConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) connection.onReadable(readBuffer);
+                        if (key.isValid() && key.isWritable()) connection.onWritable();
+                    } catch (CancelledKeyException e) {
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) System.out.println("[EventLoop] 事件循环异常退出! 错误原因：" + e.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.out.println("[EventLoop] 执行任务失败! 错误原因：" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 停止事件循环，事件循环线程退出之前关闭上面所有的连接
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : new ArrayList<>(selector.keys()))
+                ((ClientConnection) key.attachment()).close();
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            System.out.println("[EventLoop] 关闭事件循环失败! 错误原因：" + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.chase.mq.mqserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * 复用请求帧载荷的字节数组，事件循环线程读取请求的时候借出，工作线程处理完这批请求之后归还
+ * 数组按 2 的幂分成若干档，借出的数组可能比帧的载荷长，载荷的实际长度以 Request 的 length 为准
+ * 超过最大一档的帧很少见，直接分配，用完交给 GC
+ * 池里没有空闲的数组时临时分配一个，归还的时候这一档已经满了就直接丢弃
+ */
+final class FrameBufferPool {
+
+    /**
+     * 最小一档的长度，更小的帧也借出这么大的数组
+     */
+    private static final int MIN_SIZE = 256;
+
+    /**
+     * 最大一档的长度，发布的消息通常不超过这个大小
+     */
+    private static final int MAX_SIZE = 64 * 1024;
+
+    /**
+     * 每一档最多缓存的数组个数，最大一档最多占用 4MB
+     */
+    private static final int POOL_SIZE = 64;
+
+    @SuppressWarnings("unchecked")
+    private static final ArrayBlockingQueue<byte[]>[] POOLS =
+            new ArrayBlockingQueue[Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1];
+
+    static {
+        for (int i = 0; i < POOLS.length; i++)
+            POOLS[i] = new ArrayBlockingQueue<>(POOL_SIZE);
+    }
+
+    private FrameBufferPool() {
+    }
+
+    /**
+     * 借出一个长度不小于 length 的数组
+     */
+    static byte[] acquire(int length) {
+        if (length > MAX_SIZE) return new byte[length];
+        int level = levelOf(length);
+        byte[] buffer = POOLS[level].poll();
+        return buffer != null ? buffer : new byte[MIN_SIZE << level];
+    }
+
+    /**
+     * 归还 {@link #acquire(int)} 借出的数组，归还之后调用方不能再访问它
+     */
+    static void release(byte[] buffer) {
+        if (buffer == null || buffer.length < MIN_SIZE || buffer.length > MAX_SIZE
+                || Integer.bitCount(buffer.length) != 1) return;
+        POOLS[levelOf(buffer.length)].offer(buffer);
+    }
+
+    private static int levelOf(int length) {
+        if (length <= MIN_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.chase.mq.mqserver;
 
+import com.chase.mq.common.dto.BasicPublishArguments;
 import com.chase.mq.common.server.Consumer;
 import com.chase.mq.common.server.MQException;
 import com.chase.mq.mqserver.core.*;
@@ -8,8 +9,14 @@ import com.chase.mq.mqserver.datacenter.MemoryDataCenter;
 import lombok.Getter;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 通过这个类来表示虚拟主机
@@ -47,13 +54,26 @@ public class VirtualHost {
 
     /**
      * 操作交换机的锁对象
+     * 持有锁的时候会写数据库和硬盘，使用 ReentrantLock 而不是 synchronized，虚拟线程在这里阻塞时不会占住平台线程
      */
-    private final Object exchangeLocker = new Object();
+    private final ReentrantLock exchangeLocker = new ReentrantLock();
 
     /**
      * 操作队列的锁对象
      */
-    private final Object queueLocker = new Object();
+    private final ReentrantLock queueLocker = new ReentrantLock();
+
+    /**
+     * 每写入这么多条持久化消息打印一次汇总
+     */
+    private static final long PERSIST_LOG_INTERVAL = 10000;
+
+    /**
+     * 写入硬盘的持久化消息数，按照落盘级别分别统计，汇总打印，发布消息的时候不再每条消息打印一行
+     */
+    private final Map<DurabilityLevel, AtomicLong> persistedCounts = new EnumMap<>(DurabilityLevel.class);
+
+    private final AtomicLong persistedTotal = new AtomicLong();
 
     /**
      * 在创建虚拟主机的时候指定主机名就行
@@ -64,6 +84,8 @@ public class VirtualHost {
      */
     public VirtualHost (String name) {
         this.virtualHostName = name;
+        for (DurabilityLevel level : DurabilityLevel.values())
+            persistedCounts.put(level, new AtomicLong());
         diskDataCenter.init();
         try{
             memoryDataCenter.recovery(diskDataCenter);
@@ -90,7 +112,8 @@ public class VirtualHost {
                                    boolean durable, boolean autoDelete, Map<String,Object> arguments){
         exchangeName = virtualHostName + exchangeName;
         try{
-            synchronized (exchangeLocker){
+            exchangeLocker.lock();
+            try {
                 Exchange existstExchange = memoryDataCenter.getExchange(exchangeName);
                 if(existstExchange != null){
                     System.out.println("[VirtualHost] 交换机已经存在! exchangeName=" + exchangeName);
@@ -105,6 +128,8 @@ public class VirtualHost {
                 if(durable) diskDataCenter.insertExchange(exchange);
                 memoryDataCenter.insertExchange(exchange);
                 System.out.println("[VirtualHost] 交换机创建完成! exchangeName=" + exchangeName);
+            } finally {
+                exchangeLocker.unlock();
             }
             return true;
         }catch (Exception e){
@@ -125,7 +150,8 @@ public class VirtualHost {
     public boolean exchangeDelete(String exchangeName){
         exchangeName = virtualHostName + exchangeName;
         try{
-            synchronized (exchangeLocker){
+            exchangeLocker.lock();
+            try {
                 Exchange toDelete = memoryDataCenter.getExchange(exchangeName);
                 if(toDelete == null)
                     throw new MQException("[VirtualHost] 交换机不存在无法删除!");
@@ -133,6 +159,8 @@ public class VirtualHost {
                     diskDataCenter.deleteExchange(exchangeName);
                 memoryDataCenter.deleteExchange(exchangeName);
                 System.out.println("[VirtualHost] 交换机删除成功! exchangeName=" + exchangeName);
+            } finally {
+                exchangeLocker.unlock();
             }
             return true;
         }catch (Exception e){
@@ -160,7 +188,8 @@ public class VirtualHost {
                                 boolean autoDelete,Map<String,Object> arguments){
         queueName = virtualHostName + queueName;
         try{
-            synchronized (queueLocker){
+            queueLocker.lock();
+            try {
                 MSGQueue existsQueue = memoryDataCenter.getQueue(queueName);
                 if (existsQueue != null) {
                     System.out.println("[VirtualHost] 队列已经存在! queueName=" + queueName);
@@ -172,10 +201,16 @@ public class VirtualHost {
                 queue.setExclusive(exclusive);
                 queue.setAutoDelete(autoDelete);
                 queue.setArguments(arguments);
+//                提前校验落盘策略、队列模式和压缩方式参数，参数不合法直接创建失败
+                DurabilityPolicy.fromQueue(queue);
+                QueueMode.fromQueue(queue);
+                CompressionType.fromQueue(queue);
                 if(durable)
                     diskDataCenter.insertQueue(queue);
                 memoryDataCenter.insertQueue(queue);
                 System.out.println("[VirtualHost] 队列创建成功! queueName=" + queueName);
+            } finally {
+                queueLocker.unlock();
             }
             return true;
         }catch (Exception e){
@@ -193,7 +228,8 @@ public class VirtualHost {
     public boolean queueDelete(String queueName){
         queueName = virtualHostName + queueName;
         try{
-            synchronized (queueLocker){
+            queueLocker.lock();
+            try {
                 MSGQueue toDelete = memoryDataCenter.getQueue(queueName);
                 if(toDelete == null)
                     throw new MQException("[VirtualHost] 交换机不存在无法删除!");
@@ -201,6 +237,8 @@ public class VirtualHost {
                     diskDataCenter.deleteQueue(queueName);
                 memoryDataCenter.deleteQueue(queueName);
                 System.out.println("[VirtualHost] 删除队列成功! queueName=" + queueName);
+            } finally {
+                queueLocker.unlock();
             }
             return true;
         }catch (Exception e){
@@ -226,8 +264,10 @@ public class VirtualHost {
         queueName = virtualHostName + queueName;
         exchangeName = virtualHostName + exchangeName;
         try{
-            synchronized (exchangeLocker){
-                synchronized (queueLocker){
+            exchangeLocker.lock();
+            try {
+                queueLocker.lock();
+                try {
                     Binding existsBinding = memoryDataCenter.getBinding(exchangeName, queueName);
                     if(existsBinding != null)
                         throw new MQException("[VirtualHost] binding 已经存在! queueName=" + queueName
@@ -247,7 +287,11 @@ public class VirtualHost {
                     if(queue.isDurable() && exchange.isDurable())
                         diskDataCenter.insertBinding(binding);
                     memoryDataCenter.insertBinding(binding);
+                } finally {
+                    queueLocker.unlock();
                 }
+            } finally {
+                exchangeLocker.unlock();
             }
             System.out.println("[VirtualHost] 绑定创建成功! exchangeName=" + exchangeName
                     + ", queueName=" + queueName);
@@ -272,15 +316,21 @@ public class VirtualHost {
         queueName = virtualHostName + queueName;
         exchangeName = virtualHostName + exchangeName;
         try{
-            synchronized (exchangeLocker){
-                synchronized (virtualHostName){
+            exchangeLocker.lock();
+            try {
+                queueLocker.lock();
+                try {
                     Binding binding = memoryDataCenter.getBinding(exchangeName, queueName);
                     if(binding == null)
                         throw new MQException("[VirtualHost] 删除绑定失败! 绑定不存在! exchangeName=" + exchangeName + ", queueName=" + queueName);
                     diskDataCenter.deleteBinding(binding);
                     memoryDataCenter.deleteBinding(binding);
                     System.out.println("[VirtualHost] 删除绑定成功!");
+                } finally {
+                    queueLocker.unlock();
                 }
+            } finally {
+                exchangeLocker.unlock();
             }
             return true;
         }catch (Exception e){
@@ -306,34 +356,10 @@ public class VirtualHost {
      */
     public boolean basicPublish(String exchangeName, String routingKey, BasicProperties basicProperties,byte[] body){
         try{
-            exchangeName = virtualHostName + exchangeName;
-            if(!router.checkBindingKey(routingKey))
-                throw new MQException("[VirtualHost] routingKey 非法! routingKey=" + routingKey);
-            Exchange exchange = memoryDataCenter.getExchange(exchangeName);
-            if(exchange == null)
-                throw new MQException("[VirtualHost] 交换机不存在! exchangeName=" + exchangeName);
-            if(exchange.getType() == ExchangeType.DIRECT){
-                String queueName = virtualHostName + routingKey;
-                Message message = Message.createMessageWithId(routingKey, basicProperties, body);
-                MSGQueue queue = memoryDataCenter.getQueue(queueName);
-                if(queue == null)
-                    throw new MQException("[VirtualHost] 队列不存在! queueName=" + queueName);
-                sendMessage(queue,message);
-            }else{
-                ConcurrentHashMap<String, Binding> bindings = memoryDataCenter.getBindings(exchangeName);
-                for (Map.Entry<String,Binding> entry : bindings.entrySet()){
-                    Binding binding = entry.getValue();
-                    MSGQueue queue = memoryDataCenter.getQueue(binding.getQueueName());
-                    if(queue == null){
-                        System.out.println("[VirtualHost] basicPublish 发送消息时, 发现队列不存在! queueName=" + binding.getQueueName());
-                        continue;
-                    }
-                    Message message = Message.createMessageWithId(routingKey, basicProperties, body);
-                    if(!router.route(exchange.getType(),binding,message))
-                        continue;
-                    sendMessage(queue,message);
-                }
-            }
+            List<MSGQueue> queues = new ArrayList<>();
+            List<Message> messages = new ArrayList<>();
+            route(exchangeName, routingKey, basicProperties, body, queues, messages);
+            sendMessages(queues,messages);
             return true;
         }catch (Exception e){
             System.out.println("[VirtualHost] 消息发送失败!" +
@@ -342,21 +368,254 @@ public class VirtualHost {
         }
     }
 
+    /**
+     * 批量发布消息（发布确认模式）：
+     * 持久化消息先全部提交给队列日志，再按顺序逐个等待写入完成并投递，同一批消息合并到同一次组提交中，
+     * 不需要像 {@link #basicPublish} 那样每条消息各等待一次 fsync
+     * 扇出到多个持久化队列的消息需要先写公共消息体，遇到这种消息时先把前面提交的消息处理完，再单独发送它，保证消息在队列中的顺序
+     * @return 每条消息是否发送成功，和 publishes 一一对应
+     */
+    public List<Boolean> basicPublishBatch(List<BasicPublishArguments> publishes) {
+        List<Boolean> results = new ArrayList<>();
+        List<PendingPublish> pending = new ArrayList<>();
+        for (int i = 0; i < publishes.size(); i++) {
+            BasicPublishArguments publish = publishes.get(i);
+            results.add(true);
+            try {
+                List<MSGQueue> queues = new ArrayList<>();
+                List<Message> messages = new ArrayList<>();
+                route(publish.getExchangeName(), publish.getRoutingKey(), publish.getBasicProperties(), publish.getBody(),
+                        queues, messages);
+                if (queues.size() >= 2 && messages.get(0).getDeliverModel() == 2) {
+                    finishPublishes(pending, results);
+                    sendMessages(queues, messages);
+                    continue;
+                }
+                for (int j = 0; j < queues.size(); j++) {
+                    CompletableFuture<Void> future = null;
+                    if (messages.get(j).getDeliverModel() == 2) {
+                        diskDataCenter.awaitDiskSpace();
+                        future = diskDataCenter.submitMessage(queues.get(j), messages.get(j));
+                    }
+                    pending.add(new PendingPublish(i, queues.get(j), messages.get(j), future));
+                }
+            } catch (Exception e) {
+                System.out.println("[VirtualHost] 消息发送失败!" +
+                        "错误原因：" + e.getMessage());
+                results.set(i, false);
+            }
+        }
+        finishPublishes(pending, results);
+        return results;
+    }
+
+    /**
+     * 批量发布中已经提交、还没有投递的一条消息
+     * index 是这条消息属于批量发布中的第几条，future 是持久化写入的 future，不持久化的消息为 null
+     */
+    private static class PendingPublish {
+        private final int index;
+        private final MSGQueue queue;
+        private final Message message;
+        private final CompletableFuture<Void> future;
+
+        private PendingPublish(int index, MSGQueue queue, Message message, CompletableFuture<Void> future) {
+            this.index = index;
+            this.queue = queue;
+            this.message = message;
+            this.future = future;
+        }
+    }
+
+    /**
+     * 按提交的顺序等待持久化写入完成并投递，写入失败的消息不投递，对应的发布标记为失败
+     * 一条发布扇出到多个队列的时候，先等待所有副本都写入完成再投递其中任何一份：
+     * 只要其中一份失败，整条发布都算失败，一份都不投递，已经写入硬盘的副本直接删除，重启之后不会被恢复出来，
+     * 客户端收到 nack 之后重发不会在别的队列中产生重复的消息
+     */
+    private void finishPublishes(List<PendingPublish> pending, List<Boolean> results) {
+        int start = 0;
+        while (start < pending.size()) {
+//            同一条发布的副本在 pending 中是连续的
+            int index = pending.get(start).index;
+            int end = start;
+            while (end < pending.size() && pending.get(end).index == index) end++;
+            List<PendingPublish> copies = pending.subList(start, end);
+            start = end;
+//            提交其中一份副本的时候就已经失败了，已经提交的副本全部丢弃
+            if (!results.get(index)) {
+                for (PendingPublish publish : copies)
+                    discardPublish(publish);
+                continue;
+            }
+            if (!awaitCopies(copies)) {
+                results.set(index, false);
+                continue;
+            }
+            try {
+                for (PendingPublish publish : copies)
+                    deliverMessage(publish.queue, publish.message);
+            } catch (Exception e) {
+                System.out.println("[VirtualHost] 消息发送失败!" +
+                        "错误原因：" + e.getMessage());
+                results.set(index, false);
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * 等待一条发布的所有副本写入完成
+     * @return 是否全部写入成功，失败的时候其余副本已经被丢弃
+     */
+    private boolean awaitCopies(List<PendingPublish> copies) {
+        List<DurabilityLevel> levels = new ArrayList<>();
+        for (PendingPublish publish : copies) {
+            if (publish.future == null) continue;
+            try {
+                levels.add(diskDataCenter.awaitMessage(publish.queue, publish.message, publish.future));
+            } catch (Exception e) {
+                System.out.println("[VirtualHost] 消息发送失败!" +
+                        "错误原因：" + e.getMessage());
+                for (PendingPublish other : copies)
+                    if (other != publish) discardPublish(other);
+                return false;
+            }
+        }
+        for (DurabilityLevel level : levels)
+            recordPersisted(level);
+        return true;
+    }
+
+    /**
+     * 丢弃失败的发布中已经提交的一份副本，持久化的副本等写入完成之后删除
+     */
+    private void discardPublish(PendingPublish publish) {
+        if (publish.future == null) return;
+        try {
+            diskDataCenter.awaitMessage(publish.queue, publish.message, publish.future);
+            diskDataCenter.deleteMessage(publish.queue, publish.message);
+        } catch (Exception e) {
+            System.out.println("[VirtualHost] 丢弃发送失败的消息时出错! messageId=" + publish.message.getMessageId()
+                    + ", 错误原因：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 根据交换机的类型找出消息要发送到的队列，每个队列一条消息，它们共用同一个消息体数组
+     * 消息 ID 保存在 BasicProperties 中，每条消息使用各自的一份属性，消息 ID 才能各不相同
+     * @param queues 匹配到的队列
+     * @param messages 每个队列各自的消息，和 queues 一一对应
+     */
+    private void route(String exchangeName, String routingKey, BasicProperties basicProperties, byte[] body,
+                       List<MSGQueue> queues, List<Message> messages) {
+        exchangeName = virtualHostName + exchangeName;
+        if(!router.checkBindingKey(routingKey))
+            throw new MQException("[VirtualHost] routingKey 非法! routingKey=" + routingKey);
+        Exchange exchange = memoryDataCenter.getExchange(exchangeName);
+        if(exchange == null)
+            throw new MQException("[VirtualHost] 交换机不存在! exchangeName=" + exchangeName);
+        if(exchange.getType() == ExchangeType.DIRECT){
+            String queueName = virtualHostName + routingKey;
+            Message message = Message.createMessageWithId(routingKey, copyProperties(basicProperties), body);
+            MSGQueue queue = memoryDataCenter.getQueue(queueName);
+            if(queue == null)
+                throw new MQException("[VirtualHost] 队列不存在! queueName=" + queueName);
+            queues.add(queue);
+            messages.add(message);
+            return;
+        }
+        ConcurrentHashMap<String, Binding> bindings = memoryDataCenter.getBindings(exchangeName);
+        for (Map.Entry<String,Binding> entry : bindings.entrySet()){
+            Binding binding = entry.getValue();
+            MSGQueue queue = memoryDataCenter.getQueue(binding.getQueueName());
+            if(queue == null){
+                System.out.println("[VirtualHost] basicPublish 发送消息时, 发现队列不存在! queueName=" + binding.getQueueName());
+                continue;
+            }
+            Message message = Message.createMessageWithId(routingKey, copyProperties(basicProperties), body);
+            if(!router.route(exchange.getType(),binding,message))
+                continue;
+            queues.add(queue);
+            messages.add(message);
+        }
+    }
+
+    /**
+     * 复制一份消息属性，客户端没有传属性的时候返回 null，由 Message 使用默认属性
+     */
+    private static BasicProperties copyProperties(BasicProperties basicProperties) {
+        if (basicProperties == null) return null;
+        BasicProperties copy = new BasicProperties();
+        copy.setMessageId(basicProperties.getMessageId());
+        copy.setRoutingKey(basicProperties.getRoutingKey());
+        copy.setDeliverModel(basicProperties.getDeliverModel());
+        return copy;
+    }
+
     /**
      * 发送消息到指定队列：
      * 这里发送消息就是写入到 硬盘 和 内存上面
      * deliverMode : 交付模式 1 -> 不持久化  2 -> 持久化存储
+     * 持久化的消息按照队列的落盘策略写入硬盘，并记录这次写入实际得到的落盘级别
+     * 硬盘剩余空间不足的时候，持久化消息的发布者在这里等待，直到空间被回收（客户端会先收到 0xd 阻塞通知）
+     * lazy 队列的持久化消息写入硬盘之后，内存中不再保留消息体
      * @param queue 指定队列
      * @param message 所发送的消息
      */
     private void sendMessage(MSGQueue queue, Message message) throws IOException, InterruptedException {
         int deliverModel = message.getDeliverModel();
-        if(deliverModel == 2)
-            diskDataCenter.sendMessage(queue,message);
+        if(deliverModel == 2) {
+            diskDataCenter.awaitDiskSpace();
+            recordPersisted(diskDataCenter.sendMessage(queue, message));
+        }
+        deliverMessage(queue,message);
+    }
+
+    /**
+     * 统计一条写入硬盘的持久化消息，每 PERSIST_LOG_INTERVAL 条打印一次各个落盘级别的累计数量
+     */
+    private void recordPersisted(DurabilityLevel level) {
+        persistedCounts.get(level).incrementAndGet();
+        long total = persistedTotal.incrementAndGet();
+        if (total % PERSIST_LOG_INTERVAL != 0) return;
+        StringBuilder summary = new StringBuilder("[VirtualHost] 持久化消息写入硬盘! total=").append(total);
+        for (DurabilityLevel persisted : DurabilityLevel.values())
+            summary.append(", ").append(persisted.getValue()).append("=").append(persistedCounts.get(persisted).get());
+        System.out.println(summary);
+    }
+
+    /**
+     * 已经写入硬盘（或者不需要持久化）的消息放到内存中，通知消费者
+     * lazy 队列的持久化消息写入硬盘之后，内存中不再保留消息体
+     */
+    private void deliverMessage(MSGQueue queue, Message message) throws InterruptedException {
+        if(message.getDeliverModel() == 2 && QueueMode.fromQueue(queue) == QueueMode.LAZY)
+            diskDataCenter.offloadBody(message);
         memoryDataCenter.sendMessage(queue,message);
         consumerManager.notifyConsume(queue.getName());
     }
 
+    /**
+     * 把扇出的消息发送到多个队列：
+     * 持久化的消息匹配到多个队列的时候，消息体在硬盘上只写一份，各个队列只写消息体的引用
+     * @param queues 匹配到的队列
+     * @param messages 每个队列各自的消息，和 queues 一一对应
+     */
+    private void sendMessages(List<MSGQueue> queues, List<Message> messages) throws IOException, InterruptedException {
+        if (queues.size() < 2 || messages.get(0).getDeliverModel() != 2) {
+            for (int i = 0; i < queues.size(); i++)
+                sendMessage(queues.get(i), messages.get(i));
+            return;
+        }
+        diskDataCenter.awaitDiskSpace();
+        List<DurabilityLevel> levels = diskDataCenter.sendSharedMessage(queues, messages);
+        for (int i = 0; i < queues.size(); i++) {
+            recordPersisted(levels.get(i));
+            deliverMessage(queues.get(i), messages.get(i));
+        }
+    }
+
     /**
      * 订阅消息
      * @param consumerTag 消费者的身份标识
@@ -0,0 +1,42 @@
+package com.chase.mq.mqserver.core;
+
+import com.chase.mq.common.server.MQException;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 持久化消息在段文件中的压缩方式，通过队列声明时的 x-compression 参数指定
+ * NONE    : 不压缩
+ * DEFLATE : 每条记录的消息内容单独用 Deflater 压缩，压缩之后没有变小的记录按原样保存
+ */
+@AllArgsConstructor
+@Getter
+public enum CompressionType {
+
+    NONE("none"),
+    DEFLATE("deflate");
+
+    public static final String COMPRESSION_KEY = "x-compression";
+
+    private final String value;
+
+    /**
+     * 根据参数值找到对应的压缩方式
+     */
+    public static CompressionType of(String value) {
+        for (CompressionType type : values()) {
+            if (type.value.equalsIgnoreCase(value))
+                return type;
+        }
+        throw new MQException("[CompressionType] 未知的压缩方式! value=" + value);
+    }
+
+    /**
+     * 从队列的参数中解析压缩方式，没有指定的时候为 NONE
+     */
+    public static CompressionType fromQueue(MSGQueue queue) {
+        Object type = queue.getArguments(COMPRESSION_KEY);
+        return type == null ? NONE : of(type.toString());
+    }
+
+}
@@ -4,11 +4,12 @@ package com.chase.mq.mqserver.core;
 import com.chase.mq.common.server.Consumer;
 import com.chase.mq.common.server.ConsumerEnv;
 import com.chase.mq.common.server.MQException;
+import com.chase.mq.common.server.ThreadMode;
 import com.chase.mq.mqserver.VirtualHost;
 
+import java.io.IOException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
 
 /**
@@ -16,6 +17,11 @@ import java.util.concurrent.LinkedBlockingDeque;
  */
 public class ConsumerManager {
 
+    /**
+     * 内存中的消息体小于这个长度的时候直接从内存发送，不值得为它打开段文件
+     */
+    private static final int ZERO_COPY_THRESHOLD = 16 * 1024;
+
     /**
      * 持有上层的 virtualHost 对象的引用，用来操作数据库
      */
@@ -23,8 +29,9 @@ public class ConsumerManager {
 
     /**
      * 指定一个线程池，负责执行具体的回调任务
+     * 平台线程模式下是 4 个线程，虚拟线程模式下每次投递一个虚拟线程，慢消费者阻塞在写 socket 上不会占满线程池，参考 {@link ThreadMode}
      */
-    private final ExecutorService workPool =  Executors.newFixedThreadPool(4);
+    private final ExecutorService workPool = ThreadMode.load().newExecutor("mq-consumer", 4);
 
     /**
      * 存放令牌的队列
@@ -67,6 +74,8 @@ public class ConsumerManager {
      * 2，从队列中提取一个消息
      *      当前队列没有消息，也不需要消费
      * 3，把消息带入到消费者的回调方法中，丢给线程池执行
+     *      支持零拷贝的消费者，持久化消息的消息体直接从段文件发送，不经过堆内存
+     *      其他消费者，lazy 队列的消息体不在内存中，先从缓存或者段文件中读回来
      *      把消息放到待确认的集合中，这个操作势必在执行回调之前
      *      真正执行回调操作
      *      如果当前是“自动应答”，就可以直接把消息删除了
@@ -84,8 +93,17 @@ public class ConsumerManager {
         workPool.submit(() -> {
             try{
                 parent.getMemoryDataCenter().addMessageWaitAck(queue.getName(),message);
-                luckDog.getConsumer().handleDelivery(luckDog.getConsumerTag(), message.getBasicProperties(),
-                        message.getBody());
+                if(message.getDeliverModel() == 2 && luckDog.getConsumer() instanceof ZeroCopyConsumer){
+                    try(MessageBody body = openBody(queue, message)){
+                        ((ZeroCopyConsumer) luckDog.getConsumer()).handleDelivery(luckDog.getConsumerTag(),
+                                message.getBasicProperties(), body);
+                    }
+                }else {
+                    byte[] body = message.getBody();
+                    if(body == null && message.getDeliverModel() == 2)
+                        body = parent.getDiskDataCenter().readBody(queue, message);
+                    luckDog.getConsumer().handleDelivery(luckDog.getConsumerTag(), message.getBasicProperties(), body);
+                }
                 if(luckDog.isAutoAck()){
                     if(message.getDeliverModel() == 2)
                         parent.getDiskDataCenter().deleteMessage(queue,message);
@@ -99,6 +117,16 @@ public class ConsumerManager {
         });
     }
 
+    /**
+     * 持久化消息的消息体：内存中有并且比较小的时候直接用内存中的，否则打开段文件中的区域
+     */
+    private MessageBody openBody(MSGQueue queue, Message message) throws IOException, ClassNotFoundException {
+        byte[] body = message.getBody();
+        if(body != null && body.length < ZERO_COPY_THRESHOLD)
+            return MessageBody.of(body);
+        return parent.getDiskDataCenter().openBody(queue, message);
+    }
+
     /**
      * 这个方法的调用时机就是发送消息的时候
      */
@@ -0,0 +1,34 @@
+package com.chase.mq.mqserver.core;
+
+import com.chase.mq.common.server.MQException;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 持久化消息的落盘级别，通过队列声明时的 x-durability 参数指定
+ * ALWAYS   : 每条消息（每一批组提交）都 fsync 之后才返回，最安全
+ * INTERVAL : 消息写入操作系统缓存后就返回，由定时器每隔 x-fsync-interval-ms 毫秒 fsync 一次
+ * OS       : 消息写入操作系统缓存后就返回，什么时候刷盘由操作系统决定，延迟最低
+ */
+@AllArgsConstructor
+@Getter
+public enum DurabilityLevel {
+
+    ALWAYS("always"),
+    INTERVAL("interval"),
+    OS("os");
+
+    private final String value;
+
+    /**
+     * 根据参数值找到对应的级别
+     */
+    public static DurabilityLevel of(String value) {
+        for (DurabilityLevel level : values()) {
+            if (level.value.equalsIgnoreCase(value))
+                return level;
+        }
+        throw new MQException("[DurabilityLevel] 未知的落盘级别! value=" + value);
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.chase.mq.mqserver.core;
+
+import com.chase.mq.common.server.MQException;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 队列的落盘策略，在 queueDeclare 时通过 MSGQueue.arguments 指定：
+ * x-durability        : always / interval / os，默认 always
+ * x-fsync-interval-ms : interval 级别下的刷盘间隔，默认 1000 毫秒
+ */
+@Data
+@AllArgsConstructor
+public class DurabilityPolicy {
+
+    public static final String DURABILITY_KEY = "x-durability";
+
+    public static final String FSYNC_INTERVAL_KEY = "x-fsync-interval-ms";
+
+    public static final long DEFAULT_FSYNC_INTERVAL_MS = 1000;
+
+    public static final DurabilityPolicy DEFAULT = new DurabilityPolicy(DurabilityLevel.ALWAYS, DEFAULT_FSYNC_INTERVAL_MS);
+
+    /**
+     * 落盘级别
+     */
+    private DurabilityLevel level;
+
+    /**
+     * INTERVAL 级别下的刷盘间隔（毫秒）
+     */
+    private long fsyncIntervalMs;
+
+    /**
+     * 从队列的参数中解析落盘策略，参数不合法的时候抛出 MQException
+     * 解析结果缓存在队列对象上，发布消息的时候不会每条消息都重新解析一遍
+     * @param queue 指定的队列
+     * @return 落盘策略
+     */
+    public static DurabilityPolicy fromQueue(MSGQueue queue) {
+        DurabilityPolicy policy = queue.getDurabilityPolicy();
+        if (policy == null) {
+            policy = parse(queue);
+            queue.setDurabilityPolicy(policy);
+        }
+        return policy;
+    }
+
+    private static DurabilityPolicy parse(MSGQueue queue) {
+        Object level = queue.getArguments(DURABILITY_KEY);
+        Object interval = queue.getArguments(FSYNC_INTERVAL_KEY);
+        if (level == null && interval == null) return DEFAULT;
+        DurabilityLevel durabilityLevel = level == null ? DurabilityLevel.ALWAYS : DurabilityLevel.of(level.toString());
+        long intervalMs = DEFAULT_FSYNC_INTERVAL_MS;
+        if (interval != null) {
+            try {
+                intervalMs = Long.parseLong(interval.toString());
+            } catch (NumberFormatException e) {
+                throw new MQException("[DurabilityPolicy] 刷盘间隔不是数字! " + FSYNC_INTERVAL_KEY + "=" + interval);
+            }
+            if (intervalMs <= 0)
+                throw new MQException("[DurabilityPolicy] 刷盘间隔必须大于 0! " + FSYNC_INTERVAL_KEY + "=" + interval);
+        }
+        return new DurabilityPolicy(durabilityLevel, intervalMs);
+    }
+
+}
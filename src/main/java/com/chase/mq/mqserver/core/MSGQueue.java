@@ -35,6 +35,9 @@ public class MSGQueue {
 //    创建队列时指定的一些额外的选项（后续拓展）
     private Map<String,Object> arguments =  new HashMap<>();
 
+//    从 arguments 中解析出来的落盘策略，第一次使用的时候解析，之后发布消息直接复用，arguments 变化的时候清空
+    private transient DurabilityPolicy durabilityPolicy;
+
 //    当前队列有哪些消费者订阅了
     private List<ConsumerEnv> consumerEnvList = new ArrayList<>();
 
@@ -70,12 +73,14 @@ public class MSGQueue {
     }
 
     public Object getArguments(String key){
+        if(arguments == null) return null;
         return arguments.get(key);
     }
 
     public void setArguments(String arguments){
         try{
             this.arguments = obj.readValue(arguments, new TypeReference<Map<String, Object>>() {});
+            this.durabilityPolicy = null;
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
@@ -83,10 +88,12 @@ public class MSGQueue {
 
     public void setArguments(Map<String,Object> arguments){
         this.arguments = arguments;
+        this.durabilityPolicy = null;
     }
 
     public void setArguments(String key,Object value){
         arguments.put(key, value);
+        this.durabilityPolicy = null;
     }
 
 }
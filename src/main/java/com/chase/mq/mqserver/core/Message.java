@@ -24,6 +24,10 @@ public class Message implements Serializable {
 //    每个消息结束偏移量
     private transient long offsetEnd = 0;
 
+//    扇出到多个持久化队列的消息，消息体在硬盘上只保存一份，这里记录公共消息体的 ID，没有共用消息体的时候为 null
+//    只在服务器内部使用，不需要被序列化
+    private transient String bodyRef;
+
 //    逻辑删除位 0x1 : 有效    0x0 : 无效
     private byte isValid = 0x1;
 
@@ -0,0 +1,102 @@
+package com.chase.mq.mqserver.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 投递消息时的消息体，可以是内存中的字节数组、封存段内存映射中的一块区域，也可以是活跃段文件中的一段区域
+ * 段文件中的消息体通过 FileChannel.transferTo 直接从操作系统的页缓存发送到 socket，不会复制到堆内存中
+ * 段中的消息体持有段的映射或者通道的一个引用，之后段被压缩替换也不影响已经打开的消息体，用完之后需要关闭
+ */
+public class MessageBody implements Closeable {
+
+    /**
+     * 内存中的消息体或者内存映射的切片，position 为 0，limit 为消息体的长度
+     */
+    private final ByteBuffer buffer;
+
+    private final FileChannel channel;
+
+    /**
+     * 消息体在段文件中的位置
+     */
+    private final long position;
+
+    private final int length;
+
+    /**
+     * 关闭消息体的时候释放持有的引用，内存中的消息体为 null
+     */
+    private final Runnable release;
+
+    private boolean closed = false;
+
+    private MessageBody(ByteBuffer buffer, FileChannel channel, long position, int length, Runnable release) {
+        this.buffer = buffer;
+        this.channel = channel;
+        this.position = position;
+        this.length = length;
+        this.release = release;
+    }
+
+    public static MessageBody of(byte[] bytes) {
+        return of(ByteBuffer.wrap(bytes == null ? new byte[0] : bytes), null);
+    }
+
+    /**
+     * @param buffer 消息体所在的内存（例如内存映射的切片），从 position 到 limit 是消息体
+     * @param release 关闭消息体的时候调用，释放内存映射的引用
+     */
+    public static MessageBody of(ByteBuffer buffer, Runnable release) {
+        return new MessageBody(buffer.slice(), null, 0, buffer.remaining(), release);
+    }
+
+    /**
+     * @param channel 段文件的通道，由段持有，消息体不关闭它
+     * @param position 消息体在段文件中的位置
+     * @param length 消息体的长度
+     * @param release 关闭消息体的时候调用，释放通道的引用
+     */
+    public static MessageBody of(FileChannel channel, long position, int length, Runnable release) {
+        return new MessageBody(null, channel, position, length, release);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * 把整个消息体写到目标通道中
+     */
+    public void transferTo(WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < length)
+            transferred += transferTo(transferred, target);
+    }
+
+    /**
+     * 从消息体的 offset 处开始写一次，目标通道是非阻塞的时候可能只写出一部分甚至一个字节都没写出
+     * @return 这一次写出的字节数
+     */
+    public long transferTo(long offset, WritableByteChannel target) throws IOException {
+        if (channel == null) {
+            if (offset >= length) return 0;
+            return target.write(buffer.duplicate().position((int) offset));
+        }
+        long n = channel.transferTo(position + offset, length - offset, target);
+        if (n <= 0 && position + offset >= channel.size())
+            throw new IOException("[MessageBody] 段文件中的消息体不完整! position=" + position + ", length=" + length);
+        return n;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (release != null) release.run();
+    }
+
+}
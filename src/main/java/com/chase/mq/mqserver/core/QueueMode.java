@@ -0,0 +1,42 @@
+package com.chase.mq.mqserver.core;
+
+import com.chase.mq.common.server.MQException;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 队列模式，通过队列声明时的 x-queue-mode 参数指定
+ * DEFAULT : 消息的所有内容都保存在内存中
+ * LAZY    : 持久化消息写入硬盘之后，内存中只保留消息 ID、偏移量和属性，消息体在投递的时候再从段文件中读取
+ */
+@AllArgsConstructor
+@Getter
+public enum QueueMode {
+
+    DEFAULT("default"),
+    LAZY("lazy");
+
+    public static final String QUEUE_MODE_KEY = "x-queue-mode";
+
+    private final String value;
+
+    /**
+     * 根据参数值找到对应的模式
+     */
+    public static QueueMode of(String value) {
+        for (QueueMode mode : values()) {
+            if (mode.value.equalsIgnoreCase(value))
+                return mode;
+        }
+        throw new MQException("[QueueMode] 未知的队列模式! value=" + value);
+    }
+
+    /**
+     * 从队列的参数中解析队列模式，没有指定的时候为 DEFAULT
+     */
+    public static QueueMode fromQueue(MSGQueue queue) {
+        Object mode = queue.getArguments(QUEUE_MODE_KEY);
+        return mode == null ? DEFAULT : of(mode.toString());
+    }
+
+}
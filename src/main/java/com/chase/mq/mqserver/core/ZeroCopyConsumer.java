@@ -0,0 +1,23 @@
+package com.chase.mq.mqserver.core;
+
+import com.chase.mq.common.server.Consumer;
+
+import java.io.IOException;
+
+/**
+ * 支持零拷贝投递的消费者（服务器把消息推送给客户端的回调）
+ * 持久化消息的消息体以 {@link MessageBody} 的形式交给回调，可以直接从段文件发送到 socket
+ * 非持久化消息仍然通过 {@link Consumer#handleDelivery} 投递
+ */
+public interface ZeroCopyConsumer extends Consumer {
+
+    /**
+     * 投递一条持久化消息，回调返回之后消息体会被关闭，不能在回调之外继续使用
+     * @param consumerTag 一次消费的标识
+     * @param basicProperties 基本参数
+     * @param body 消息体
+     * @throws IOException IO 异常
+     */
+    void handleDelivery(String consumerTag, BasicProperties basicProperties, MessageBody body) throws IOException;
+
+}
@@ -0,0 +1,80 @@
+package com.chase.mq.mqserver.datacenter;
+
+import com.chase.mq.MqApplication;
+import com.chase.mq.common.server.MQException;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * lazy 队列的消息体缓存，按照消息体的总字节数限制大小，超出之后淘汰最久没有访问的消息体（LRU）
+ * 缓存中没有的消息体再从段文件中读取
+ */
+public class BodyCache {
+
+    /**
+     * 缓存容量的配置项
+     */
+    public static final String CAPACITY_KEY = "mq.storage.lazy.body-cache-bytes";
+
+    /**
+     * 默认的缓存容量：64MB
+     */
+    public static final long DEFAULT_CAPACITY_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * 缓存的最大字节数
+     */
+    private final long capacityBytes;
+
+    /**
+     * 当前缓存的字节数
+     */
+    private long sizeBytes = 0;
+
+    /**
+     * 按访问顺序排列的消息体，key 为 messageId
+     */
+    private final LinkedHashMap<String, byte[]> bodies = new LinkedHashMap<>(16, 0.75f, true);
+
+    public BodyCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    /**
+     * 从 Spring 的配置中读取缓存容量，没有启动 Spring 上下文的时候使用默认值
+     */
+    public static long configuredCapacity() {
+        if (MqApplication.context == null) return DEFAULT_CAPACITY_BYTES;
+        long capacity = MqApplication.context.getEnvironment().getProperty(CAPACITY_KEY, Long.class, DEFAULT_CAPACITY_BYTES);
+        if (capacity < 0)
+            throw new MQException("[BodyCache] " + CAPACITY_KEY + " 不能小于 0!");
+        return capacity;
+    }
+
+    public synchronized byte[] get(String messageId) {
+        return bodies.get(messageId);
+    }
+
+    /**
+     * 放入一个消息体，超过容量时淘汰最久没有访问的消息体，比整个缓存还大的消息体不缓存
+     */
+    public synchronized void put(String messageId, byte[] body) {
+        if (body == null || body.length > capacityBytes) return;
+        byte[] old = bodies.put(messageId, body);
+        if (old != null) sizeBytes -= old.length;
+        sizeBytes += body.length;
+        Iterator<Map.Entry<String, byte[]>> iterator = bodies.entrySet().iterator();
+        while (sizeBytes > capacityBytes && iterator.hasNext()) {
+            sizeBytes -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+
+    public synchronized void remove(String messageId) {
+        byte[] old = bodies.remove(messageId);
+        if (old != null) sizeBytes -= old.length;
+    }
+
+}
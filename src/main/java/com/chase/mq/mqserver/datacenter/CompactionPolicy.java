@@ -0,0 +1,82 @@
+package com.chase.mq.mqserver.datacenter;
+
+import com.chase.mq.MqApplication;
+import com.chase.mq.common.server.MQException;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.core.env.ConfigurableEnvironment;
+
+/**
+ * 段压缩的调度策略，在 application.yml 中通过 mq.storage.compaction.* 配置：
+ * interval-ms           : 调度器两次检查之间的间隔，默认 5000 毫秒
+ * min-live-ratio        : 有效数据比例低于这个值的段才会被压缩，默认 0.5
+ * min-reclaimable-bytes : 一个段至少能回收这么多字节才值得压缩，默认 1MB
+ * max-bytes-per-second  : 压缩时读写硬盘的带宽上限，0 表示不限制，默认 32MB/s
+ * disk-pressure-ratio   : 硬盘使用率达到这个值时认为硬盘紧张，默认 0.8
+ * pressure-live-ratio   : 硬盘紧张时使用的有效数据比例阈值，默认 0.9
+ */
+@Data
+@AllArgsConstructor
+public class CompactionPolicy {
+
+    public static final String PREFIX = "mq.storage.compaction.";
+
+    public static final CompactionPolicy DEFAULT = new CompactionPolicy(5000, 0.5,
+            1024 * 1024, 32 * 1024 * 1024, 0.8, 0.9);
+
+    /**
+     * 调度器两次检查之间的间隔（毫秒）
+     */
+    private long intervalMs;
+
+    /**
+     * 有效数据比例低于这个值的段才会被压缩
+     */
+    private double minLiveRatio;
+
+    /**
+     * 一个段至少能回收的字节数
+     */
+    private long minReclaimableBytes;
+
+    /**
+     * 压缩的带宽上限（字节/秒），0 表示不限制
+     */
+    private long maxBytesPerSecond;
+
+    /**
+     * 硬盘使用率达到这个值时认为硬盘紧张，放宽压缩的条件
+     */
+    private double diskPressureRatio;
+
+    /**
+     * 硬盘紧张时使用的有效数据比例阈值
+     */
+    private double pressureLiveRatio;
+
+    /**
+     * 从 Spring 的配置中读取压缩策略，没有启动 Spring 上下文（例如单独使用存储层）时使用默认值
+     * 配置不合法的时候抛出 MQException
+     */
+    public static CompactionPolicy load() {
+        if (MqApplication.context == null) return DEFAULT;
+        ConfigurableEnvironment environment = MqApplication.context.getEnvironment();
+        CompactionPolicy policy = new CompactionPolicy(
+                environment.getProperty(PREFIX + "interval-ms", Long.class, DEFAULT.intervalMs),
+                environment.getProperty(PREFIX + "min-live-ratio", Double.class, DEFAULT.minLiveRatio),
+                environment.getProperty(PREFIX + "min-reclaimable-bytes", Long.class, DEFAULT.minReclaimableBytes),
+                environment.getProperty(PREFIX + "max-bytes-per-second", Long.class, DEFAULT.maxBytesPerSecond),
+                environment.getProperty(PREFIX + "disk-pressure-ratio", Double.class, DEFAULT.diskPressureRatio),
+                environment.getProperty(PREFIX + "pressure-live-ratio", Double.class, DEFAULT.pressureLiveRatio));
+        if (policy.intervalMs <= 0)
+            throw new MQException("[CompactionPolicy] " + PREFIX + "interval-ms 必须大于 0!");
+        if (policy.minLiveRatio <= 0 || policy.minLiveRatio > 1 || policy.pressureLiveRatio <= 0 || policy.pressureLiveRatio > 1)
+            throw new MQException("[CompactionPolicy] 有效数据比例阈值必须在 (0, 1] 之间!");
+        if (policy.diskPressureRatio <= 0 || policy.diskPressureRatio > 1)
+            throw new MQException("[CompactionPolicy] " + PREFIX + "disk-pressure-ratio 必须在 (0, 1] 之间!");
+        if (policy.minReclaimableBytes < 0 || policy.maxBytesPerSecond < 0)
+            throw new MQException("[CompactionPolicy] 字节数配置不能小于 0!");
+        return policy;
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.chase.mq.mqserver.datacenter;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 整个 broker 的段压缩调度器
+ * 不再依赖消息确认来触发压缩，而是定时检查所有队列：
+ * 1，按照可回收的字节数给所有队列的封存段排序，先压缩回收最多的段
+ * 2，硬盘使用率超过阈值时放宽压缩条件，尽快释放空间
+ * 3，压缩线程的优先级最低，并且系统负载已经占满所有 CPU 时跳过这一轮（硬盘紧张时除外）
+ * 4，压缩的读写带宽通过 {@link IoRateLimiter} 限制
+ */
+public class CompactionScheduler {
+
+    /**
+     * 所有队列的消息日志，和 MessageFileManager 共用同一个 map
+     */
+    private final Map<String, QueueLog> queueLogs;
+
+    /**
+     * 数据目录的布局，用来计算硬盘使用率
+     */
+    private final StorageLayout layout;
+
+    @Getter
+    private final CompactionPolicy policy;
+
+    private final IoRateLimiter rateLimiter;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mq-compaction");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * 一个待压缩的段
+     */
+    private static class Candidate {
+        private final QueueLog queueLog;
+        private final long baseOffset;
+        private final long reclaimableBytes;
+
+        private Candidate(QueueLog queueLog, long baseOffset, long reclaimableBytes) {
+            this.queueLog = queueLog;
+            this.baseOffset = baseOffset;
+            this.reclaimableBytes = reclaimableBytes;
+        }
+    }
+
+    public CompactionScheduler(Map<String, QueueLog> queueLogs, StorageLayout layout, CompactionPolicy policy) {
+        this.queueLogs = queueLogs;
+        this.layout = layout;
+        this.policy = policy;
+        this.rateLimiter = new IoRateLimiter(policy.getMaxBytesPerSecond());
+    }
+
+    /**
+     * 启动定时调度
+     */
+    public void start() {
+        executor.scheduleWithFixedDelay(this::runOnce, policy.getIntervalMs(), policy.getIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 立即检查一次指定的队列，不等待下一轮调度，不阻塞调用方
+     * 手动触发的压缩不要求最小回收字节数
+     */
+    public void compactNow(String queueName) {
+        executor.execute(() -> {
+            QueueLog queueLog = queueLogs.get(queueName);
+            if (queueLog == null) return;
+            List<Candidate> candidates = new ArrayList<>();
+            collect(queueLog, policy.getMinLiveRatio(), 0, candidates);
+            compact(candidates);
+        });
+    }
+
+    /**
+     * 立即按照硬盘紧张时的条件检查所有队列，由 {@link DiskMonitor} 在剩余空间不足时触发，不阻塞调用方
+     */
+    public void compactAllNow() {
+        executor.execute(() -> {
+            List<Candidate> candidates = new ArrayList<>();
+            for (QueueLog queueLog : queueLogs.values())
+                collect(queueLog, policy.getPressureLiveRatio(), 0, candidates);
+            compact(candidates);
+        });
+    }
+
+    /**
+     * 执行一轮调度：收集所有队列的候选段，按可回收字节数从大到小依次压缩
+     */
+    private void runOnce() {
+        try {
+            boolean pressure = diskUsage() >= policy.getDiskPressureRatio();
+            if (!pressure && !hasIdleCpu()) return;
+            double liveRatio = pressure ? policy.getPressureLiveRatio() : policy.getMinLiveRatio();
+            long minReclaimableBytes = pressure ? 0 : policy.getMinReclaimableBytes();
+            List<Candidate> candidates = new ArrayList<>();
+            for (QueueLog queueLog : queueLogs.values())
+                collect(queueLog, liveRatio, minReclaimableBytes, candidates);
+            compact(candidates);
+        } catch (RuntimeException e) {
+            System.out.println("[CompactionScheduler] 调度失败! 错误原因：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 收集一个队列中需要压缩的段
+     * 活跃段不能压缩，如果活跃段中的垃圾已经足够多，就先把它封存，下一轮再压缩
+     * 封存活跃段总是要求达到配置的最小回收字节数，避免硬盘紧张或者手动触发时滚动出大量很小的段
+     */
+    private void collect(QueueLog queueLog, double liveRatio, long minReclaimableBytes, List<Candidate> candidates) {
+        try {
+            LogSegment active = queueLog.activeSegment();
+            if (isWorthCompacting(active, liveRatio, Math.max(minReclaimableBytes, policy.getMinReclaimableBytes())))
+                queueLog.roll();
+            for (LogSegment segment : queueLog.compactableSegments())
+                if (isWorthCompacting(segment, liveRatio, minReclaimableBytes))
+                    candidates.add(new Candidate(queueLog, segment.getBaseOffset(), reclaimableBytes(segment)));
+        } catch (IOException e) {
+            System.out.println("[CompactionScheduler] 检查队列失败! queueName=" + queueLog.getQueueName()
+                    + ", 错误原因：" + e.getMessage());
+        }
+    }
+
+    private void compact(List<Candidate> candidates) {
+        candidates.sort(Comparator.comparingLong((Candidate candidate) -> candidate.reclaimableBytes).reversed());
+        for (Candidate candidate : candidates) {
+            try {
+                candidate.queueLog.compact(candidate.baseOffset, rateLimiter);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("[CompactionScheduler] 压缩失败! queueName=" + candidate.queueLog.getQueueName()
+                        + ", baseOffset=" + candidate.baseOffset + ", 错误原因：" + e.getMessage());
+            }
+        }
+    }
+
+    private boolean isWorthCompacting(LogSegment segment, double liveRatio, long minReclaimableBytes) {
+        int totalCount = segment.getTotalCount();
+        if (totalCount == 0) return false;
+        return (double) segment.getValidCount() / totalCount < liveRatio
+                && reclaimableBytes(segment) >= minReclaimableBytes;
+    }
+
+    /**
+     * 估算一个段压缩之后能回收的字节数：按照已确认消息的比例折算段中的记录字节数
+     */
+    private long reclaimableBytes(LogSegment segment) {
+        int totalCount = segment.getTotalCount();
+        if (totalCount == 0) return 0;
+        long recordBytes = segment.getSize() - LogSegment.HEADER_SIZE;
+        return recordBytes * (totalCount - segment.getValidCount()) / totalCount;
+    }
+
+    /**
+     * 数据目录所在硬盘的使用率，有多个数据目录的时候取最紧张的那块硬盘
+     */
+    private double diskUsage() {
+        return layout.maxDiskUsage();
+    }
+
+    /**
+     * 系统负载低于 CPU 核数时认为还有空闲的 CPU，不支持获取系统负载的平台总是认为有空闲
+     */
+    private boolean hasIdleCpu() {
+        double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        return load < 0 || load < Runtime.getRuntime().availableProcessors();
+    }
+
+}
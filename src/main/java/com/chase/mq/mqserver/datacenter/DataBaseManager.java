@@ -26,9 +26,9 @@ public class DataBaseManager {
     public void init(){
         metaMapper = MqApplication.context.getBean(MetaMapper.class);
         if(!checkDBExists()){
-//            数据库不存在就进行建库操作，先创建一个 data 目录
-            File dataDir = new File("./data");
-            boolean ok = dataDir.mkdirs();
+//            数据库不存在就进行建库操作，先创建数据库文件所在的目录，目录位置由 spring.datasource.url 决定
+            File dataDir = StorageLayout.metaDbFile().getAbsoluteFile().getParentFile();
+            boolean ok = dataDir.isDirectory() || dataDir.mkdirs();
             if(!ok) throw new MQException("【DataBaseManager】创建 data 目录失败！");
 //            创建数据表
             createTable();
@@ -45,11 +45,11 @@ public class DataBaseManager {
      * 删除数据库
      */
     public void deleteDB(){
-        File file = new File("./data/meta.db");
+        File file = StorageLayout.metaDbFile();
         boolean delete = file.delete();
         if(delete) System.out.println("【DataBaseManager】删除数据库文件成功！");
         else System.out.println("【DataBaseManager】删除数据库文件失败！");
-        File dataDir = new File("./data");
+        File dataDir = file.getAbsoluteFile().getParentFile();
 //        使用 delete 删除目录，需要保证目录是空的
         boolean ret = dataDir.delete();
         if(ret) System.out.println("【DataBaseManager】删除数据库目录成功！");
@@ -75,7 +75,7 @@ public class DataBaseManager {
     }
 
     private boolean checkDBExists() {
-        File file = new File("./data/meta.db");
+        File file = StorageLayout.metaDbFile();
         return file.exists();
     }
 
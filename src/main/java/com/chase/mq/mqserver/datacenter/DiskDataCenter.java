@@ -2,13 +2,19 @@ package com.chase.mq.mqserver.datacenter;
 
 
 import com.chase.mq.mqserver.core.Binding;
+import com.chase.mq.mqserver.core.DurabilityLevel;
+import com.chase.mq.mqserver.core.DurabilityPolicy;
 import com.chase.mq.mqserver.core.Exchange;
 import com.chase.mq.mqserver.core.MSGQueue;
 import com.chase.mq.mqserver.core.Message;
+import com.chase.mq.mqserver.core.MessageBody;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 
 /**
  * 使用这个类来管理硬盘上的数据
@@ -90,20 +96,107 @@ public class DiskDataCenter {
 
     /**
      * 封装消息操作
-     * 在删除消息的时候，检查是否达到 GC 的标准，如果达到了就开始 GC
+     * 写入消息的时候按照队列声明的落盘策略写入，并把这次写入实际使用的落盘级别返回给上层
+     * 删除消息的时候只改写有效标记，GC 由后台的压缩调度器负责，确认消息的线程不需要关心
      */
-    public void sendMessage(MSGQueue queue, Message message) throws IOException {
-        messageFileManager.sendMessage(queue,message);
+    public DurabilityLevel sendMessage(MSGQueue queue, Message message) throws IOException {
+        DurabilityPolicy policy = DurabilityPolicy.fromQueue(queue);
+        messageFileManager.sendMessage(queue,message,policy);
+        return policy.getLevel();
+    }
+
+    /**
+     * 提交一条消息的写入，不等待写入完成，和 {@link #awaitMessage} 配合使用：
+     * 先提交一批消息再逐个等待，同一批消息合并到同一次组提交中（发布确认模式下的批量发布）
+     */
+    public CompletableFuture<Void> submitMessage(MSGQueue queue, Message message) throws IOException {
+        return messageFileManager.appendMessage(queue, message, DurabilityPolicy.fromQueue(queue));
+    }
+
+    /**
+     * 等待 {@link #submitMessage} 提交的写入按照队列的落盘策略完成
+     * @return 这次写入实际使用的落盘级别
+     */
+    public DurabilityLevel awaitMessage(MSGQueue queue, Message message, CompletableFuture<Void> future) throws IOException {
+        messageFileManager.awaitAppend(queue, message, future);
+        return DurabilityPolicy.fromQueue(queue).getLevel();
+    }
+
+    /**
+     * 扇出到多个持久化队列的消息，消息体只写一份，每个队列按照各自的落盘策略写入
+     * @return 每个队列这次写入实际使用的落盘级别，和 queues 一一对应
+     */
+    public List<DurabilityLevel> sendSharedMessage(List<MSGQueue> queues, List<Message> messages) throws IOException {
+        List<DurabilityPolicy> policies = new ArrayList<>();
+        List<DurabilityLevel> levels = new ArrayList<>();
+        for (MSGQueue queue : queues) {
+            DurabilityPolicy policy = DurabilityPolicy.fromQueue(queue);
+            policies.add(policy);
+            levels.add(policy.getLevel());
+        }
+        messageFileManager.sendSharedMessage(queues, messages, policies);
+        return levels;
+    }
+
+    /**
+     * 硬盘空间不足的时候，发布持久化消息之前在这里等待，直到空间被回收
+     */
+    public void awaitDiskSpace() throws InterruptedException {
+        messageFileManager.getDiskMonitor().awaitSpace();
+    }
+
+    /**
+     * 监听硬盘空间不足导致的阻塞和恢复
+     */
+    public void addDiskListener(DiskMonitor.Listener listener) {
+        messageFileManager.getDiskMonitor().addListener(listener);
+    }
+
+    public boolean isDiskBlocked() {
+        return messageFileManager.getDiskMonitor().isBlocked();
     }
 
     public void deleteMessage(MSGQueue queue,Message message) throws IOException, ClassNotFoundException {
         messageFileManager.deleteMessage(queue,message);
-        if(messageFileManager.checkGC(queue.getName()))
-            messageFileManager.gc(queue);
+    }
+
+    /**
+     * lazy 队列的消息写入硬盘之后，卸下内存中的消息体
+     */
+    public void offloadBody(Message message) {
+        messageFileManager.offloadBody(message);
+    }
+
+    /**
+     * 投递 lazy 队列的消息时读取消息体
+     */
+    public byte[] readBody(MSGQueue queue, Message message) throws IOException, ClassNotFoundException {
+        return messageFileManager.readBody(queue, message);
+    }
+
+    /**
+     * 零拷贝投递持久化消息时打开消息体
+     */
+    public MessageBody openBody(MSGQueue queue, Message message) throws IOException, ClassNotFoundException {
+        return messageFileManager.openBody(queue, message);
     }
 
     public LinkedList<Message> loadAllMessageFromQueue(String queueName) throws IOException, ClassNotFoundException {
         return messageFileManager.loadAllMessageFromQueue(queueName);
     }
 
+    /**
+     * @param withBody 根据队列名判断是否加载消息体，lazy 队列恢复的时候不加载
+     */
+    public LinkedList<Message> loadAllMessageFromQueue(String queueName, Predicate<String> withBody) throws IOException, ClassNotFoundException {
+        return messageFileManager.loadAllMessageFromQueue(queueName, withBody);
+    }
+
+    /**
+     * 所有队列的消息都恢复完之后调用，清理没有被引用的公共消息体
+     */
+    public void finishRecovery() throws IOException {
+        messageFileManager.finishRecovery();
+    }
+
 }
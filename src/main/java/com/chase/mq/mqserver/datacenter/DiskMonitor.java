@@ -0,0 +1,176 @@
+package com.chase.mq.mqserver.datacenter;
+
+import com.chase.mq.MqApplication;
+import com.chase.mq.common.server.MQException;
+import lombok.Getter;
+import org.springframework.core.env.ConfigurableEnvironment;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 硬盘空间监控，在 application.yml 中通过 mq.storage.disk.* 配置：
+ * free-limit-bytes   : 剩余空间的低水位，低于这个值（或者按照最近的增长速度，下一次检查之前就会低于这个值）时阻塞持久化消息的发布者，默认 64MB
+ * resume-free-bytes  : 阻塞之后剩余空间回到这个值以上才恢复发布，避免在水位附近来回切换，默认 128MB
+ * check-interval-ms  : 检查的间隔，默认 1000 毫秒
+ * 有多个数据目录的时候看剩余空间最少的那个，低水位至少要留出一个段的大小，段压缩需要先把有效记录复制到临时文件
+ * 进入阻塞状态时先立即触发一轮段压缩，回收已经确认的消息占用的空间
+ */
+public class DiskMonitor {
+
+    public static final String PREFIX = "mq.storage.disk.";
+
+    public static final long DEFAULT_FREE_LIMIT_BYTES = 64L * 1024 * 1024;
+
+    public static final long DEFAULT_RESUME_FREE_BYTES = 128L * 1024 * 1024;
+
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 1000;
+
+    /**
+     * 阻塞状态变化的监听器，在检查空间的定时器线程中调用，只能登记状态变化，不能在里面阻塞（例如写 socket）
+     */
+    public interface Listener {
+        /**
+         * @param blocked true 表示开始阻塞，false 表示恢复发布
+         * @param reason 阻塞的原因，恢复的时候为空字符串
+         */
+        void onBlockedChanged(boolean blocked, String reason);
+    }
+
+    private final StorageLayout layout;
+
+    /**
+     * 进入阻塞状态时执行的回收操作（立即压缩所有队列）
+     */
+    private final Runnable reclaimer;
+
+    @Getter
+    private final long freeLimitBytes;
+
+    @Getter
+    private final long resumeFreeBytes;
+
+    @Getter
+    private final long checkIntervalMs;
+
+    @Getter
+    private volatile boolean blocked = false;
+
+    /**
+     * 最近一次检查时的剩余空间，用来估算增长速度
+     */
+    @Getter
+    private volatile long lastFreeBytes = -1;
+
+    /**
+     * 两次检查之间剩余空间减少的字节数（平滑之后），也就是数据的增长速度
+     */
+    @Getter
+    private volatile long growthBytes = 0;
+
+    @Getter
+    private volatile String reason = "";
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 等待空间恢复的发布者在这个锁的条件变量上等待，发布者可能是虚拟线程，不使用 synchronized
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition resumed = lock.newCondition();
+
+    public DiskMonitor(StorageLayout layout, Runnable reclaimer, long freeLimitBytes, long resumeFreeBytes, long checkIntervalMs) {
+        if (freeLimitBytes < 0 || resumeFreeBytes < freeLimitBytes)
+            throw new MQException("[DiskMonitor] " + PREFIX + "resume-free-bytes 不能小于 free-limit-bytes，并且都不能小于 0!");
+        if (checkIntervalMs <= 0)
+            throw new MQException("[DiskMonitor] " + PREFIX + "check-interval-ms 必须大于 0!");
+        this.layout = layout;
+        this.reclaimer = reclaimer;
+        this.freeLimitBytes = freeLimitBytes;
+        this.resumeFreeBytes = resumeFreeBytes;
+        this.checkIntervalMs = checkIntervalMs;
+    }
+
+    /**
+     * 从 Spring 的配置中读取水位，没有启动 Spring 上下文的时候使用默认值
+     */
+    public static DiskMonitor load(StorageLayout layout, Runnable reclaimer) {
+        if (MqApplication.context == null)
+            return new DiskMonitor(layout, reclaimer, DEFAULT_FREE_LIMIT_BYTES, DEFAULT_RESUME_FREE_BYTES, DEFAULT_CHECK_INTERVAL_MS);
+        ConfigurableEnvironment environment = MqApplication.context.getEnvironment();
+        return new DiskMonitor(layout, reclaimer,
+                environment.getProperty(PREFIX + "free-limit-bytes", Long.class, DEFAULT_FREE_LIMIT_BYTES),
+                environment.getProperty(PREFIX + "resume-free-bytes", Long.class, DEFAULT_RESUME_FREE_BYTES),
+                environment.getProperty(PREFIX + "check-interval-ms", Long.class, DEFAULT_CHECK_INTERVAL_MS));
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 所有数据目录中最少的剩余空间
+     */
+    private long freeBytes() {
+        long free = Long.MAX_VALUE;
+        for (File dir : layout.getDataDirs())
+            free = Math.min(free, StorageLayout.usableSpace(dir));
+        return free;
+    }
+
+    /**
+     * 检查一次剩余空间，由定时任务调用
+     * 阻塞的条件是剩余空间减去一个检查间隔内的预计增长低于低水位，这样写入很快的时候也能在写满之前停下来
+     */
+    public void check() {
+        long free = freeBytes();
+        if (lastFreeBytes >= 0) {
+            long consumed = Math.max(lastFreeBytes - free, 0);
+            growthBytes = (growthBytes + consumed) / 2;
+        }
+        lastFreeBytes = free;
+        if (!blocked && free - growthBytes < freeLimitBytes) {
+            setBlocked(true, "硬盘剩余空间不足! free=" + free + ", growth=" + growthBytes + ", limit=" + freeLimitBytes);
+            reclaimer.run();
+        } else if (blocked && free >= resumeFreeBytes) {
+            setBlocked(false, "");
+        }
+    }
+
+    private void setBlocked(boolean blocked, String reason) {
+        lock.lock();
+        try {
+            this.blocked = blocked;
+            this.reason = reason;
+            if (!blocked) resumed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("[DiskMonitor] " + (blocked ? "阻塞持久化消息的发布! " + reason : "剩余空间已经恢复，恢复发布!"));
+        for (Listener listener : listeners) {
+            try {
+                listener.onBlockedChanged(blocked, reason);
+            } catch (RuntimeException e) {
+                System.out.println("[DiskMonitor] 通知阻塞状态失败! 错误原因：" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 发布持久化消息之前调用，硬盘空间不足的时候一直等到空间被回收
+     */
+    public void awaitSpace() throws InterruptedException {
+        if (!blocked) return;
+        lock.lock();
+        try {
+            while (blocked) resumed.await();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
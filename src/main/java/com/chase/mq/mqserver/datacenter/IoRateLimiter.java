@@ -0,0 +1,46 @@
+package com.chase.mq.mqserver.datacenter;
+
+import java.io.InterruptedIOException;
+
+/**
+ * 限制后台 I/O（例如段压缩）的带宽，避免和消息的写入抢占硬盘
+ * 每次读写之前申请对应的字节数，超出带宽的部分通过 sleep 等待
+ */
+public class IoRateLimiter {
+
+    /**
+     * 每秒允许的字节数，小于等于 0 表示不限制
+     */
+    private final long bytesPerSecond;
+
+    /**
+     * 下一次申请可以立即通过的时间点
+     */
+    private long nextFreeNanos = System.nanoTime();
+
+    public IoRateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * 申请读写指定的字节数，必要的时候阻塞等待
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (bytesPerSecond <= 0 || bytes <= 0) return;
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextFreeNanos < now) nextFreeNanos = now;
+            waitNanos = nextFreeNanos - now;
+            nextFreeNanos += bytes * 1_000_000_000L / bytesPerSecond;
+        }
+        if (waitNanos <= 0) return;
+        try {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("[IoRateLimiter] 等待带宽时被中断!");
+        }
+    }
+
+}
@@ -0,0 +1,759 @@
+package com.chase.mq.mqserver.datacenter;
+
+
+import com.chase.mq.common.server.MQException;
+import com.chase.mq.mqserver.core.MessageBody;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 队列日志中的一个段文件
+ * 文件名就是这个段的起始偏移量（baseOffset），段内的位置加上 baseOffset 就是消息在整个队列日志中的全局偏移量
+ * 段文件格式：
+ * 1，文件头：magic(4 字节) + version(4 字节)
+ * 2，若干条消息记录：消息长度(4 字节) + 有效标记(1 字节) + CRC(4 字节) + 消息内容，参考 {@link RecordCodec}
+ * 有效标记在记录头中的位置是固定的，确认消息的时候只需要原地改写这一个字节，不需要读出和重写整条消息
+ * 只有活跃段（最后一个段）可以追加写入，段被封存之后只允许改写有效标记
+ * 封存段通过内存映射读取和改写有效标记，参考 {@link SegmentMapping}
+ * 每个段旁边还有一个稀疏索引文件，参考 {@link SegmentIndex}
+ * 活跃段可以预分配到段的最大长度，预分配的部分是全 0 的，文件长度不再等于已经写入的长度：
+ * 封存的时候截断到实际长度，重启时活跃段的实际长度通过 {@link #recoverEnd()} 找到
+ */
+public class LogSegment {
+
+    /**
+     * 段文件的魔数 "CMQS"，用来识别文件是否是段文件
+     */
+    public static final int MAGIC = 0x434D5153;
+
+    /**
+     * 段文件格式版本
+     * 1 : 记录 = 长度 + 消息内容，有效标记在序列化的 Message 对象中
+     * 2 : 记录 = 长度 + 有效标记 + 消息内容（Java 序列化）
+     * 3 : 记录 = 长度 + 有效标记 + CRC + 消息内容（RecordCodec 编码）
+     */
+    public static final int VERSION = 3;
+
+    /**
+     * 文件头长度
+     */
+    public static final int HEADER_SIZE = 8;
+
+    /**
+     * 每条记录的记录头长度：4 字节长度 + 1 字节有效标记 + 4 字节 CRC
+     */
+    public static final int RECORD_HEADER_SIZE = 9;
+
+    /**
+     * 有效标记在记录头中的位置
+     */
+    public static final int FLAG_OFFSET = 4;
+
+    /**
+     * 有效标记：消息有效
+     */
+    public static final byte FLAG_VALID = 0x1;
+
+    /**
+     * 有效标记：消息已经被确认（删除）
+     */
+    public static final byte FLAG_DELETED = 0x0;
+
+    /**
+     * 标记位：消息内容是压缩过的，参考 {@link RecordCodec#compress(byte[])}
+     * 标记字节的最低位表示是否有效，确认消息的时候只清除最低位，保留其他标记位
+     */
+    public static final byte FLAG_COMPRESSED = 0x2;
+
+    /**
+     * 标记位：消息内容前面带有队列名，参考 {@link RecordCodec#tag(String, byte[])}
+     * 共享日志中所有队列的记录写在一起，恢复的时候根据队列名把消息分给各个队列
+     */
+    public static final byte FLAG_TAGGED = 0x4;
+
+    /**
+     * 标记位：消息体的位置保存的是公共消息体的 ID，消息体本身只在公共消息体日志中保存一份
+     * 扇出到多个持久化队列的消息使用这种记录，参考 {@link MessageFileManager#sendSharedMessage}
+     */
+    public static final byte FLAG_BODY_REF = 0x8;
+
+    /**
+     * 标记字节中所有已知的标记位，出现其他位说明记录损坏了
+     */
+    public static final byte FLAG_MASK = FLAG_VALID | FLAG_COMPRESSED | FLAG_TAGGED | FLAG_BODY_REF;
+
+    /**
+     * 段文件的后缀
+     */
+    public static final String SUFFIX = ".dat";
+
+    /**
+     * 段锁，保护文件通道、映射和段的统计信息，和日志锁一样不使用 synchronized
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 这个段的起始全局偏移量
+     */
+    @Getter
+    private final long baseOffset;
+
+    /**
+     * 段文件
+     */
+    @Getter
+    private final File file;
+
+    /**
+     * 段文件的读写通道，活跃段一直打开；封存段通过内存映射访问，只有不能映射的时候才按需打开
+     */
+    private FileChannel channel;
+
+    /**
+     * 正在通过这个段的通道发送消息体的读取者个数，大于 0 的时候关闭通道要推迟到最后一个读取者释放之后
+     */
+    private int channelReaders = 0;
+
+    /**
+     * 是否有一次关闭因为还有读取者而被推迟了
+     */
+    private boolean closePending = false;
+
+    /**
+     * 是否已经封存，封存之后不能再追加记录
+     */
+    private boolean sealed;
+
+    /**
+     * 当前段文件已经写入的字节数（包含文件头），由内存维护，追加时不需要再去查询文件长度
+     */
+    @Getter
+    private long size;
+
+    /**
+     * 这个段中的消息总数
+     */
+    @Getter
+    private int totalCount;
+
+    /**
+     * 这个段中还没有被确认（有效）的消息个数
+     */
+    @Getter
+    private int validCount;
+
+    /**
+     * 封存段的内存映射，第一次访问的时候才建立，段自己持有它的一个引用
+     */
+    private SegmentMapping mapping;
+
+    /**
+     * 映射的内存中是否有还没有刷盘的改写（确认消息时改写的有效标记）
+     */
+    private boolean mappingDirty = false;
+
+    /**
+     * 这个段的稀疏索引
+     */
+    @Getter
+    private SegmentIndex index = SegmentIndex.none();
+
+    /**
+     * 活跃段预分配的文件长度，0 表示不预分配
+     */
+    private long preallocateSize = 0;
+
+    private LogSegment(long baseOffset, File file) {
+        this.baseOffset = baseOffset;
+        this.file = file;
+    }
+
+    /**
+     * 根据起始偏移量得到段文件名
+     */
+    public static String fileName(long baseOffset) {
+        return String.format("%020d", baseOffset) + SUFFIX;
+    }
+
+    /**
+     * 判断一个文件名是否是段文件
+     */
+    public static boolean isSegmentFile(String name) {
+        return name.length() == 20 + SUFFIX.length() && name.endsWith(SUFFIX)
+                && name.substring(0, 20).chars().allMatch(Character::isDigit);
+    }
+
+    /**
+     * 从段文件名中解析出起始偏移量
+     */
+    public static long baseOffsetOf(File file) {
+        return Long.parseLong(file.getName().substring(0, 20));
+    }
+
+    /**
+     * 在指定目录下创建一个新的活跃段，并写入文件头，同时创建它的索引文件
+     */
+    public static LogSegment create(File dir, long baseOffset) throws IOException {
+        return create(dir, baseOffset, 0);
+    }
+
+    /**
+     * 创建新的活跃段，并把段文件预分配到指定长度
+     * 文件长度在创建的时候就定下来了，之后的追加写入不再改变文件长度，fsync 的时候不需要再刷文件长度这样的元数据
+     * @param preallocateSize 预分配的文件长度，0 表示不预分配
+     */
+    public static LogSegment create(File dir, long baseOffset, long preallocateSize) throws IOException {
+        LogSegment segment = createAt(new File(dir, fileName(baseOffset)), baseOffset);
+        segment.index = SegmentIndex.create(segment.file);
+        segment.preallocateSize = preallocateSize;
+        if (segment.preallocate()) segment.channel.force(true);
+        return segment;
+    }
+
+    /**
+     * 在指定文件上创建一个新的活跃段，文件名可以和 baseOffset 不一致（例如先写到临时文件再改名）
+     * 这样创建的段没有索引文件，改名之后在下一次扫描时重建索引
+     */
+    public static LogSegment createAt(File file, long baseOffset) throws IOException {
+        if (file.exists())
+            throw new MQException("[LogSegment] 段文件已经存在! file=" + file.getAbsolutePath());
+        LogSegment segment = new LogSegment(baseOffset, file);
+        segment.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        segment.writeFully(header, 0);
+        segment.size = HEADER_SIZE;
+        segment.channel.force(true);
+        forceDirectory(file.getParentFile());
+        return segment;
+    }
+
+    /**
+     * 新建文件之后需要把目录也刷到硬盘上，否则宕机之后目录项可能丢失
+     * 有些平台（Windows）不支持打开目录，这里只能尽力而为
+     */
+    static void forceDirectory(File dir) {
+        try (FileChannel dirChannel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            dirChannel.force(true);
+        } catch (IOException e) {
+            // 不支持对目录 fsync 的平台直接忽略
+        }
+    }
+
+    /**
+     * 读取段文件头中的格式版本
+     */
+    public static int readVersion(File file) throws IOException {
+        try (FileChannel readChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && readChannel.read(header) >= 0) ;
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+                throw new MQException("[LogSegment] 段文件头错误! file=" + file.getAbsolutePath());
+            return header.getInt();
+        }
+    }
+
+    /**
+     * 打开一个已经存在的段文件，并校验文件头，此时段处于封存状态，需要继续写入的话再调用 {@link #reopen()}
+     */
+    public static LogSegment open(File file) throws IOException {
+        int version = readVersion(file);
+        if (version != VERSION)
+            throw new MQException("[LogSegment] 不支持的段文件版本! version=" + version + ", file=" + file.getAbsolutePath());
+        LogSegment segment = new LogSegment(baseOffsetOf(file), file);
+        segment.size = file.length();
+        segment.sealed = true;
+        segment.index = SegmentIndex.load(file, segment.size);
+        return segment;
+    }
+
+    /**
+     * 把段重新打开为可写的活跃段（启动时最后一个段需要继续追加）
+     */
+    public void reopen() throws IOException {
+        lock.lock();
+        try {
+            reopen(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把段重新打开为可写的活跃段，并预分配到指定长度
+     * @param preallocateSize 预分配的文件长度，0 表示不预分配
+     */
+    public void reopen(long preallocateSize) throws IOException {
+        lock.lock();
+        try {
+            releaseMapping();
+            openChannel();
+            closePending = false;
+            index.openForAppend();
+            sealed = false;
+            this.preallocateSize = preallocateSize;
+            if (preallocate()) channel.force(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 用 RandomAccessFile.setLength 把活跃段文件扩展到预分配长度，已经写入的长度超过预分配长度时什么都不做
+     * 扩展出来的部分读出来都是 0，全 0 的记录头就表示后面没有数据了
+     * @return 文件长度是否发生了变化
+     */
+    private boolean preallocate() throws IOException {
+        if (sealed || preallocateSize <= size || channel.size() >= preallocateSize) return false;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(preallocateSize);
+        }
+        return true;
+    }
+
+    /**
+     * 判断一个记录头是不是预分配区域中全 0 的部分
+     * 真正的记录的消息内容至少包含消息 ID 等字段，长度不可能为 0，有效标记也至少带有有效位或者其他标记位之一
+     */
+    public static boolean isEndOfData(int messageSize, byte flag, int crc) {
+        return messageSize == 0 && flag == 0 && crc == 0;
+    }
+
+    /**
+     * 找到启动时最后一个段实际写入的末尾：段文件可能是预分配过的，文件长度比实际写入的长度大
+     * 从最后一条索引项开始逐条跳过记录，遇到全 0 的记录头就说明后面是预分配的区域，用这个位置作为段的长度，并按照新的长度重新加载索引
+     * 索引项本身也可能指向全 0 的区域（宕机前索引项落盘了，记录还没有落盘），这样的索引项先从后往前丢弃，再从剩下的最后一条开始跳过
+     * 这里不校验 CRC，遇到长度越界或者标记不合法的记录头直接停下，损坏的记录还是由 {@link QueueLog} 扫描的时候截断
+     */
+    public void recoverEnd() throws IOException {
+        lock.lock();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            try (FileChannel readChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long position = HEADER_SIZE;
+                for (long[] floor = index.floor(size); floor != null; floor = index.floor(size)) {
+                    readRecordHeader(readChannel, floor[1], header);
+                    if (!isEndOfData(header.getInt(0), header.get(FLAG_OFFSET), header.getInt(FLAG_OFFSET + 1))) {
+                        position = floor[1];
+                        break;
+                    }
+                    index.truncate(floor[1]);
+                }
+                while (position + RECORD_HEADER_SIZE <= size) {
+                    readRecordHeader(readChannel, position, header);
+                    int messageSize = header.getInt(0);
+                    byte flag = header.get(FLAG_OFFSET);
+                    if (isEndOfData(messageSize, flag, header.getInt(FLAG_OFFSET + 1))) {
+                        index.close();
+                        size = position;
+                        index = SegmentIndex.load(file, size);
+                        return;
+                    }
+                    if (messageSize < 0 || (flag & ~FLAG_MASK) != 0 || position + RECORD_HEADER_SIZE + messageSize > size)
+                        return;
+                    position += RECORD_HEADER_SIZE + messageSize;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 读取指定位置的记录头，读到文件末尾的时候剩下的部分保持为 0
+     */
+    private static void readRecordHeader(FileChannel readChannel, long position, ByteBuffer header) throws IOException {
+        header.clear();
+        while (header.hasRemaining() && readChannel.read(header, position + header.position()) >= 0) ;
+        while (header.hasRemaining()) header.put((byte) 0);
+    }
+
+    private void openChannel() throws IOException {
+        if (channel == null)
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * 判断这个段在已经攒下的 batchSize 字节之后，还能不能再放下一条 recordSize 字节的记录
+     * 空段总是可以放下第一条记录：超过段大小的记录只能放进空段，并且独占这个段，后面的记录写到下一个段中
+     */
+    public boolean hasRoomFor(long batchSize, long recordSize, long segmentSize) {
+        if (size + batchSize + recordSize <= segmentSize) return true;
+        return totalCount == 0 && batchSize == 0;
+    }
+
+    /**
+     * 一次写入一批已经编码好的消息记录（每条记录：记录头 + 消息内容），只调用一次写操作
+     * 写入之后数据还在操作系统的缓存中，需要调用 {@link #force()} 才能保证落盘
+     * 写入成功之后才把新的索引项加到索引中并追加到索引文件，写入失败不会留下指向没有数据的位置的索引项
+     * @param records 若干条连续的记录
+     * @param count 这批记录的条数
+     * @return 这批记录在整个队列日志中的全局起始偏移量
+     */
+    public long append(ByteBuffer records, int count) throws IOException {
+        if (sealed)
+            throw new MQException("[LogSegment] 段已经封存，不能再写入! file=" + file.getAbsolutePath());
+        long batchOffset = baseOffset + size;
+        int length = records.remaining();
+        int start = records.position();
+        writeFully(records, size);
+        int indexFrom = index.getEntryCount();
+        for (int i = 0, recordIndex = start; i < count; i++) {
+            index.add(totalCount + i, size + recordIndex - start);
+            recordIndex += RECORD_HEADER_SIZE + records.getInt(recordIndex);
+        }
+        index.flush(indexFrom);
+        size += length;
+        totalCount += count;
+        validCount += count;
+        return batchOffset;
+    }
+
+    public static boolean isValid(byte flag) {
+        return (flag & FLAG_VALID) != 0;
+    }
+
+    public static boolean isCompressed(byte flag) {
+        return (flag & FLAG_COMPRESSED) != 0;
+    }
+
+    public static boolean isTagged(byte flag) {
+        return (flag & FLAG_TAGGED) != 0;
+    }
+
+    public static boolean isBodyRef(byte flag) {
+        return (flag & FLAG_BODY_REF) != 0;
+    }
+
+    /**
+     * 把一条消息的有效标记原地改写为已删除，只需要写一个字节
+     * 只清除有效位，压缩标记等其他标记位保持不变
+     * 这里不做 fsync：如果宕机时这个字节还没落盘，重启之后这条消息会被重新投递一次（至少一次语义）
+     * @param offsetBeg 消息内容的全局起始偏移量，记录头就在它的前面
+     */
+    public void markDeleted(long offsetBeg) throws IOException {
+        lock.lock();
+        try {
+            long position = positionOf(offsetBeg) - RECORD_HEADER_SIZE + FLAG_OFFSET;
+            SegmentMapping mapped = mapping();
+            if (mapped != null) {
+                ByteBuffer buffer = mapped.buffer();
+                buffer.put((int) position, (byte) (buffer.get((int) position) & ~FLAG_VALID));
+                mappingDirty = true;
+            } else {
+                writeFully(ByteBuffer.wrap(new byte[]{(byte) (readFlag(offsetBeg) & ~FLAG_VALID)}), position);
+            }
+            decreaseValid();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 读取一条记录的标记字节
+     * @param offsetBeg 消息内容的全局起始偏移量
+     */
+    public byte readFlag(long offsetBeg) throws IOException {
+        lock.lock();
+        try {
+            long position = positionOf(offsetBeg) - RECORD_HEADER_SIZE + FLAG_OFFSET;
+            SegmentMapping mapped = mapping();
+            if (mapped != null) return mapped.buffer().get((int) position);
+            openChannel();
+            ByteBuffer flag = ByteBuffer.allocate(1);
+            while (flag.hasRemaining())
+                if (channel.read(flag, position) < 0)
+                    throw new MQException("[LogSegment] 读取记录标记越界! file=" + file.getAbsolutePath() + ", offset=" + offsetBeg);
+            return flag.get(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把已经写入的数据刷到硬盘上
+     * 和 {@link #seal()} 互斥：如果段已经被封存，封存的时候已经刷过盘了，这里什么都不用做
+     */
+    public void force() throws IOException {
+        lock.lock();
+        try {
+            if (!sealed && channel != null) channel.force(false);
+            forceMapping();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 封存段的有效标记是通过内存映射改写的，文件通道的 force 不一定包含映射的内存，需要单独刷盘
+     */
+    private void forceMapping() {
+        if (!mappingDirty || mapping == null) return;
+        mapping.force();
+        mappingDirty = false;
+    }
+
+    /**
+     * 读取一条记录的消息内容（lazy 队列投递消息时使用）
+     * 封存段直接从映射的内存中复制；活跃段中刚写入还没有 fsync 的数据也在操作系统缓存中，可以直接读到
+     * @param offset 消息内容的全局起始偏移量
+     * @param length 消息内容的长度
+     */
+    public ByteBuffer read(long offset, int length) throws IOException {
+        lock.lock();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            long position = positionOf(offset);
+            SegmentMapping mapped = mapping();
+            if (mapped != null) {
+                if (position < 0 || position + length > size)
+                    throw new MQException("[LogSegment] 读取消息越界! file=" + file.getAbsolutePath() + ", offset=" + offset);
+                mapped.buffer().get((int) position, buffer.array());
+                return buffer;
+            }
+            openChannel();
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0)
+                    throw new MQException("[LogSegment] 读取消息越界! file=" + file.getAbsolutePath() + ", offset=" + offset);
+                position += read;
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取封存段的内存映射并增加一个引用，使用完之后必须调用 {@link SegmentMapping#release()}
+     * 活跃段还在增长，不做映射；超过 2GB 的段没法用一个 MappedByteBuffer 映射
+     * @return 不能映射的时候返回 null，调用方改为通过文件通道读取
+     */
+    SegmentMapping acquireMapping() throws IOException {
+        lock.lock();
+        try {
+            SegmentMapping mapped = mapping();
+            return mapped == null ? null : mapped.retain();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 打开段文件中的一块区域作为投递用的消息体，不需要为每条消息打开一次文件
+     * 封存段使用内存映射的切片，持有映射的一个引用；活跃段（或者不能映射的段）直接使用段已经打开的通道，
+     * 期间段被封存或者关闭的话，通道等消息体关闭之后才真正关闭
+     * @param position 区域在段文件中的位置
+     * @param length 区域的长度
+     */
+    public MessageBody openBody(long position, int length) throws IOException {
+        lock.lock();
+        try {
+            if (position < HEADER_SIZE || position + length > size)
+                throw new MQException("[LogSegment] 读取消息越界! file=" + file.getAbsolutePath() + ", position=" + position);
+            SegmentMapping mapped = mapping();
+            if (mapped != null)
+                return MessageBody.of(mapped.retain().buffer().slice((int) position, length), mapped::release);
+            openChannel();
+            channelReaders++;
+            return MessageBody.of(channel, position, length, this::releaseChannel);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseChannel() {
+        lock.lock();
+        try {
+            channelReaders--;
+            if (channelReaders > 0 || !closePending) return;
+            closePending = false;
+            try {
+                closeChannel();
+            } catch (IOException e) {
+                System.out.println("[LogSegment] 关闭段文件通道失败! file=" + file.getAbsolutePath() + ", 错误原因: " + e.getMessage());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel == null) return;
+        channel.close();
+        channel = null;
+    }
+
+    private SegmentMapping mapping() throws IOException {
+        if (!sealed || size > Integer.MAX_VALUE) return null;
+        if (mapping == null) mapping = SegmentMapping.map(file, size);
+        return mapping;
+    }
+
+    /**
+     * 放弃段自己持有的映射引用，读取者全部释放之后映射才会真正解除
+     */
+    private void releaseMapping() {
+        if (mapping == null) return;
+        forceMapping();
+        mapping.release();
+        mapping = null;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /**
+     * 判断一条记录是否写入了这个段
+     */
+    public boolean contains(long offset) {
+        return offset >= baseOffset + HEADER_SIZE && offset < baseOffset + size;
+    }
+
+    /**
+     * 把全局偏移量换算成段文件内的位置
+     */
+    public long positionOf(long offset) {
+        return offset - baseOffset;
+    }
+
+    /**
+     * 把段文件截断到指定长度，恢复时丢弃末尾写了一半或者损坏的记录
+     */
+    public void truncate(long newSize) throws IOException {
+        lock.lock();
+        try {
+            releaseMapping();
+            openChannel();
+            channel.truncate(newSize);
+            size = newSize;
+//        活跃段截断之后重新预分配，截掉的部分重新扩展出来的时候都是 0，不会留下旧记录的残余
+            preallocate();
+            channel.force(true);
+            index.truncate(newSize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 用扫描段文件时收集到的索引项重建索引文件
+     */
+    public void rebuildIndex(SegmentIndex entries) throws IOException {
+        lock.lock();
+        try {
+            index.close();
+            index = SegmentIndex.rebuild(file, entries);
+            if (!sealed) index.openForAppend();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除索引文件，段中记录的位置要发生变化（压缩）之前调用
+     */
+    public void deleteIndex() throws IOException {
+        lock.lock();
+        try {
+            index.delete();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 启动恢复时，重新统计段中的消息数量
+     */
+    public void resetCount(int totalCount, int validCount) {
+        this.totalCount = totalCount;
+        this.validCount = validCount;
+    }
+
+    /**
+     * 一条消息被确认之后，有效消息个数减一
+     */
+    private void decreaseValid() {
+        if (validCount > 0) validCount--;
+    }
+
+    public boolean isSealed() {
+        lock.lock();
+        try {
+            return sealed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 封存这个段，先刷盘再关闭写通道，之后通过内存映射读取和改写有效标记
+     * 预分配过的段先截断掉末尾没有用到的部分，封存段的文件长度总是等于实际写入的长度
+     */
+    public void seal() throws IOException {
+        lock.lock();
+        try {
+            if (sealed) return;
+            sealed = true;
+            if (channel == null) return;
+            if (channel.size() > size) {
+                channel.truncate(size);
+                channel.force(true);
+            } else {
+                channel.force(false);
+            }
+            close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭段文件的通道，并放弃内存映射
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            index.close();
+            releaseMapping();
+            if (channelReaders > 0) {
+                closePending = true;
+                return;
+            }
+            closeChannel();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除这个段文件
+     */
+    public void delete() throws IOException {
+        lock.lock();
+        try {
+            seal();
+//        文件马上就要删除了，映射中改写的标记不需要再刷盘
+            mappingDirty = false;
+            close();
+            if (file.exists() && !file.delete())
+                throw new IOException("[LogSegment] 删除段文件失败! file=" + file.getAbsolutePath());
+            index.delete();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -6,11 +6,18 @@ import com.chase.mq.mqserver.core.Binding;
 import com.chase.mq.mqserver.core.Exchange;
 import com.chase.mq.mqserver.core.MSGQueue;
 import com.chase.mq.mqserver.core.Message;
+import com.chase.mq.mqserver.core.QueueMode;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * 这个类来统一管理内存中的所有数据
@@ -291,7 +298,8 @@ public class MemoryDataCenter {
      * 2,恢复所有交换机的数据
      * 3,恢复所有队列的数据
      * 4,恢复所有绑定数据
-     * 5,恢复所有消息数据
+     * 5,恢复所有消息数据，各个队列的消息在 ForkJoinPool 中并行恢复，每个队列的恢复耗时都会打印出来
+     * 6,所有队列恢复完之后，清理没有被任何队列引用的公共消息体
      * 注意:针对“未确认的消息”这部分内存中的数据，不需要从硬盘中恢复
      *      一旦在等待 ack 的过程中，服务器重启了，此时这些“未被确认的消息”，就恢复成“未被取走的消息”
      * @param diskDataCenter 操作硬盘信息的工具类
@@ -310,12 +318,53 @@ public class MemoryDataCenter {
                     k -> new ConcurrentHashMap<>());
             bindingMap.put(binding.getQueueName(),binding);
         }
-        for (MSGQueue msgQueue : msgQueues) {
-            LinkedList<Message> messages = diskDataCenter.loadAllMessageFromQueue(msgQueue.getName());
-            queueMessageMap.put(msgQueue.getName(),messages);
-            for (Message message : messages)
-                messageMap.put(message.getMessageId(),message);
+        long start = System.nanoTime();
+//        lazy 队列的消息恢复的时候不解码消息体，并行恢复多个积压很深的 lazy 队列也不会把消息体都读进内存
+        Set<String> lazyQueues = new HashSet<>();
+        for (MSGQueue msgQueue : msgQueues)
+            if (QueueMode.fromQueue(msgQueue) == QueueMode.LAZY) lazyQueues.add(msgQueue.getName());
+        ForkJoinPool recoveryPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+            for (MSGQueue msgQueue : msgQueues)
+                tasks.add(recoveryPool.submit(() -> recoverMessages(diskDataCenter, msgQueue, lazyQueues)));
+            for (ForkJoinTask<Void> task : tasks) {
+                try {
+                    task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("[MemoryDataCenter] 恢复消息时被中断!", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof ClassNotFoundException) throw (ClassNotFoundException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    throw new MQException("[MemoryDataCenter] 恢复消息失败! " + cause);
+                }
+            }
+        } finally {
+            recoveryPool.shutdown();
         }
+        diskDataCenter.finishRecovery();
+        System.out.println("[MemoryDataCenter] 所有队列的消息恢复完成! 队列数=" + msgQueues.size()
+                + ", 消息数=" + messageMap.size() + ", 耗时=" + (System.nanoTime() - start) / 1_000_000 + "ms");
+    }
+
+    /**
+     * 恢复一个队列的消息，在恢复线程池中执行，不同队列之间互不影响
+     * lazy 队列的消息恢复的时候就不解码消息体，投递的时候再从段文件中读取
+     * @param lazyQueues 所有 lazy 队列的队列名
+     */
+    private Void recoverMessages(DiskDataCenter diskDataCenter, MSGQueue queue, Set<String> lazyQueues) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        String queueName = queue.getName();
+        LinkedList<Message> messages = diskDataCenter.loadAllMessageFromQueue(queueName, name -> !lazyQueues.contains(name));
+        queueMessageMap.put(queueName,messages);
+        for (Message message : messages)
+            messageMap.put(message.getMessageId(),message);
+        System.out.println("[MemoryDataCenter] 队列消息恢复完成! queueName=" + queueName
+                + ", 消息数=" + messages.size() + ", 耗时=" + (System.nanoTime() - start) / 1_000_000 + "ms");
+        return null;
     }
 
     /**
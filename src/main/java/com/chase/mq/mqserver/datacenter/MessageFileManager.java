@@ -1,30 +1,299 @@
 package com.chase.mq.mqserver.datacenter;
 
 
-import com.chase.mq.common.server.BinaryTool;
+import com.chase.mq.MqApplication;
 import com.chase.mq.common.server.MQException;
+import com.chase.mq.mqserver.core.CompressionType;
+import com.chase.mq.mqserver.core.DurabilityLevel;
+import com.chase.mq.mqserver.core.DurabilityPolicy;
 import com.chase.mq.mqserver.core.MSGQueue;
 import com.chase.mq.mqserver.core.Message;
-import lombok.AllArgsConstructor;
-import lombok.NoArgsConstructor;
+import com.chase.mq.mqserver.core.MessageBody;
+import lombok.Getter;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Scanner;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 /**
  * 这个类实现对硬盘消息的管理
+ * 每个队列的消息保存在 <数据目录>/<queueName>/ 目录下的若干个段文件中，参考 {@link QueueLog}
+ * 可以配置多个数据目录（一般每块硬盘一个），每个数据目录有自己的 I/O 线程，参考 {@link StorageLayout}
+ * 开启共享日志（mq.storage.shared-journal）之后，所有队列的消息都追加到 .journal 目录下的同一个日志中，
+ * 记录中带有队列名，每个队列只在内存中保留自己的索引（统计信息和还没有确认的消息），
+ * 大量的小队列不再各自占用目录、段文件和文件句柄，零散的追加也合并成了一个顺序写入流
+ * 共享日志的段仍然按照段中有效记录的个数（引用计数）来删除和压缩
+ * 扇出到多个持久化队列的消息，消息体只在 .bodies 目录下的公共消息体日志中保存一份，
+ * 各个队列的记录中只保存消息体的 ID，公共消息体带有引用计数，所有队列都确认之后才删除
  */
 public class MessageFileManager {
 
-    @NoArgsConstructor
-    @AllArgsConstructor
-//    定义一个内部类来表示该队列的统计信息
+//    定义一个内部类来表示该队列的统计信息，计数器只在内存中更新，由 QueueLog 定期写入二进制检查点文件
     static public class Stat{
-        public int totalCount;
-        public int validCount;
+        public final AtomicInteger totalCount = new AtomicInteger();
+        public final AtomicInteger validCount = new AtomicInteger();
+//        压缩统计，只在内存中，不写入检查点：压缩前后的消息内容字节数、压缩和解压花费的时间（纳秒）
+        public final AtomicLong rawBytes = new AtomicLong();
+        public final AtomicLong storedBytes = new AtomicLong();
+        public final AtomicLong compressNanos = new AtomicLong();
+        public final AtomicLong decompressNanos = new AtomicLong();
+
+//        上一次打印压缩统计时的 rawBytes，只在定时器线程中访问，没有新的压缩写入就不重复打印
+        private long reportedRawBytes = 0;
+
+//        压缩比：压缩前的字节数 / 实际保存的字节数，没有写入过消息的时候为 1
+        public double compressionRatio() {
+            long stored = storedBytes.get();
+            return stored == 0 ? 1.0 : (double) rawBytes.get() / stored;
+        }
 }
 
+    /**
+     * 共享日志的配置项
+     */
+    public static final String SHARED_JOURNAL_KEY = "mq.storage.shared-journal";
+
+    /**
+     * 活跃段预分配的配置项
+     */
+    public static final String PREALLOCATE_KEY = "mq.storage.preallocate";
+
+    /**
+     * 共享日志的名字，也是它在数据目录下的目录名
+     */
+    public static final String JOURNAL_NAME = ".journal";
+
+    /**
+     * 公共消息体日志的名字，也是它在数据目录下的目录名
+     */
+    public static final String BODY_STORE_NAME = ".bodies";
+
+    /**
+     * 公共消息体：消息体在公共消息体日志中的记录，以及还有多少条队列消息引用它
+     */
+    private static class SharedBody {
+        /**
+         * 公共消息体日志中的消息，offsetBeg 和 offsetEnd 由日志维护（压缩移动记录时会更新）
+         */
+        private final Message stored;
+
+        private final AtomicInteger references;
+
+        private SharedBody(Message stored, int references) {
+            this.stored = stored;
+            this.references = new AtomicInteger(references);
+        }
+    }
+
+    /**
+     * 共享日志模式下一个队列在内存中的索引
+     */
+    private static class JournalQueue {
+        private final Stat stat = new Stat();
+
+        /**
+         * 这个队列还没有确认的持久化消息，删除队列的时候要把它们在共享日志中标记为已删除
+         * key : messageId
+         */
+        private final ConcurrentHashMap<String, Message> liveMessages = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 默认的单个段文件大小：16MB
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * 单个段文件的最大字节数，活跃段写满之后会滚动出新的段
+     */
+    private final long segmentSize;
+
+    /**
+     * 每个队列对应的消息日志，日志的活跃段写通道一直保持打开，不需要每次写消息都打开关闭文件
+     * key : queueName
+     * value : QueueLog
+     */
+    private final ConcurrentHashMap<String, QueueLog> queueLogs = new ConcurrentHashMap<>();
+
+    /**
+     * 数据目录的布局：队列放在哪个数据目录中，以及每个数据目录负责写入和刷盘的 I/O 线程
+     * 同一个数据目录中所有队列的组提交都在这个目录的 I/O 线程中执行
+     */
+    @Getter
+    private final StorageLayout layout;
+
+    /**
+     * lazy 队列的消息体缓存，所有队列共用
+     */
+    private final BodyCache bodyCache = new BodyCache(BodyCache.configuredCapacity());
+
+    /**
+     * 后台压缩调度器，定时检查所有队列，压缩不会在确认消息的线程中执行
+     */
+    private final CompactionScheduler compactionScheduler;
+
+    /**
+     * 硬盘空间监控，剩余空间不足时阻塞持久化消息的发布者
+     */
+    @Getter
+    private final DiskMonitor diskMonitor;
+
+    /**
+     * 统计检查点的写入间隔
+     */
+    public static final long STAT_CHECKPOINT_INTERVAL_MS = 1000;
+
+    /**
+     * 打印压缩统计的间隔
+     */
+    public static final long COMPRESSION_REPORT_INTERVAL_MS = 60 * 1000;
+
+    /**
+     * 存储相关的定时任务线程：INTERVAL 落盘级别的定时刷盘，统计信息的定时检查点
+     */
+    private final ScheduledExecutorService storageTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mq-storage-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * INTERVAL 级别队列的定时刷盘任务
+     * key : queueName
+     * value : 定时任务
+     */
+    private final ConcurrentHashMap<String, ScheduledFuture<?>> fsyncTasks = new ConcurrentHashMap<>();
+
+    /**
+     * 是否所有队列共用一个日志
+     */
+    private final boolean sharedJournal;
+
+    /**
+     * 是否在创建活跃段的时候把段文件预分配到 segmentSize
+     */
+    @Getter
+    private final boolean preallocate;
+
+    /**
+     * 共享日志模式下每个队列的索引
+     * key : queueName
+     */
+    private final ConcurrentHashMap<String, JournalQueue> journalQueues = new ConcurrentHashMap<>();
+
+    /**
+     * 共享日志恢复时按照队列分好组、还没有被对应队列取走的消息，第一次加载消息的时候扫描一遍共享日志得到
+     */
+    private Map<String, LinkedList<Message>> recoveredMessages = null;
+
+    /**
+     * 所有的公共消息体
+     * key : 公共消息体的 ID
+     */
+    private final ConcurrentHashMap<String, SharedBody> sharedBodies = new ConcurrentHashMap<>();
+
+    /**
+     * 公共消息体日志是否已经加载过，必须在写入新的公共消息体之前加载，否则加载会覆盖掉新写入的记录
+     */
+    private boolean sharedBodiesLoaded = false;
+
+    /**
+     * 每个队列中引用了公共消息体的消息，删除队列的时候要释放这些引用
+     * key : queueName, value : (messageId -> 公共消息体的 ID)
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, String>> queueBodyRefs = new ConcurrentHashMap<>();
+
+    public MessageFileManager() {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+
+    public MessageFileManager(long segmentSize) {
+        this(segmentSize, sharedJournalEnabled());
+    }
+
+    public MessageFileManager(long segmentSize, boolean sharedJournal) {
+        this(segmentSize, sharedJournal, StorageLayout.load());
+    }
+
+    public MessageFileManager(long segmentSize, boolean sharedJournal, StorageLayout layout) {
+        this(segmentSize, sharedJournal, layout, preallocateEnabled());
+    }
+
+    public MessageFileManager(long segmentSize, boolean sharedJournal, StorageLayout layout, boolean preallocate) {
+        this.segmentSize = segmentSize;
+        this.sharedJournal = sharedJournal;
+        this.preallocate = preallocate;
+        this.layout = layout;
+        this.compactionScheduler = new CompactionScheduler(queueLogs, layout, CompactionPolicy.load());
+        this.diskMonitor = DiskMonitor.load(layout, compactionScheduler::compactAllNow);
+        storageTimer.scheduleWithFixedDelay(this::checkpointStats,
+                STAT_CHECKPOINT_INTERVAL_MS, STAT_CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        storageTimer.scheduleWithFixedDelay(this::checkDiskSpace, 0, diskMonitor.getCheckIntervalMs(), TimeUnit.MILLISECONDS);
+        storageTimer.scheduleWithFixedDelay(this::reportCompressionStats,
+                COMPRESSION_REPORT_INTERVAL_MS, COMPRESSION_REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        compactionScheduler.start();
+    }
+
+    /**
+     * 把所有统计信息有变化的队列写一次检查点
+     */
+    private void checkpointStats() {
+        for (QueueLog queueLog : queueLogs.values()) {
+            try {
+                queueLog.checkpointIfDirty();
+            } catch (IOException e) {
+                System.out.println("[MessageFileManager]写入统计检查点失败！queueName = " + queueLog.getQueueName()
+                        + ", 错误原因：" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 定期打印开启了压缩的队列的压缩统计：压缩前后的字节数、压缩比、压缩和解压花费的时间
+     */
+    private void reportCompressionStats() {
+        if (sharedJournal) {
+            for (Map.Entry<String, JournalQueue> entry : journalQueues.entrySet())
+                reportCompressionStat(entry.getKey(), entry.getValue().stat);
+        } else {
+            for (QueueLog queueLog : queueLogs.values())
+                reportCompressionStat(queueLog.getQueueName(), queueLog.getStat());
+        }
+    }
+
+    private static void reportCompressionStat(String queueName, Stat stat) {
+        long rawBytes = stat.rawBytes.get();
+        if (rawBytes == stat.reportedRawBytes) return;
+        stat.reportedRawBytes = rawBytes;
+        System.out.println("[MessageFileManager]压缩统计！queueName = " + queueName
+                + ", rawBytes = " + rawBytes + ", storedBytes = " + stat.storedBytes.get()
+                + ", ratio = " + String.format("%.2f", stat.compressionRatio())
+                + ", compressMs = " + TimeUnit.NANOSECONDS.toMillis(stat.compressNanos.get())
+                + ", decompressMs = " + TimeUnit.NANOSECONDS.toMillis(stat.decompressNanos.get()));
+    }
+
+    private void checkDiskSpace() {
+        try {
+            diskMonitor.check();
+        } catch (RuntimeException e) {
+            System.out.println("[MessageFileManager]检查硬盘空间失败！错误原因：" + e.getMessage());
+        }
+    }
+
     /**
      * 需要准备的初始化工作
      */
@@ -33,291 +302,517 @@ public class MessageFileManager {
     }
 
     /**
-     * 获取指定队列对应的消息文件所在的路径
+     * 从 Spring 的配置中读取是否开启共享日志，没有启动 Spring 上下文的时候不开启
      */
-    private String getQueueDir(String queueName){
-        return "./data/"+queueName;
+    public static boolean sharedJournalEnabled() {
+        if (MqApplication.context == null) return false;
+        return MqApplication.context.getEnvironment().getProperty(SHARED_JOURNAL_KEY, Boolean.class, false);
     }
 
     /**
-     * 这个方法获取该队列的消息数据文件路径
-     * 二进制文件一般不使用 txt 作为后缀，一般使用 .bin / .dat
+     * 从 Spring 的配置中读取是否预分配活跃段，默认开启
      */
-    private String getQueueDataPath(String queueName){
-        return getQueueDir(queueName)+"/queue_data.txt";
+    public static boolean preallocateEnabled() {
+        if (MqApplication.context == null) return true;
+        return MqApplication.context.getEnvironment().getProperty(PREALLOCATE_KEY, Boolean.class, true);
     }
 
     /**
-     * 这个方法用来获取该消息的统计文件路径
+     * 获取指定队列对应的消息文件所在的路径：已经存在的队列在它原来的数据目录中，新队列按照放置策略选择数据目录
      */
-    private String getQueueStatPath(String queueName){
-        return getQueueDir(queueName)+"/queue_stat.txt";
+    private File getQueueDir(String queueName){
+        return layout.dirOf(queueName);
     }
 
     /**
-     * 读取指定队列的消息统计文件信息
-     * @param queueName 指定的队列
-     * @return 统计信息 -> Stat
+     * 队列的消息写在哪个日志中：共享日志模式下所有队列都写在共享日志中
      */
-    private Stat readStat(String queueName){
-//        由于是文本文件所以可以直接使用 Scanner 来读取
-        Stat stat = new Stat();
-        try (FileInputStream fileInputStream = new FileInputStream(getQueueStatPath(queueName))){
-            Scanner scanner = new Scanner(fileInputStream);
-            stat.totalCount = scanner.nextInt();
-            stat.validCount = scanner.nextInt();
-            return stat;
-        }catch (IOException e){
-            e.printStackTrace();
-        }
-        return null;
+    private String logNameOf(String queueName) {
+        return sharedJournal ? JOURNAL_NAME : queueName;
     }
 
     /**
-     * 向指定消息统计文件写入信息
-     * 使用 PrintWrite 来写文件
-     * OutputStream 打开文件，默认情况下，会把原文件直接清空，此时相当于新的数据覆盖了旧的数据
+     * 获取队列对应的消息日志，第一次使用的时候打开段文件
+     * 日志打开之后必须先扫描一遍段文件，统计出每个段的消息数量，后续才能正确判断段是否可以删除
      */
-    private void writeStat(String queueName,Stat stat){
-        try (FileOutputStream fileOutputStream = new FileOutputStream(getQueueStatPath(queueName))){
-            PrintWriter printWriter = new PrintWriter(fileOutputStream);
-            printWriter.write(stat.totalCount+"\t"+stat.validCount);
-            printWriter.flush();
-        }catch (IOException e){
-            e.printStackTrace();
+    private QueueLog getQueueLog(String queueName) throws IOException, ClassNotFoundException {
+        QueueLog queueLog = openQueueLog(queueName);
+        queueLog.ensureRecovered();
+        return queueLog;
+    }
+
+    private QueueLog openQueueLog(String queueName) throws IOException {
+        return openLog(logNameOf(queueName), sharedJournal);
+    }
+
+    /**
+     * 打开指定名字的日志，并交给检查点定时任务和压缩调度器管理
+     * @param create 目录不存在的时候是否创建，共享日志和公共消息体日志没有单独创建目录的步骤
+     */
+    private QueueLog openLog(String logName, boolean create) throws IOException {
+        QueueLog queueLog = queueLogs.get(logName);
+        if (queueLog != null) return queueLog;
+        synchronized (queueLogs) {
+            queueLog = queueLogs.get(logName);
+            if (queueLog == null) {
+                File dir = getQueueDir(logName);
+                if (create && !dir.exists() && !dir.mkdirs())
+                    throw new IOException("创建日志目录失败! dir=" + dir.getAbsolutePath());
+                queueLog = new QueueLog(logName, dir, segmentSize, layout.ioExecutorOf(logName), preallocate);
+                queueLogs.put(logName, queueLog);
+            }
+            return queueLog;
         }
     }
 
+    private JournalQueue journalQueue(String queueName) {
+        JournalQueue journalQueue = journalQueues.get(queueName);
+        if (journalQueue == null)
+            throw new MQException("[MessageFileManager]共享日志中没有这个队列！queueName = " + queueName);
+        return journalQueue;
+    }
+
+    /**
+     * 获取指定队列的统计信息，统计信息一直保存在内存中，不需要读文件
+     * 共享日志模式下是这个队列自己的统计：只统计启动恢复之后还在日志中的有效消息和之后写入的消息
+     */
+    public Stat getStat(String queueName) throws IOException, ClassNotFoundException {
+        if (sharedJournal) return journalQueue(queueName).stat;
+        return getQueueLog(queueName).getStat();
+    }
+
     /**
      * 创建对应队列对目录和文件
+     * 共享日志模式下不创建任何文件，只在内存中登记这个队列
      */
     public void createQueueFiles(String queueName) throws IOException {
+        if (sharedJournal) {
+            openQueueLog(queueName);
+            journalQueues.putIfAbsent(queueName, new JournalQueue());
+            return;
+        }
 //        先创建对应的消息目录
-        File baseDir = new File(getQueueDir(queueName));
+        File baseDir = getQueueDir(queueName);
         if(!baseDir.exists()) {
             boolean ok = baseDir.mkdirs();
             if (!ok) throw new IOException("创建目录失败! baseDir="+baseDir.getAbsolutePath());
         }
 
-//        创建队列数据文件
-        File queueDataFile = new File(getQueueDataPath(queueName));
-        if(!queueDataFile.exists()){
-            boolean ok = queueDataFile.createNewFile();
-            if (!ok) throw new IOException("创建队列数据文件失败! queueDataFile="+queueDataFile.getAbsolutePath());
-        }
-
-//        创建队列消息统计文件
-        File queueStatFile = new File(getQueueStatPath(queueName));
-        if(!queueDataFile.exists()){
-            boolean ok = queueDataFile.createNewFile();
-            if (!ok) throw new IOException("创建队列统计文件失败! queueStatFile="+queueStatFile.getAbsolutePath());
-        }
-
-//        初始化消息数据
-        Stat stat = new Stat(0,0);
-        writeStat(queueName,stat);
+//        创建队列的消息日志，会同时创建第一个段文件，并写入初始的统计检查点
+        openQueueLog(queueName).checkpoint();
     }
 
     /**
      * 删除队列的目录和文件
-     * 队列也是可以被删除的，当队列删除之后，对应的消息文件和统计文件也应该被删除
+     * 队列也是可以被删除的，当队列删除之后，对应的段文件和统计检查点文件也应该被删除
      */
     public void destroyQueueFiles(String queueName) throws IOException {
-        File dataFile = new File(getQueueDataPath(queueName));
-        boolean data = dataFile.delete();
-        File statFile = new File(getQueueStatPath(queueName));
-        boolean stat = statFile.delete();
-        File dirFile = new File(getQueueDir(queueName));
+        ConcurrentHashMap<String, String> bodyRefs = queueBodyRefs.remove(queueName);
+        if (bodyRefs != null)
+            for (String bodyId : bodyRefs.values()) releaseSharedBody(bodyId);
+        if (sharedJournal) {
+            destroyJournalQueue(queueName);
+            return;
+        }
+        ScheduledFuture<?> fsyncTask = fsyncTasks.remove(queueName);
+        if (fsyncTask != null) fsyncTask.cancel(false);
+        QueueLog queueLog = queueLogs.remove(queueName);
+        if (queueLog == null) queueLog = new QueueLog(queueName, getQueueDir(queueName), segmentSize, layout.ioExecutorOf(queueName), preallocate);
+        queueLog.destroy();
+        File dirFile = getQueueDir(queueName);
         boolean dir = dirFile.delete();
-        if(!data||!stat||!dir) throw new IOException("删除队列目录和文件失败！baseDir="+dirFile);
+        if(!dir) throw new IOException("删除队列目录和文件失败！baseDir="+dirFile);
+        layout.forget(queueName);
     }
 
     /**
-     * 检查对应的队列目录和文件是否存在 -> 队列的数据文件和统计文件都需要检查！！！
+     * 共享日志模式下删除队列：把这个队列还没有确认的消息在共享日志中全部标记为已删除
+     */
+    private void destroyJournalQueue(String queueName) throws IOException {
+        JournalQueue journalQueue = journalQueues.remove(queueName);
+        if (journalQueue == null) return;
+        QueueLog journal;
+        try {
+            journal = getQueueLog(queueName);
+        } catch (ClassNotFoundException e) {
+            throw new MQException("[MessageFileManager]打开共享日志失败！queueName = " + queueName);
+        }
+        for (Message message : journalQueue.liveMessages.values()) {
+            journal.markDeleted(message);
+            bodyCache.remove(message.getMessageId());
+        }
+    }
+
+    /**
+     * 检查对应的队列目录是否存在
      * 假设后续有生产者给 broker server 生产消息，这个消息就可能需要被记录到文件上（取决于消息是否要持久化）
+     * 已经打开过的队列日志直接认为存在，避免每次写消息都去查询文件系统
      */
     public boolean checkFilesExits(String queueName){
-        File dataFile = new File(getQueueDataPath(queueName));
-        File statFile = new File(getQueueStatPath(queueName));
-        return dataFile.exists() && statFile.exists();
+        if (sharedJournal) return journalQueues.containsKey(queueName);
+        if (queueLogs.containsKey(queueName)) return true;
+        return layout.find(queueName) != null;
     }
 
 
     /**
-     * 用来把一个新的消息放到队列的对应文件中
-     * DataOutputStream : 是 Java 标准库中用来写指定字节的 IO 类
+     * 按照队列参数中声明的落盘策略写入消息
      */
     public void sendMessage(MSGQueue queue, Message message) throws IOException {
+        sendMessage(queue, message, DurabilityPolicy.fromQueue(queue));
+    }
+
+    /**
+     * 用来把一个新的消息放到队列的对应文件中
+     * 消息交给队列日志做组提交：和其他并发的写入合并成一次写操作和一次 fsync
+     * 这个方法会一直等到消息按照落盘策略写入完成之后才返回，等待期间不持有队列锁，这样并发的写入才能合并到同一批中
+     * 共享日志模式下所有队列共用一个日志，日志总是按照默认策略（ALWAYS）刷盘，队列自己的落盘策略不生效
+     * @param policy 这个队列的落盘策略
+     */
+    public void sendMessage(MSGQueue queue, Message message, DurabilityPolicy policy) throws IOException {
+        awaitAppend(queue, message, appendMessage(queue, message, policy));
+    }
+
+    /**
+     * 把一条消息扇出到多个持久化队列，消息体只写一份：
+     * 1，消息体先写入公共消息体日志并等待落盘（公共消息体日志总是按照默认策略 ALWAYS 刷盘）
+     * 2，每个队列的记录中只写消息体的 ID，各个队列的写入同时提交，最后一起等待，按照各自的落盘策略完成
+     * 宕机发生在两步之间的时候，没有被引用的公共消息体在下一次启动恢复完成之后删除
+     * 这些消息共用同一个消息体数组，消息体只取第一条消息的
+     * @param queues 消息要写入的队列
+     * @param messages 每个队列各自的消息（消息 ID 不同），和 queues 一一对应
+     * @param policies 每个队列的落盘策略，和 queues 一一对应
+     */
+    public void sendSharedMessage(List<MSGQueue> queues, List<Message> messages, List<DurabilityPolicy> policies) throws IOException {
+        for (MSGQueue queue : queues)
+            if (!checkFilesExits(queue.getName()))
+                throw new MQException("[MessageFileManager]队列对应的文件不存在！queueName = " + queue.getName());
+        QueueLog bodyLog = loadSharedBodies(true);
+        Message stored = Message.createMessageWithId(messages.get(0).getRoutingKey(), null, messages.get(0).getBody());
+        stored.setMessageId("B-" + UUID.randomUUID());
+        stored.setDeliverModel(2);
+        awaitAppend(null, stored, bodyLog.append(stored, RecordCodec.encode(stored), LogSegment.FLAG_VALID));
+//        消息体已经在各个队列的消息上了，公共消息体对象不再保留一份
+        stored.setBody(null);
+        String bodyId = stored.getMessageId();
+        sharedBodies.put(bodyId, new SharedBody(stored, queues.size()));
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        IOException failure = null;
+        for (int i = 0; i < queues.size(); i++) {
+            Message message = messages.get(i);
+            message.setBodyRef(bodyId);
+            queueBodyRefs.computeIfAbsent(queues.get(i).getName(), k -> new ConcurrentHashMap<>())
+                    .put(message.getMessageId(), bodyId);
+            try {
+                futures.add(appendMessage(queues.get(i), message, policies.get(i)));
+            } catch (IOException | RuntimeException e) {
+                futures.add(CompletableFuture.failedFuture(e));
+            }
+        }
+        for (int i = 0; i < queues.size(); i++) {
+            try {
+                awaitAppend(queues.get(i), messages.get(i), futures.get(i));
+            } catch (IOException e) {
+//                写入失败的队列不会再确认这条消息，直接释放它的引用
+                releaseBodyRef(queues.get(i).getName(), messages.get(i).getMessageId());
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * 把消息编码之后提交给队列日志，不等待写入完成，之后必须调用 {@link #awaitAppend} 等待完成
+     * 批量发布的时候先把一批消息都提交，再逐个等待，这一批消息可以合并到同一次组提交中
+     */
+    public CompletableFuture<Void> appendMessage(MSGQueue queue, Message message, DurabilityPolicy policy) throws IOException {
 //        先检查一下当前队列是否存在
         if(!checkFilesExits(queue.getName()))
             throw new MQException("[MessageFileManager]队列对应的文件不存在！queueName = "+queue.getName());
-//        把 Message 对象序列化为 二进制数据
-        byte[] messageBinary = BinaryTool.toBytes(message);
-//        避免发生线程安全问题
-        synchronized (queue){
-//            先获取当前队列数据文件的长度，用来计算该 Message 对象的 offsetBeg 和 offsetEnd
-//            把新的 Message 数据，写入到数据文件的末尾，此时 Message 对象的 offsetBeg，就是当前文件长度 +4
-//            offsetEnd 长度就是当前文件长度 +4 + message 自身长度
-            File queueDataFile = new File(getQueueDataPath(queue.getName()));
-            message.setOffsetBeg(queueDataFile.length() + 4);
-            message.setOffsetEnd(queueDataFile.length() + 4 + messageBinary.length);
-//            追加写入消息到文件
-            try(OutputStream fileOutputStream = new FileOutputStream(queueDataFile,true)){
-                try(DataOutputStream dataOutputStream = new DataOutputStream(fileOutputStream)){
-//                    先保存消息长度（4个字节）然后再保存消息内容
-                    dataOutputStream.writeInt(messageBinary.length);
-                    dataOutputStream.write(messageBinary);
-                }
+//        把 Message 对象编码为二进制数据，参考 RecordCodec
+        byte[] messageBinary = RecordCodec.encode(message);
+        QueueLog queueLog;
+        try {
+            queueLog = getQueueLog(queue.getName());
+        } catch (ClassNotFoundException e) {
+            throw new MQException("[MessageFileManager]打开队列日志失败！queueName = " + queue.getName());
+        }
+        JournalQueue journalQueue = null;
+        Stat stat;
+        if (sharedJournal) {
+            journalQueue = journalQueue(queue.getName());
+            stat = journalQueue.stat;
+        } else {
+            applyDurabilityPolicy(queue.getName(), queueLog, policy);
+            stat = queueLog.getStat();
+        }
+        byte[] payload = messageBinary;
+        byte flag = LogSegment.FLAG_VALID;
+        if (message.getBodyRef() != null) flag |= LogSegment.FLAG_BODY_REF;
+//        开启了压缩的队列，在调用方的线程中压缩，不占用 I/O 线程
+        if (CompressionType.fromQueue(queue) == CompressionType.DEFLATE) {
+            long start = System.nanoTime();
+            byte[] compressed = RecordCodec.compress(messageBinary);
+            stat.compressNanos.addAndGet(System.nanoTime() - start);
+            stat.rawBytes.addAndGet(messageBinary.length);
+            stat.storedBytes.addAndGet(compressed == null ? messageBinary.length : compressed.length);
+            if (compressed != null) {
+                payload = compressed;
+                flag |= LogSegment.FLAG_COMPRESSED;
             }
-//            更新消息统计文件数据
-            Stat stat = readStat(queue.getName());
-            assert stat != null;
-            stat.totalCount++;
-            stat.validCount++;
-            writeStat(queue.getName(),stat);
         }
+//        共享日志中的记录带上队列名，恢复的时候才知道消息属于哪个队列
+        if (sharedJournal) {
+            payload = RecordCodec.tag(queue.getName(), payload);
+            flag |= LogSegment.FLAG_TAGGED;
+        }
+        return queueLog.append(message, payload, flag);
+    }
 
+    /**
+     * 等待追加写入完成，完成之后 Message 对象的 offsetBeg 和 offsetEnd 已经设置好了
+     * @param queue 消息所在的队列，写入公共消息体的时候为 null
+     */
+    public void awaitAppend(MSGQueue queue, Message message, CompletableFuture<Void> future) throws IOException {
+        String queueName = queue == null ? BODY_STORE_NAME : queue.getName();
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("[MessageFileManager]等待消息落盘时被中断！queueName = " + queueName, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("[MessageFileManager]写入消息失败！queueName = " + queueName, e.getCause());
+        }
+        JournalQueue journalQueue = sharedJournal && queue != null ? journalQueues.get(queueName) : null;
+        if (journalQueue != null) {
+            journalQueue.liveMessages.put(message.getMessageId(), message);
+            journalQueue.stat.totalCount.incrementAndGet();
+            journalQueue.stat.validCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * 把落盘策略应用到队列日志上，INTERVAL 级别需要启动定时刷盘任务
+     */
+    private void applyDurabilityPolicy(String queueName, QueueLog queueLog, DurabilityPolicy policy) {
+        if (policy.equals(queueLog.getDurabilityPolicy())) return;
+        synchronized (queueLog) {
+            if (policy.equals(queueLog.getDurabilityPolicy())) return;
+            queueLog.setDurabilityPolicy(policy);
+            ScheduledFuture<?> oldTask = fsyncTasks.remove(queueName);
+            if (oldTask != null) oldTask.cancel(false);
+            if (policy.getLevel() == DurabilityLevel.INTERVAL) {
+                long interval = policy.getFsyncIntervalMs();
+                fsyncTasks.put(queueName, storageTimer.scheduleWithFixedDelay(() -> {
+                    try {
+                        queueLog.forceIfDirty();
+                    } catch (IOException e) {
+                        System.out.println("[MessageFileManager]定时刷盘失败！queueName = " + queueName + ", 错误原因：" + e.getMessage());
+                    }
+                }, interval, interval, TimeUnit.MILLISECONDS));
+            }
+            System.out.println("[MessageFileManager]队列落盘策略：queueName = " + queueName + ", level = "
+                    + policy.getLevel().getValue() + ", fsyncIntervalMs = " + policy.getFsyncIntervalMs());
+        }
     }
 
     /**
      * 删除消息
-     * 逻辑删除：把消息体中 isValid 属性设置为 0x0 就行
-     * 先将文件中对应数据反序列化为 Message 对象修改属性之后再将数据重新写回文件
-     * RandomAccessFile : Java 标准库中支持对文件的光标移动读取类
+     * 逻辑删除：把记录头中固定位置的有效标记原地改写为 0x0，只需要写一个字节，不需要读出和重新序列化消息
+     * 如果这条消息所在的段已经封存，并且段中的消息都被确认了，就直接删除整个段文件
      * @param queue 被删除消息所在的队列
      * @param message 此处被删除的消息必须包含有效的 offsetBeg 和 offsetEnd 数值
      */
     public void deleteMessage(MSGQueue queue,Message message) throws IOException, ClassNotFoundException {
-        synchronized (queue){
-            try(RandomAccessFile randomAccessFile = new RandomAccessFile(getQueueDataPath(queue.getName()),"rw")){
-//            先从文件中读取对应的 Message 数据，并将其转换为 Message 对象
-                byte[] bufMessage = new byte[(int) (message.getOffsetEnd() - message.getOffsetBeg())];
-                randomAccessFile.seek(message.getOffsetBeg());
-                randomAccessFile.read(bufMessage);
-                Message diskMessage = (Message) BinaryTool.fromBytes(bufMessage);
-//            设置无效属性之后再重新写入文件,此处不需要再给参数中的 message 设置无效属性，这里的对象代表的是内存中的对象，之后会被销毁
-                diskMessage.setIsValid((byte) 0x0);
-                byte[] DestBuf = BinaryTool.toBytes(diskMessage);
-//            由于上面的读取操作将光标向后移了，需要重新调整光标才能将刚刚文件重新正确写入
-                randomAccessFile.seek(message.getOffsetBeg());
-                randomAccessFile.write(DestBuf);
+        QueueLog queueLog = getQueueLog(queue.getName());
+        queueLog.markDeleted(message);
+        bodyCache.remove(message.getMessageId());
+        JournalQueue journalQueue = sharedJournal ? journalQueues.get(queue.getName()) : null;
+        if (journalQueue != null && journalQueue.liveMessages.remove(message.getMessageId()) != null)
+            journalQueue.stat.validCount.updateAndGet(valid -> Math.max(valid - 1, 0));
+        if (message.getBodyRef() != null) releaseBodyRef(queue.getName(), message.getMessageId());
+    }
+
+    /**
+     * 队列中的一条消息不再引用公共消息体
+     */
+    private void releaseBodyRef(String queueName, String messageId) throws IOException {
+        ConcurrentHashMap<String, String> bodyRefs = queueBodyRefs.get(queueName);
+        String bodyId = bodyRefs == null ? null : bodyRefs.remove(messageId);
+        if (bodyId != null) releaseSharedBody(bodyId);
+    }
+
+    /**
+     * 公共消息体的引用计数减一，减到 0 的时候在公共消息体日志中标记为已删除，之后由段删除和段压缩回收空间
+     */
+    private void releaseSharedBody(String bodyId) throws IOException {
+        SharedBody sharedBody = sharedBodies.get(bodyId);
+        if (sharedBody == null || sharedBody.references.decrementAndGet() > 0) return;
+        if (sharedBodies.remove(bodyId, sharedBody))
+            openLog(BODY_STORE_NAME, true).markDeleted(sharedBody.stored);
+    }
+
+    private SharedBody sharedBody(Message message) {
+        SharedBody sharedBody = sharedBodies.get(message.getBodyRef());
+        if (sharedBody == null)
+            throw new MQException("[MessageFileManager]公共消息体不存在！messageId = " + message.getMessageId()
+                    + ", bodyId = " + message.getBodyRef());
+        return sharedBody;
+    }
+
+    /**
+     * 加载公共消息体日志中所有的公共消息体，只加载一次，引用计数从 0 开始，由各个队列加载消息的时候累加
+     * @param create 日志不存在的时候是否创建，只有写入公共消息体的时候才需要
+     * @return 公共消息体日志，不存在并且不需要创建的时候返回 null
+     */
+    private QueueLog loadSharedBodies(boolean create) throws IOException {
+        synchronized (sharedBodies) {
+            if (!create && !sharedBodiesLoaded && layout.find(BODY_STORE_NAME) == null) return null;
+            QueueLog bodyLog = openLog(BODY_STORE_NAME, true);
+            if (sharedBodiesLoaded) return bodyLog;
+            for (Message stored : bodyLog.loadAllMessages())
+                sharedBodies.put(stored.getMessageId(), new SharedBody(stored, 0));
+            sharedBodiesLoaded = true;
+            return bodyLog;
+        }
+    }
+
+    /**
+     * 加载出来的消息中引用了公共消息体的，把消息体接到消息上并增加引用计数
+     * 找不到公共消息体的消息（数据不完整）没法投递，直接确认掉
+     * @param withBody 是否把消息体接到消息上，lazy 队列只增加引用计数
+     */
+    private void resolveSharedBodies(String queueName, LinkedList<Message> messages, boolean withBody) throws IOException {
+        Iterator<Message> iterator = messages.iterator();
+        while (iterator.hasNext()) {
+            Message message = iterator.next();
+            if (message.getBodyRef() == null) continue;
+            loadSharedBodies(false);
+            SharedBody sharedBody = sharedBodies.get(message.getBodyRef());
+            if (sharedBody == null) {
+                System.out.println("[MessageFileManager]公共消息体不存在，丢弃消息！queueName = " + queueName
+                        + ", messageId = " + message.getMessageId() + ", bodyId = " + message.getBodyRef());
+                openQueueLog(queueName).markDeleted(message);
+                iterator.remove();
+                continue;
             }
-//        更新统计文件
-            Stat stat = readStat(queue.getName());
-            assert stat != null;
-            if(stat.validCount > 0) stat.validCount --;
-            writeStat(queue.getName(),stat);
+            sharedBody.references.incrementAndGet();
+            if (withBody) message.setBody(sharedBody.stored.getBody());
+            queueBodyRefs.computeIfAbsent(queueName, k -> new ConcurrentHashMap<>())
+                    .put(message.getMessageId(), message.getBodyRef());
+        }
+    }
+
+    /**
+     * 所有队列的消息都恢复完之后调用：删除没有被任何队列引用的公共消息体（写完公共消息体之后宕机留下的），
+     * 并且丢掉公共消息体对象上的消息体，消息体只保留在各个队列的消息上
+     */
+    public void finishRecovery() throws IOException {
+        for (Map.Entry<String, SharedBody> entry : sharedBodies.entrySet()) {
+            SharedBody sharedBody = entry.getValue();
+            sharedBody.stored.setBody(null);
+            if (sharedBody.references.get() == 0 && sharedBodies.remove(entry.getKey(), sharedBody))
+                openLog(BODY_STORE_NAME, true).markDeleted(sharedBody.stored);
         }
     }
 
+    /**
+     * lazy 队列的消息写入硬盘之后，把消息体从内存中的消息对象上卸下来，只放到有大小限制的缓存中
+     * 消费者跟得上的时候，投递时可以直接命中缓存，不需要读硬盘
+     */
+    public void offloadBody(Message message) {
+        bodyCache.put(message.getMessageId(), message.getBody());
+        message.setBody(null);
+    }
+
+    /**
+     * 读取 lazy 队列中消息的消息体，先查缓存，缓存中没有再从段文件中读取
+     */
+    public byte[] readBody(MSGQueue queue, Message message) throws IOException, ClassNotFoundException {
+        byte[] body = bodyCache.get(message.getMessageId());
+        if (body != null) return body;
+        if (message.getBodyRef() != null)
+            body = openLog(BODY_STORE_NAME, true).readMessage(sharedBody(message).stored).getBody();
+        else
+            body = getQueueLog(queue.getName()).readMessage(message).getBody();
+        bodyCache.put(message.getMessageId(), body);
+        return body;
+    }
+
+    /**
+     * 打开持久化消息的消息体在段文件中的区域，投递的时候直接从文件发送到 socket
+     */
+    public MessageBody openBody(MSGQueue queue, Message message) throws IOException, ClassNotFoundException {
+        if (message.getBodyRef() != null)
+            return openLog(BODY_STORE_NAME, true).openBody(sharedBody(message).stored);
+        return getQueueLog(queue.getName()).openBody(message);
+    }
+
     /**
      * 使用这个方法从文件中读取中所有的消息内容，加载到内存中（具体是一个链表中）
-     * 在启动的过程中进行调用
+     * 在启动的过程中进行调用，按照段的顺序依次读取
      * 使用 LinkedList，主要目的就是为了后续进行头删操作
      * @param queueName 需要加载的队列名,并且由于在程序启动时调用，此时服务器还不能处理请求，
      *                  不涉及多线程操作，也不需要加锁
      * @return 已加载到队列中的数据
      */
     public LinkedList<Message> loadAllMessageFromQueue(String queueName) throws IOException, ClassNotFoundException {
-        LinkedList<Message> messages = new LinkedList<>();
-        try(InputStream fileInputStream = new FileInputStream(getQueueDataPath(queueName))){
-            try(DataInputStream dataInputStream = new DataInputStream(fileInputStream)){
-//                这个变量记录当前文件光标，并循环读取一个队列中的消息
-                long currentOffset = 0;
-                while(true){
-//                    readInt 方法在读取到文件末尾的时候会抛出 EOFException 异常，这一点和很多流对象不一样
-                    int messageSize = dataInputStream.readInt();
-//                    按照 messageSize 长度向后读取内容
-                    byte[] buffer = new byte[messageSize];
-                    int actualSize = dataInputStream.read(buffer);
-//                    防御式编程
-                    if(messageSize != actualSize)
-                        throw new MQException("[MessageFileManager]文件格式错误！queueName = "+queueName+" 可能原因：文件不完整、网络中断、Socket 半关闭等等");
-//                    反序列化并判断是否有效
-                    Message diskMessage = (Message) BinaryTool.fromBytes(buffer);
-                    if(diskMessage.getIsValid() != 0x1){
-//                        如果是无效数据，直接跳过，并要更新 offset
-                        currentOffset += (4 + messageSize);
-                        continue;
-                    }
-//                    有效数据，直接把这个 Message 对象加入到链表中，加入之前还需要填写 offsetBeg 和 offsetEnd
-//                    这里 OffsetBeg/OffsetEnd 的作用就体现出来了，虽然没有持久化保存到磁盘上，但是可以用来给内存使用，方便后续操作
-                    diskMessage.setOffsetBeg(currentOffset + 4);
-                    diskMessage.setOffsetEnd(currentOffset + 4 +messageSize);
-//                    读取完一个消息之后就要手动的记录一下光标，方便对 Offset 计算
-                    currentOffset += (4 + messageSize);
-                    messages.add(diskMessage);
-                }
-            } catch (EOFException e){
-                System.out.println("[MessageFileManager]恢复 Message 数据完成！");
-            }
-        }
-        return messages;
+        return loadAllMessageFromQueue(queueName, name -> true);
     }
 
     /**
-     * 检查当前是否要针对该队列的消息数据文件进行 GC
+     * @param withBody 根据队列名判断是否加载消息体，lazy 队列的消息恢复的时候不解码消息体，消息体留在段文件中，投递的时候再读取
+     *                 共享日志模式下第一次调用就会扫描所有队列的消息，所以这里需要能判断任意一个队列
      */
-    public boolean checkGC(String queueName){
-        Stat stat = readStat(queueName);
-        assert stat != null;
-        return stat.totalCount > 2000 && (double) stat.validCount / (double) stat.totalCount < 0.5;
+    public LinkedList<Message> loadAllMessageFromQueue(String queueName, Predicate<String> withBody) throws IOException, ClassNotFoundException {
+        checkStorageMode(queueName);
+        if (sharedJournal) return loadFromJournal(queueName, withBody);
+        QueueLog queueLog = openQueueLog(queueName);
+        LinkedList<Message> messages = queueLog.loadAllMessages(withBody.test(queueName));
+        resolveSharedBodies(queueName, messages, withBody.test(queueName));
+        return messages;
     }
 
     /**
-     * 暂存的新文件名字
+     * 共享日志模式下加载一个队列的消息
+     * 第一次调用的时候扫描整个共享日志，把所有队列的消息按照队列名分好组，之后每个队列直接取走自己的那一组
      */
-    public String getQueueDataNewPath(String queueName){
-        return getQueueDir(queueName) + "/queue_data_new.txt";
+    private LinkedList<Message> loadFromJournal(String queueName, Predicate<String> withBody) throws IOException {
+        LinkedList<Message> messages;
+        synchronized (journalQueues) {
+            if (recoveredMessages == null)
+                recoveredMessages = openQueueLog(queueName).loadAllMessagesByQueue(withBody);
+            messages = recoveredMessages.remove(queueName);
+        }
+        if (messages == null) messages = new LinkedList<>();
+        resolveSharedBodies(queueName, messages, withBody.test(queueName));
+        JournalQueue journalQueue = journalQueues.computeIfAbsent(queueName, k -> new JournalQueue());
+        for (Message message : messages)
+            journalQueue.liveMessages.put(message.getMessageId(), message);
+        journalQueue.stat.totalCount.set(messages.size());
+        journalQueue.stat.validCount.set(messages.size());
+        return messages;
     }
 
     /**
-     * 真正执行消息文件的垃圾回收操作 -> 使用复制算法来完成
-     * 1，创建一个名为 queue_data_new.txt 的新文件
-     * 2，把之前消息数据文件中的有效数据都读出来，写到新的文件中
-     * 3，删除旧文件，再把新文件改为 queue_data.txt，并更新新消息统计文件
-     * 注意：此操作是针对消息数据文件的大洗牌，在这个过程中其他线程不能针对该队列的消息文件做任何修改，所以必须要保证线程安全
+     * 两种存储模式的数据不能混用：切换模式之后，另一种模式下保存的消息不会被加载，也不会被删除
+     * 发现另一种模式的数据时直接报错，避免静悄悄地丢消息
      */
-    public void gc(MSGQueue queue) throws IOException, ClassNotFoundException {
-        synchronized (queue){
-            long gcBeg = System.currentTimeMillis();
-//            创建新文件
-            File queueDataNewFile = new File(getQueueDataNewPath(queue.getName()));
-            if(queueDataNewFile.exists())
-                throw new MQException("[MessageFileManager]gc 时发现该队列的 queue_data_new 已经存在！queueName = "+queue.getName());
-            boolean ok = queueDataNewFile.createNewFile();
-            if(!ok) throw new MQException("[MessageFileManager]创建文件失败！queueDataNewFile = "+queueDataNewFile.getAbsolutePath());
-//            从旧文件中读取所有消息对象
-            LinkedList<Message> messages = loadAllMessageFromQueue(queue.getName());
-//            把有效消息写入到新文件中
-            try(FileOutputStream fileOutputStream = new FileOutputStream(queueDataNewFile)){
-                try(DataOutputStream dataOutputStream = new DataOutputStream(fileOutputStream)){
-                    for (Message message : messages) {
-                        byte[] validMessage = BinaryTool.toBytes(message);
-                        dataOutputStream.writeInt(validMessage.length);
-                        dataOutputStream.write(validMessage);
-                    }
-                }
-            }
-//            删除旧的数据文件，并把新数据文件重新命名
-            File oldDataFile = new File(getQueueDataPath(queue.getName()));
-            ok = oldDataFile.delete();
-            if(!ok) throw new MQException("[MessageFileManager]删除旧数据文件失败！queueDataOldFile = "+oldDataFile.getAbsolutePath());
-            ok = queueDataNewFile.renameTo(oldDataFile);
-            if(!ok) throw new MQException("[MessageFileManager] 文件重命名失败！queueDataNewFile = "+queueDataNewFile.getAbsolutePath() +
-                    ",queueDataOldFile = " + oldDataFile.getAbsolutePath());
-//            更新统计文件
-            Stat stat = readStat(queue.getName());
-            assert stat != null;
-            stat.totalCount = messages.size();
-            stat.validCount = messages.size();
-            writeStat(queue.getName(),stat);
-            long gcEnd = System.currentTimeMillis();
-            System.out.println("[MessageFileManager] gc 执行完毕！queueName = " + queue.getName() + ",time = "
-            + (gcEnd - gcBeg) + "ms");
-        }
+    private void checkStorageMode(String queueName) {
+        File other = layout.find(sharedJournal ? queueName : JOURNAL_NAME);
+        if (other != null)
+            throw new MQException("[MessageFileManager]存储模式和已有的数据不一致！" + SHARED_JOURNAL_KEY + " = " + sharedJournal
+                    + ", 已有的数据目录 = " + other.getPath());
     }
 
-
+    /**
+     * 立即对指定队列执行一次垃圾回收（段压缩）
+     * 平时由 {@link CompactionScheduler} 定时检查所有队列，这里只是提交给后台线程，立即返回
+     */
+    public void gc(MSGQueue queue) {
+        compactionScheduler.compactNow(logNameOf(queue.getName()));
+    }
 
 }
@@ -0,0 +1,1129 @@
+package com.chase.mq.mqserver.datacenter;
+
+
+import com.chase.mq.common.server.BinaryTool;
+import com.chase.mq.common.server.MQException;
+import com.chase.mq.mqserver.core.DurabilityLevel;
+import com.chase.mq.mqserver.core.DurabilityPolicy;
+import com.chase.mq.mqserver.core.Message;
+import com.chase.mq.mqserver.core.MessageBody;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * 一个队列在硬盘上的消息日志，由若干个固定大小的段文件组成
+ * 1，所有的写入都追加到最后一个段（活跃段）上，活跃段的写通道一直保持打开
+ *    写入通过组提交完成：并发的写入请求合并成一次写操作和一次 fsync
+ * 2，活跃段写满之后就封存，并新建一个段继续写
+ * 3，确认消息的时候只原地改写记录头中的一个有效标记字节
+ * 4，一个封存的段中所有消息都被确认之后，直接删除整个段文件，不需要重写文件
+ * 5，有效消息比例很低的封存段由后台线程压缩：复制有效记录到新文件，原子替换，再更新内存中消息的偏移量
+ * 6，检查点中记录一个确认水位：水位之前的记录都已经确认，重启的时候直接从水位开始扫描
+ * 7，活跃段可以在创建的时候预分配到段的最大长度，追加写入不再改变文件长度
+ * 消息的 offsetBeg/offsetEnd 是全局偏移量：段的 baseOffset + 段内位置
+ * 这个类的方法都通过日志锁（ReentrantLock）保证线程安全
+ */
+public class QueueLog {
+
+    /**
+     * 旧版本的单文件数据文件名，启动时会被导入到段文件中
+     */
+    public static final String LEGACY_DATA_FILE = "queue_data.txt";
+
+    /**
+     * 旧版本的文本统计文件名，启动时直接删除，统计信息从检查点或者日志中重建
+     */
+    public static final String LEGACY_STAT_FILE = "queue_stat.txt";
+
+    /**
+     * 统计信息的二进制检查点文件名
+     * 格式：magic(4) + version(4) + 消息总数(4) + 有效消息数(4) + 段个数(4)
+     *      + 每个段的 baseOffset(8) + 段长度(8) + 消息总数(4) + 有效消息数(4)
+     *      + 确认水位所在段的 baseOffset(8) + 水位在段中的位置(8) + 水位处记录在段中的序号(4)（version 2 开始）
+     */
+    public static final String STAT_FILE = "queue_stat.bin";
+
+    /**
+     * 统计检查点的魔数 "CMQT"
+     */
+    private static final int STAT_MAGIC = 0x434D5154;
+
+    private static final int STAT_VERSION = 2;
+
+    /**
+     * 压缩段时临时文件的后缀
+     */
+    public static final String COMPACT_SUFFIX = ".compact";
+
+    /**
+     * 压缩时复制记录使用的缓冲区大小
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 恢复时顺序读取段文件的缓冲区大小，缓冲区越大系统调用越少
+     */
+    private static final int RECOVERY_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    @Getter
+    private final String queueName;
+
+    /**
+     * 队列的目录
+     */
+    private final File dir;
+
+    /**
+     * 单个段文件的最大字节数
+     */
+    private final long segmentSize;
+
+    /**
+     * 是否把活跃段预分配到 segmentSize
+     */
+    private final boolean preallocate;
+
+    /**
+     * 日志锁，保护段列表、活跃段和内存索引
+     * 持锁期间会读写文件，用 ReentrantLock 而不是 synchronized，虚拟线程在这里等待的时候不会占住载体线程
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 所有段，key 为段的 baseOffset
+     */
+    private final TreeMap<Long, LogSegment> segments = new TreeMap<>();
+
+    /**
+     * 当前的活跃段
+     */
+    private LogSegment active;
+
+    /**
+     * 是否已经知道每个段的消息数量（从检查点恢复或者扫描过所有段）
+     * 段的删除依赖这些统计，所以在第一次写入或者确认之前必须先恢复
+     */
+    private boolean recovered = false;
+
+    /**
+     * 整个队列的统计信息，只在内存中更新
+     */
+    @Getter
+    private final MessageFileManager.Stat stat = new MessageFileManager.Stat();
+
+    /**
+     * 统计信息在上一次检查点之后是否有变化
+     */
+    private boolean statDirty = false;
+
+    /**
+     * 日志中所有有效消息在内存中的对象，key 为消息的 offsetBeg
+     * 压缩之后消息在文件中的位置会改变，需要通过这个索引找到内存中的消息对象并更新它的偏移量
+     */
+    private final TreeMap<Long, Message> liveMessages = new TreeMap<>();
+
+    /**
+     * liveMessages 是否包含了日志中所有的有效消息，只有扫描过一遍日志之后才是完整的，不完整的时候不能压缩
+     */
+    private boolean indexed = false;
+
+    /**
+     * 确认水位：baseOffset 小于 watermarkBase 的段中所有记录，以及 watermarkBase 段中 watermarkPosition 之前的记录都已经确认
+     * watermarkSequence 是水位处的记录在段中的序号，为 -1 的时候表示没有水位
+     * 确认只会把记录从有效改成已删除，所以水位一旦成立就一直成立，只有压缩改变记录位置的时候需要退回到段的开头
+     */
+    private long watermarkBase = -1;
+
+    private long watermarkPosition = -1;
+
+    private int watermarkSequence = -1;
+
+    /**
+     * 是否有段正在压缩，同一个队列同一时刻只压缩一个段
+     */
+    private boolean compacting = false;
+
+    /**
+     * 执行写入和刷盘的 I/O 线程
+     */
+    private final Executor ioExecutor;
+
+    /**
+     * 等待组提交的写入请求，同时也作为组提交的锁对象
+     */
+    private final List<PendingWrite> pendingWrites = new ArrayList<>();
+
+    /**
+     * 是否已经向 I/O 线程提交了 flush 任务
+     */
+    private boolean flushScheduled = false;
+
+    /**
+     * 这个队列的落盘策略，默认每批写入都 fsync
+     */
+    @Getter
+    @Setter
+    private volatile DurabilityPolicy durabilityPolicy = DurabilityPolicy.DEFAULT;
+
+    /**
+     * 是否有已经写入但还没有 fsync 的数据（INTERVAL / OS 级别下使用）
+     */
+    private boolean dirty = false;
+
+    /**
+     * 确认消息时通过内存映射改写过有效标记、还没有刷盘的封存段，和活跃段一起刷盘
+     */
+    private final Set<LogSegment> ackedSegments = new HashSet<>();
+
+    /**
+     * 一个等待写入的请求
+     */
+    private static class PendingWrite {
+        private final Message message;
+        private final byte[] payload;
+        private final byte flag;
+        private final int crc;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        /**
+         * 这条记录是否已经写入了段文件，只在 I/O 线程中访问
+         */
+        private boolean written = false;
+
+        private PendingWrite(Message message, byte[] payload, byte flag) {
+            this.message = message;
+            this.payload = payload;
+            this.flag = flag;
+            this.crc = RecordCodec.crc(payload, 0, payload.length);
+        }
+    }
+
+    public QueueLog(String queueName, File dir, long segmentSize, Executor ioExecutor) throws IOException {
+        this(queueName, dir, segmentSize, ioExecutor, false);
+    }
+
+    /**
+     * @param preallocate 是否把活跃段预分配到 segmentSize
+     */
+    public QueueLog(String queueName, File dir, long segmentSize, Executor ioExecutor, boolean preallocate) throws IOException {
+        this.queueName = queueName;
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.preallocate = preallocate;
+        this.ioExecutor = ioExecutor;
+        importLegacyFile();
+        deleteTemporaryFiles();
+        File[] files = dir.listFiles((d, name) -> LogSegment.isSegmentFile(name));
+        if (files != null) {
+            for (File file : files) {
+                int version = LogSegment.readVersion(file);
+                if (version != LogSegment.VERSION)
+                    upgrade(file, version, LogSegment.HEADER_SIZE, LogSegment.baseOffsetOf(file), file);
+                LogSegment segment = LogSegment.open(file);
+                segments.put(segment.getBaseOffset(), segment);
+            }
+        }
+        if (segments.isEmpty()) {
+            active = LogSegment.create(dir, 0, preallocateSize());
+            segments.put(active.getBaseOffset(), active);
+        } else {
+            active = segments.lastEntry().getValue();
+//            上一次运行的活跃段可能是预分配过的，先找到实际写入的末尾，检查点中记录的也是这个长度
+            active.recoverEnd();
+            active.reopen(preallocateSize());
+        }
+        File legacyStatFile = new File(dir, LEGACY_STAT_FILE);
+        if (legacyStatFile.exists() && !legacyStatFile.delete())
+            throw new IOException("[QueueLog] 删除旧统计文件失败! file=" + legacyStatFile.getAbsolutePath());
+        recovered = restoreCheckpoint();
+    }
+
+    /**
+     * 从统计检查点恢复每个段的消息数量
+     * 只有检查点中记录的段（baseOffset 和长度）和硬盘上的段完全一致时才认为检查点是新的，
+     * 否则说明检查点之后还有写入，需要重新扫描日志
+     * 检查点之后的确认只改写有效标记，不改变段长度，这种情况下恢复出的有效消息数只会偏大，
+     * 最多推迟段文件的删除，不会误删还有有效消息的段
+     * 确认水位不要求检查点是新的：只要水位所在的段还在并且水位没有超出段的长度，水位就仍然成立
+     * @return 检查点是否可用
+     */
+    private boolean restoreCheckpoint() throws IOException {
+        File statFile = new File(dir, STAT_FILE);
+        if (!statFile.exists()) return false;
+        try (DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(statFile)))) {
+            if (dataInputStream.readInt() != STAT_MAGIC) return false;
+            int version = dataInputStream.readInt();
+            if (version != 1 && version != STAT_VERSION) return false;
+            int totalCount = dataInputStream.readInt();
+            int validCount = dataInputStream.readInt();
+            int segmentCount = dataInputStream.readInt();
+            long[][] table = new long[segmentCount][];
+            for (int i = 0; i < segmentCount; i++)
+                table[i] = new long[]{dataInputStream.readLong(), dataInputStream.readLong(),
+                        dataInputStream.readInt(), dataInputStream.readInt()};
+            if (version >= 2)
+                restoreWatermark(dataInputStream.readLong(), dataInputStream.readLong(), dataInputStream.readInt());
+            boolean fresh = segmentCount == segments.size();
+            int i = 0;
+            for (LogSegment segment : segments.values()) {
+                if (!fresh) break;
+                fresh = table[i][0] == segment.getBaseOffset() && table[i][1] == segment.getSize();
+                i++;
+            }
+            if (!fresh) {
+                System.out.println("[QueueLog] 统计检查点已过期，需要从日志中重建! queueName=" + queueName);
+                return false;
+            }
+            i = 0;
+            for (LogSegment segment : segments.values()) {
+                segment.resetCount((int) table[i][2], (int) table[i][3]);
+                i++;
+            }
+            stat.totalCount.set(totalCount);
+            stat.validCount.set(validCount);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private void restoreWatermark(long baseOffset, long position, int sequence) {
+        LogSegment segment = segments.get(baseOffset);
+        if (segment == null || sequence < 0 || position < LogSegment.HEADER_SIZE || position > segment.getSize()) return;
+        watermarkBase = baseOffset;
+        watermarkPosition = position;
+        watermarkSequence = sequence;
+    }
+
+    private void setWatermark(long baseOffset, long position, int sequence) {
+        watermarkBase = baseOffset;
+        watermarkPosition = position;
+        watermarkSequence = sequence;
+    }
+
+    /**
+     * 根据内存中的有效消息推进确认水位，只有 liveMessages 完整的时候才能计算
+     * 没有有效消息的时候水位就是活跃段的末尾；否则是第一条有效消息所在段中，不超过它的最后一条索引项
+     * 段的索引不完整（例如刚压缩过）的时候没法定位，水位停在这个段已有的水位或者段的开头
+     */
+    private void updateWatermark() {
+        if (!indexed) return;
+        if (liveMessages.isEmpty()) {
+            setWatermark(active.getBaseOffset(), active.getSize(), active.getTotalCount());
+            return;
+        }
+        long first = liveMessages.firstKey() - LogSegment.RECORD_HEADER_SIZE;
+        LogSegment segment = segments.floorEntry(first).getValue();
+        long[] floor = segment.getIndex().floor(first - segment.getBaseOffset());
+        if (segment.getBaseOffset() == watermarkBase && (floor == null || floor[1] <= watermarkPosition)) return;
+        if (floor == null) setWatermark(segment.getBaseOffset(), LogSegment.HEADER_SIZE, 0);
+        else setWatermark(segment.getBaseOffset(), floor[1], (int) floor[0]);
+    }
+
+    /**
+     * 把当前的统计信息和确认水位写到检查点文件中
+     * 先写临时文件再原子改名，宕机时要么是旧的检查点要么是新的检查点，不会读到写了一半的文件
+     * 这里不做 fsync：检查点丢失或者过期的时候会从日志重建
+     */
+    public void checkpoint() throws IOException {
+        lock.lock();
+        try {
+            updateWatermark();
+            File tmpFile = new File(dir, STAT_FILE + ".tmp");
+            try (DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                dataOutputStream.writeInt(STAT_MAGIC);
+                dataOutputStream.writeInt(STAT_VERSION);
+                dataOutputStream.writeInt(stat.totalCount.get());
+                dataOutputStream.writeInt(stat.validCount.get());
+                dataOutputStream.writeInt(segments.size());
+                for (LogSegment segment : segments.values()) {
+                    dataOutputStream.writeLong(segment.getBaseOffset());
+                    dataOutputStream.writeLong(segment.getSize());
+                    dataOutputStream.writeInt(segment.getTotalCount());
+                    dataOutputStream.writeInt(segment.getValidCount());
+                }
+                dataOutputStream.writeLong(watermarkBase);
+                dataOutputStream.writeLong(watermarkPosition);
+                dataOutputStream.writeInt(watermarkSequence);
+            }
+            Files.move(tmpFile.toPath(), new File(dir, STAT_FILE).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            statDirty = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 如果统计信息有变化就写一次检查点，由定时器调用
+     * 还没有恢复统计信息的队列不写，避免用不完整的统计覆盖旧的检查点
+     */
+    public void checkpointIfDirty() throws IOException {
+        lock.lock();
+        try {
+            if (statDirty && recovered) checkpoint();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除宕机时留下的临时文件
+     * 压缩还没有完成替换的时候宕机，原来的段文件是完整的，临时文件直接丢弃；
+     * 重建了一半的索引文件，以及段文件已经删除但是还没来得及删除的索引文件也一起删除
+     */
+    private void deleteTemporaryFiles() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(COMPACT_SUFFIX)
+                || name.endsWith(SegmentIndex.SUFFIX + ".tmp")
+                || (name.endsWith(SegmentIndex.SUFFIX) && !new File(d,
+                name.substring(0, name.length() - SegmentIndex.SUFFIX.length()) + LogSegment.SUFFIX).exists()));
+        if (files == null) return;
+        for (File file : files)
+            if (!file.delete())
+                throw new IOException("[QueueLog] 删除临时文件失败! file=" + file.getAbsolutePath());
+    }
+
+    /**
+     * 旧版本的 queue_data.txt 转换成第一个段，然后删除旧文件
+     */
+    private void importLegacyFile() throws IOException {
+        File legacyFile = new File(dir, LEGACY_DATA_FILE);
+        if (!legacyFile.exists()) return;
+        File[] existing = dir.listFiles((d, name) -> LogSegment.isSegmentFile(name));
+        if (existing != null && existing.length > 0)
+            throw new MQException("[QueueLog] 旧数据文件和段文件同时存在! queueName=" + queueName);
+        upgrade(legacyFile, 1, 0, 0, new File(dir, LogSegment.fileName(0)));
+        if (!legacyFile.delete())
+            throw new IOException("[QueueLog] 删除旧数据文件失败! file=" + legacyFile.getAbsolutePath());
+        System.out.println("[QueueLog] 旧数据文件已导入为段文件! queueName=" + queueName);
+    }
+
+    /**
+     * 把旧格式的记录转换成当前格式的段文件，旧格式的消息内容都是 Java 序列化的 Message，这里只在转换的时候反序列化一次
+     * 1 : 4 字节长度 + 序列化的 Message，有效标记在 Message 对象中（queue_data.txt 也是这个格式，只是没有文件头）
+     * 2 : 4 字节长度 + 有效标记 + 序列化的 Message
+     * RecordCodec 编码的记录总是比 Java 序列化的记录短（序列化的数据中光类描述信息就有上百字节），
+     * 所以转换之后的段不会超出原来段的偏移量范围，不会和后面的段重叠
+     * 先写到临时文件，写完之后再原子地改名为目标段文件
+     * @param source 旧格式的文件
+     * @param version 旧文件的格式版本
+     * @param start 第一条记录在旧文件中的位置
+     * @param baseOffset 转换后段的起始偏移量
+     * @param target 转换后的段文件
+     */
+    private void upgrade(File source, int version, long start, long baseOffset, File target) throws IOException {
+        if (version != 1 && version != 2)
+            throw new MQException("[QueueLog] 不支持的段文件版本! version=" + version + ", file=" + source.getAbsolutePath());
+        File tmpFile = new File(dir, target.getName() + ".upgrade");
+        if (tmpFile.exists() && !tmpFile.delete())
+            throw new IOException("[QueueLog] 删除临时文件失败! file=" + tmpFile.getAbsolutePath());
+        LogSegment segment = LogSegment.createAt(tmpFile, baseOffset);
+        try (DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(source)))) {
+            dataInputStream.skipNBytes(start);
+            long position = start;
+            long length = source.length();
+            while (position < length) {
+                int messageSize = dataInputStream.readInt();
+                byte flag = version == 2 ? dataInputStream.readByte() : 0;
+                byte[] serialized = new byte[messageSize];
+                dataInputStream.readFully(serialized);
+                position += (version == 2 ? 5 : 4) + messageSize;
+                Message message;
+                try {
+                    message = (Message) BinaryTool.fromBytes(serialized);
+                } catch (ClassNotFoundException e) {
+                    throw new MQException("[QueueLog] 旧格式文件中的消息无法反序列化! file=" + source.getAbsolutePath());
+                }
+                if (version == 1)
+                    flag = message.getIsValid() == 0x1 ? LogSegment.FLAG_VALID : LogSegment.FLAG_DELETED;
+                byte[] payload = RecordCodec.encode(message);
+                ByteBuffer record = ByteBuffer.allocate(LogSegment.RECORD_HEADER_SIZE + payload.length);
+                RecordCodec.putRecord(record, flag, payload, RecordCodec.crc(payload, 0, payload.length));
+                record.flip();
+                segment.append(record, 1);
+            }
+        }
+        segment.seal();
+        Files.deleteIfExists(SegmentIndex.fileOf(target).toPath());
+        Files.move(tmpFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        LogSegment.forceDirectory(dir);
+        System.out.println("[QueueLog] 段文件格式升级完成! queueName=" + queueName + ", file=" + target.getName());
+    }
+
+    /**
+     * 提交一条消息的写入请求（组提交）
+     * 并发的写入请求先放到等待列表中，由 I/O 线程一次性取走一批：一次写操作写入整批记录，再统一 fsync 一次，
+     * 刷盘完成之后才会完成这一批中所有请求的 future，此时消息的 offsetBeg 和 offsetEnd 也已经设置好了
+     * 如果落盘级别不是 ALWAYS，写入操作系统缓存之后就完成 future，不等待 fsync
+     * @param payload 要保存的消息内容，可以是压缩过的或者带有队列名的
+     * @param flag 记录的标记，包含有效位以及 payload 对应的 FLAG_COMPRESSED / FLAG_TAGGED 标记位
+     * @return 消息按照落盘级别写入完成之后才会完成的 future
+     */
+    public CompletableFuture<Void> append(Message message, byte[] payload, byte flag) {
+//        校验和在提交的线程中计算，不占用 I/O 线程
+        PendingWrite write = new PendingWrite(message, payload, flag);
+        synchronized (pendingWrites) {
+            pendingWrites.add(write);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                ioExecutor.execute(this::flush);
+            }
+        }
+        return write.future;
+    }
+
+    /**
+     * 在 I/O 线程中执行：取走当前所有的等待请求，写入并刷盘
+     * 同一个队列同一时刻最多只有一个 flush 在执行，保证记录的写入顺序和提交顺序一致
+     * fsync 在日志锁之外执行，刷盘期间不会阻塞消息确认等其他操作
+     * 一批记录中途写入失败的时候，已经写入的记录照常完成，只有没写入的记录的 future 失败；刷盘失败的时候整批都失败
+     */
+    private void flush() {
+        List<PendingWrite> batch;
+        synchronized (pendingWrites) {
+            batch = new ArrayList<>(pendingWrites);
+            pendingWrites.clear();
+        }
+        try {
+            Exception failure = null;
+            try {
+                writeBatch(batch);
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+            try {
+                if (durabilityPolicy.getLevel() == DurabilityLevel.ALWAYS && !batch.isEmpty() && batch.get(0).written) {
+                    activeSegment().force();
+                    forceAckedSegments();
+                }
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+                for (PendingWrite write : batch)
+                    write.written = false;
+            }
+            for (PendingWrite write : batch) {
+                if (write.written) write.future.complete(null);
+                else write.future.completeExceptionally(failure);
+            }
+        } finally {
+            synchronized (pendingWrites) {
+                if (pendingWrites.isEmpty()) flushScheduled = false;
+                else ioExecutor.execute(this::flush);
+            }
+        }
+    }
+
+    /**
+     * 把一批记录编码到同一个缓冲区中，一次写入活跃段
+     * 活跃段放不下的时候先把已经编码的部分写入，再滚动出新的段继续写（滚动时旧段会先刷盘）
+     * 每一部分写入成功之后把其中的记录标记为已写入，中途失败的时候调用方据此区分每条记录的结果
+     */
+    private void writeBatch(List<PendingWrite> batch) throws IOException {
+        lock.lock();
+        try {
+            int index = 0;
+            while (index < batch.size()) {
+//            计算当前活跃段能放下多少条记录
+                long batchSize = 0;
+                int end = index;
+                while (end < batch.size()) {
+                    long recordSize = LogSegment.RECORD_HEADER_SIZE + batch.get(end).payload.length;
+                    if (!active.hasRoomFor(batchSize, recordSize, segmentSize)) break;
+                    batchSize += recordSize;
+                    end++;
+                }
+                if (end == index) {
+                    roll();
+                    continue;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate((int) batchSize);
+                for (int i = index; i < end; i++) {
+                    PendingWrite write = batch.get(i);
+                    RecordCodec.putRecord(buffer, write.flag, write.payload, write.crc);
+                }
+                buffer.flip();
+                long recordOffset = active.append(buffer, end - index);
+                for (int i = index; i < end; i++) {
+                    PendingWrite write = batch.get(i);
+                    write.message.setOffsetBeg(recordOffset + LogSegment.RECORD_HEADER_SIZE);
+                    write.message.setOffsetEnd(recordOffset + LogSegment.RECORD_HEADER_SIZE + write.payload.length);
+                    liveMessages.put(write.message.getOffsetBeg(), write.message);
+                    write.written = true;
+                    recordOffset += LogSegment.RECORD_HEADER_SIZE + write.payload.length;
+                }
+                stat.totalCount.addAndGet(end - index);
+                stat.validCount.addAndGet(end - index);
+                statDirty = true;
+                if (durabilityPolicy.getLevel() != DurabilityLevel.ALWAYS) dirty = true;
+                index = end;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 如果有还没有 fsync 的数据就刷一次盘，由 INTERVAL 级别的定时器调用
+     */
+    public void forceIfDirty() throws IOException {
+        LogSegment segment;
+        lock.lock();
+        try {
+            if (!dirty) return;
+            dirty = false;
+            segment = active;
+        } finally {
+            lock.unlock();
+        }
+        segment.force();
+        forceAckedSegments();
+    }
+
+    /**
+     * 把封存段中已经改写、还没有刷盘的确认标记刷到硬盘上，在日志锁之外刷盘
+     */
+    private void forceAckedSegments() throws IOException {
+        List<LogSegment> acked;
+        lock.lock();
+        try {
+            if (ackedSegments.isEmpty()) return;
+            acked = new ArrayList<>(ackedSegments);
+            ackedSegments.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (LogSegment segment : acked)
+            segment.force();
+    }
+
+    private long preallocateSize() {
+        return preallocate ? segmentSize : 0;
+    }
+
+    /**
+     * 封存当前活跃段，并新建一个段作为活跃段
+     * 新段的 baseOffset 紧接着旧段的末尾，保证全局偏移量一直递增
+     */
+    public void roll() throws IOException {
+        lock.lock();
+        try {
+            if (active.getTotalCount() == 0) return;
+            LogSegment old = active;
+            old.seal();
+            active = LogSegment.create(dir, old.getBaseOffset() + old.getSize(), preallocateSize());
+            segments.put(active.getBaseOffset(), active);
+            System.out.println("[QueueLog] 段文件滚动! queueName=" + queueName + ", newBaseOffset=" + active.getBaseOffset());
+            if (old.getValidCount() == 0)
+                dropSegment(old);
+//        段滚动的时候顺便写一次检查点
+            if (recovered) checkpoint();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 找到一条消息所在的段
+     */
+    public LogSegment segmentOf(Message message) {
+        lock.lock();
+        try {
+            Map.Entry<Long, LogSegment> entry = segments.floorEntry(message.getOffsetBeg());
+            if (entry == null || !entry.getValue().contains(message.getOffsetBeg()))
+                throw new MQException("[QueueLog] 消息不在任何段中! queueName=" + queueName
+                        + ", offsetBeg=" + message.getOffsetBeg());
+            return entry.getValue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从段文件中读回一条消息并校验 CRC，在日志锁中读取，保证读取期间消息不会被压缩移动位置
+     */
+    public Message readMessage(Message message) throws IOException {
+        lock.lock();
+        try {
+            LogSegment segment = segmentOf(message);
+            int messageSize = (int) (message.getOffsetEnd() - message.getOffsetBeg());
+            ByteBuffer record = segment.read(message.getOffsetBeg() - LogSegment.RECORD_HEADER_SIZE,
+                    LogSegment.RECORD_HEADER_SIZE + messageSize);
+            if (RecordCodec.crc(record.array(), LogSegment.RECORD_HEADER_SIZE, messageSize) != record.getInt(LogSegment.FLAG_OFFSET + 1))
+                throw new MQException("[QueueLog] 消息记录校验失败! queueName=" + queueName + ", offsetBeg=" + message.getOffsetBeg());
+            Message diskMessage = decodeRecord(record.get(LogSegment.FLAG_OFFSET), record, LogSegment.RECORD_HEADER_SIZE, messageSize, true);
+            diskMessage.setOffsetBeg(message.getOffsetBeg());
+            diskMessage.setOffsetEnd(message.getOffsetEnd());
+            return diskMessage;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 解码记录中的消息内容，跳过队列名，压缩过的先解压，并统计解压花费的时间
+     */
+    private Message decodeRecord(byte flag, ByteBuffer buffer, int index, int length, boolean withBody) {
+        if (!LogSegment.isCompressed(flag)) return RecordCodec.decode(flag, buffer, index, length, withBody);
+        long start = System.nanoTime();
+        Message message = RecordCodec.decode(flag, buffer, index, length, withBody);
+        stat.decompressNanos.addAndGet(System.nanoTime() - start);
+        return message;
+    }
+
+    /**
+     * 打开一条消息的消息体在段文件中的区域，用于零拷贝投递，不读取也不校验消息内容
+     * 在日志锁中从段中打开：消息体持有段的映射或者通道的引用，即使之后这个段被压缩替换，消息体仍然指向原来的文件，位置不会变
+     * 压缩过的消息没法直接发送文件中的数据，读出来解压之后从内存发送
+     */
+    public MessageBody openBody(Message message) throws IOException {
+        lock.lock();
+        try {
+            LogSegment segment = segmentOf(message);
+            byte flag = segment.readFlag(message.getOffsetBeg());
+            if (LogSegment.isCompressed(flag))
+                return MessageBody.of(readMessage(message).getBody());
+            int bodyOffset = RecordCodec.bodyOffset(message);
+            if (LogSegment.isTagged(flag))
+                bodyOffset += RecordCodec.tagSize(segment.read(message.getOffsetBeg(), 2), 0);
+            int messageSize = (int) (message.getOffsetEnd() - message.getOffsetBeg());
+            if (bodyOffset > messageSize)
+                throw new MQException("[QueueLog] 消息内容长度错误! queueName=" + queueName + ", offsetBeg=" + message.getOffsetBeg());
+            return segment.openBody(segment.positionOf(message.getOffsetBeg()) + bodyOffset, messageSize - bodyOffset);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 确认一条消息：原地把记录头中的有效标记改写为已删除，只写一个字节
+     * 如果它所在的段已经封存并且其中没有有效消息了，就删除整个段
+     */
+    public void markDeleted(Message message) throws IOException {
+        lock.lock();
+        try {
+            LogSegment segment = segmentOf(message);
+            segment.markDeleted(message.getOffsetBeg());
+            if (segment.isSealed()) {
+                ackedSegments.add(segment);
+                if (durabilityPolicy.getLevel() != DurabilityLevel.ALWAYS) dirty = true;
+            }
+            liveMessages.remove(message.getOffsetBeg());
+            stat.validCount.updateAndGet(valid -> Math.max(valid - 1, 0));
+            statDirty = true;
+            if (segment.isSealed() && segment.getValidCount() == 0)
+                dropSegment(segment);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dropSegment(LogSegment segment) throws IOException {
+        segments.remove(segment.getBaseOffset());
+        ackedSegments.remove(segment);
+        segment.delete();
+        liveMessages.subMap(segment.getBaseOffset(), segment.getBaseOffset() + segment.getSize()).clear();
+        stat.totalCount.addAndGet(-segment.getTotalCount());
+        stat.validCount.addAndGet(-segment.getValidCount());
+        statDirty = true;
+//        水位所在的段被删除了，水位移到下一个段的开头
+        if (segment.getBaseOffset() == watermarkBase) {
+            Map.Entry<Long, LogSegment> next = segments.higherEntry(segment.getBaseOffset());
+            if (next == null) setWatermark(-1, -1, -1);
+            else setWatermark(next.getKey(), LogSegment.HEADER_SIZE, 0);
+        }
+        System.out.println("[QueueLog] 段中的消息已经全部确认，删除段文件! queueName=" + queueName
+                + ", baseOffset=" + segment.getBaseOffset());
+    }
+
+    /**
+     * 可以压缩的段：除活跃段之外的所有封存段，内存索引不完整的时候不能压缩，返回空列表
+     */
+    public List<LogSegment> compactableSegments() {
+        lock.lock();
+        try {
+            List<LogSegment> compactable = new ArrayList<>();
+            if (!indexed) return compactable;
+            for (LogSegment segment : segments.values())
+                if (segment != active) compactable.add(segment);
+            return compactable;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 压缩一个封存段，在后台线程中执行
+     * 1，在日志锁中记下这个段里的有效消息
+     * 2，不持有日志锁，把有效记录复制到临时文件中，这期间写入和确认都可以正常进行
+     * 3，重新获取日志锁，用临时文件原子替换原来的段文件，并更新内存中消息的偏移量
+     *    复制期间被确认的消息，在新文件中重新改写有效标记
+     * 新段的 baseOffset 不变，压缩之后的记录都落在原来段的偏移量范围内，不会和其他段冲突
+     * @param rateLimiter 限制复制时读取源段的带宽
+     * @return 是否完成了替换
+     */
+    public boolean compact(long baseOffset, IoRateLimiter rateLimiter) throws IOException {
+        LogSegment source;
+        Set<Long> live;
+        lock.lock();
+        try {
+            source = segments.get(baseOffset);
+            if (!indexed || compacting || source == null || source == active) return false;
+            compacting = true;
+            live = new HashSet<>(liveMessages.subMap(baseOffset, baseOffset + source.getSize()).keySet());
+        } finally {
+            lock.unlock();
+        }
+        File tmpFile = new File(dir, source.getFile().getName() + COMPACT_SUFFIX);
+        try {
+            Map<Long, Long> moved = copyLiveRecords(source, live, tmpFile, rateLimiter);
+            return swap(source, tmpFile, moved);
+        } finally {
+            lock.lock();
+            try {
+                compacting = false;
+            } finally {
+                lock.unlock();
+            }
+            if (tmpFile.exists() && !tmpFile.delete())
+                System.out.println("[QueueLog] 删除压缩临时文件失败! file=" + tmpFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * 顺序读取源段（通过内存映射），把有效记录复制到临时段文件中
+     * @return 旧的 offsetBeg -> 新的 offsetBeg
+     */
+    private Map<Long, Long> copyLiveRecords(LogSegment source, Set<Long> live, File tmpFile,
+                                            IoRateLimiter rateLimiter) throws IOException {
+        if (tmpFile.exists() && !tmpFile.delete())
+            throw new IOException("[QueueLog] 删除压缩临时文件失败! file=" + tmpFile.getAbsolutePath());
+        Map<Long, Long> moved = new HashMap<>();
+        LogSegment target = LogSegment.createAt(tmpFile, source.getBaseOffset());
+        try (RecordReader reader = RecordReader.open(source, LogSegment.HEADER_SIZE, COPY_BUFFER_SIZE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            int count = 0;
+            long throttled = LogSegment.HEADER_SIZE;
+            while (reader.position() < source.getSize()) {
+                long position = reader.position();
+                if (position - throttled >= COPY_BUFFER_SIZE) {
+                    rateLimiter.acquire(position - throttled);
+                    throttled = position;
+                }
+                if (!reader.ensure(LogSegment.RECORD_HEADER_SIZE))
+                    throw new MQException("[QueueLog] 压缩时读到不完整的记录! file=" + source.getFile().getName() + ", position=" + position);
+                ByteBuffer record = reader.buffer();
+                int messageSize = record.getInt(record.position());
+                byte flag = record.get(record.position() + LogSegment.FLAG_OFFSET);
+                int recordSize = LogSegment.RECORD_HEADER_SIZE + messageSize;
+                long offsetBeg = source.getBaseOffset() + position + LogSegment.RECORD_HEADER_SIZE;
+                if (!reader.ensure(recordSize))
+                    throw new MQException("[QueueLog] 压缩时读到不完整的记录! file=" + source.getFile().getName() + ", position=" + position);
+                record = reader.buffer();
+                if (!LogSegment.isValid(flag) || !live.contains(offsetBeg)) {
+                    record.position(record.position() + recordSize);
+                    continue;
+                }
+                if (buffer.remaining() < recordSize) {
+                    buffer.flip();
+                    target.append(buffer, count);
+                    count = 0;
+                    buffer = buffer.capacity() < recordSize ? ByteBuffer.allocate(recordSize) : buffer.clear();
+                }
+                moved.put(offsetBeg, target.getBaseOffset() + target.getSize() + buffer.position() + LogSegment.RECORD_HEADER_SIZE);
+                buffer.put(record.slice(record.position(), recordSize));
+                record.position(record.position() + recordSize);
+                count++;
+            }
+            buffer.flip();
+            if (count > 0) target.append(buffer, count);
+        } finally {
+            target.seal();
+        }
+        return moved;
+    }
+
+    /**
+     * 用压缩好的临时文件替换原来的段文件，并更新内存中消息的偏移量
+     * 替换之前先删除原来段的索引，并把落在这个段中的水位退回到段的开头，新段的索引在下一次完整扫描时重建
+     */
+    private boolean swap(LogSegment source, File tmpFile, Map<Long, Long> moved) throws IOException {
+        lock.lock();
+        try {
+//        压缩期间段中的消息已经全部确认，段已经被删除了
+            if (segments.get(source.getBaseOffset()) != source) return false;
+            source.deleteIndex();
+            if (watermarkBase == source.getBaseOffset()) {
+                setWatermark(source.getBaseOffset(), LogSegment.HEADER_SIZE, 0);
+                checkpoint();
+            }
+            source.close();
+            Files.move(tmpFile.toPath(), source.getFile().toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            LogSegment.forceDirectory(dir);
+            LogSegment target = LogSegment.open(source.getFile());
+            target.resetCount(moved.size(), moved.size());
+//        先把所有消息从索引中取出来，再按照新的偏移量放回去，避免新旧偏移量重叠的时候互相覆盖
+            List<Message> relocated = new ArrayList<>();
+            for (Map.Entry<Long, Long> entry : moved.entrySet()) {
+                Message message = liveMessages.remove(entry.getKey());
+                if (message == null) {
+                    target.markDeleted(entry.getValue());
+                    ackedSegments.add(target);
+                    continue;
+                }
+                long length = message.getOffsetEnd() - message.getOffsetBeg();
+                message.setOffsetBeg(entry.getValue());
+                message.setOffsetEnd(entry.getValue() + length);
+                relocated.add(message);
+            }
+            for (Message message : relocated)
+                liveMessages.put(message.getOffsetBeg(), message);
+            segments.put(target.getBaseOffset(), target);
+            stat.totalCount.addAndGet(target.getTotalCount() - source.getTotalCount());
+            stat.validCount.addAndGet(target.getValidCount() - source.getValidCount());
+            statDirty = true;
+            System.out.println("[QueueLog] 段压缩完成! queueName=" + queueName + ", baseOffset=" + target.getBaseOffset()
+                    + ", size: " + source.getSize() + " -> " + target.getSize());
+            if (target.getValidCount() == 0)
+                dropSegment(target);
+            checkpoint();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 当前的活跃段
+     */
+    public LogSegment activeSegment() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 如果没有可用的统计检查点，就先扫描一遍段文件统计消息数量
+     * 这里只需要统计数量，只读取记录头，不反序列化任何消息
+     * 日志中没有有效消息的时候（运行期间新创建的日志，或者消息都已经确认），空的 liveMessages 就是完整的，
+     * 直接标记为已索引，不需要等到下次启动加载消息之后才能压缩
+     */
+    public void ensureRecovered() throws IOException, ClassNotFoundException {
+        lock.lock();
+        try {
+            if (!recovered) scan(null, null);
+            if (!indexed && stat.validCount.get() == 0 && liveMessages.isEmpty()) indexed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按顺序读取所有段中的有效消息，并重新统计每个段的消息数量
+     * 读取完之后，已经没有有效消息的封存段会被直接删除
+     */
+    public LinkedList<Message> loadAllMessages() throws IOException {
+        lock.lock();
+        try {
+            return loadAllMessages(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param withBody 是否加载消息体，lazy 队列恢复的时候不加载，消息只保留 ID、偏移量等字段，恢复期间内存不会随积压的消息体增长
+     */
+    public LinkedList<Message> loadAllMessages(boolean withBody) throws IOException {
+        lock.lock();
+        try {
+            return loadAllMessagesByQueue(owner -> withBody).getOrDefault(queueName, new LinkedList<>());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 和 {@link #loadAllMessages()} 一样，但是按照记录中的队列名把消息分组，用于多个队列共用的日志
+     * 不带队列名的记录都属于这个日志自己的队列
+     * @return key 为队列名，value 为这个队列的有效消息，按照写入顺序排列
+     */
+    public Map<String, LinkedList<Message>> loadAllMessagesByQueue() throws IOException {
+        lock.lock();
+        try {
+            return loadAllMessagesByQueue(owner -> true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param withBody 根据消息所属的队列名判断是否加载消息体
+     */
+    public Map<String, LinkedList<Message>> loadAllMessagesByQueue(Predicate<String> withBody) throws IOException {
+        lock.lock();
+        try {
+            Map<String, LinkedList<Message>> messages = new HashMap<>();
+            liveMessages.clear();
+            scan(messages, withBody);
+            indexed = true;
+            return messages;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 流式扫描所有段：封存段直接读取内存映射，活跃段通过大缓冲区顺序读取，校验每条记录的长度、标记和 CRC
+     * 已经确认的记录根据记录头中的有效标记跳过，只有需要加载的有效消息才会解码
+     * 遇到第一条不完整或者损坏的记录（宕机时写了一半），就把段截断到这条记录之前，继续恢复剩下的数据
+     * 确认水位之前的段不用读取，水位所在的段从水位开始读取；从头扫描的段如果索引不完整，顺便重建索引
+     * @param messages 加载出来的有效消息按照队列名分组放到这里，为 null 的时候只统计数量
+     * @param withBody 根据消息所属的队列名判断是否解码消息体，不解码的时候消息体不会被复制出来
+     */
+    private void scan(Map<String, LinkedList<Message>> messages, Predicate<String> withBody) throws IOException {
+        List<LogSegment> emptySegments = new ArrayList<>();
+        long skipped = 0;
+        for (LogSegment segment : segments.values()) {
+            if (segment.getBaseOffset() < watermarkBase) {
+                skipped += segment.getSize();
+                segment.resetCount(0, 0);
+                if (segment.isSealed()) emptySegments.add(segment);
+                continue;
+            }
+            long start = LogSegment.HEADER_SIZE;
+            int total = 0;
+            int valid = 0;
+            if (segment.getBaseOffset() == watermarkBase && watermarkPosition <= segment.getSize()) {
+                start = watermarkPosition;
+                total = watermarkSequence;
+                skipped += watermarkPosition;
+            }
+//            从头扫描并且索引不完整的时候，收集索引项，扫描完之后重建索引文件
+            SegmentIndex entries = start == LogSegment.HEADER_SIZE && !segment.getIndex().isComplete() ? SegmentIndex.none() : null;
+            long corruptPosition = -1;
+            boolean endOfData = false;
+            try (RecordReader reader = RecordReader.open(segment, start, RECOVERY_BUFFER_SIZE)) {
+                while (reader.position() < segment.getSize()) {
+                    long position = reader.position();
+                    if (!reader.ensure(LogSegment.RECORD_HEADER_SIZE)) {
+                        corruptPosition = position;
+                        break;
+                    }
+                    ByteBuffer buffer = reader.buffer();
+                    int messageSize = buffer.getInt(buffer.position());
+                    byte flag = buffer.get(buffer.position() + LogSegment.FLAG_OFFSET);
+                    int crc = buffer.getInt(buffer.position() + LogSegment.FLAG_OFFSET + 1);
+//                    全 0 的记录头是预分配区域中没有写入过的部分（长度为 0 的消息内容的 CRC 也是 0，不能当成一条记录），后面没有数据了
+                    if (LogSegment.isEndOfData(messageSize, flag, crc)) {
+                        corruptPosition = position;
+                        endOfData = true;
+                        break;
+                    }
+                    if (messageSize < 0 || (flag & ~LogSegment.FLAG_MASK) != 0
+                            || !reader.ensure(LogSegment.RECORD_HEADER_SIZE + messageSize)) {
+                        corruptPosition = position;
+                        break;
+                    }
+                    buffer = reader.buffer();
+                    int payloadIndex = buffer.position() + LogSegment.RECORD_HEADER_SIZE;
+                    if (RecordCodec.crc(buffer, payloadIndex, messageSize) != crc) {
+                        corruptPosition = position;
+                        break;
+                    }
+                    buffer.position(buffer.position() + LogSegment.RECORD_HEADER_SIZE + messageSize);
+                    if (entries != null) entries.add(total, position);
+                    total++;
+                    if (!LogSegment.isValid(flag)) continue;
+                    valid++;
+                    if (messages == null) continue;
+                    String owner = LogSegment.isTagged(flag) ? RecordCodec.readTag(buffer, payloadIndex) : queueName;
+                    Message diskMessage = decodeRecord(flag, buffer, payloadIndex, messageSize, withBody.test(owner));
+                    long offsetBeg = segment.getBaseOffset() + position + LogSegment.RECORD_HEADER_SIZE;
+                    diskMessage.setOffsetBeg(offsetBeg);
+                    diskMessage.setOffsetEnd(offsetBeg + messageSize);
+                    messages.computeIfAbsent(owner, k -> new LinkedList<>()).add(diskMessage);
+                    liveMessages.put(offsetBeg, diskMessage);
+                }
+            }
+            if (corruptPosition >= 0) {
+                if (!endOfData) System.out.println("[QueueLog] 发现不完整或者损坏的记录，截断段文件! queueName=" + queueName
+                        + ", file=" + segment.getFile().getName() + ", position=" + corruptPosition
+                        + ", 丢弃字节数=" + (segment.getSize() - corruptPosition));
+                segment.truncate(corruptPosition);
+                if (segment.getBaseOffset() == watermarkBase && watermarkPosition > corruptPosition)
+                    setWatermark(segment.getBaseOffset(), LogSegment.HEADER_SIZE, 0);
+            }
+            if (entries != null) segment.rebuildIndex(entries);
+            segment.resetCount(total, valid);
+            if (segment.isSealed() && valid == 0) emptySegments.add(segment);
+        }
+        int total = 0;
+        int valid = 0;
+        for (LogSegment segment : segments.values()) {
+            total += segment.getTotalCount();
+            valid += segment.getValidCount();
+        }
+        stat.totalCount.set(total);
+        stat.validCount.set(valid);
+        for (LogSegment segment : emptySegments)
+            dropSegment(segment);
+        if (skipped > 0)
+            System.out.println("[QueueLog] 从确认水位开始恢复，跳过已确认的数据! queueName=" + queueName + ", 跳过字节数=" + skipped);
+        recovered = true;
+        checkpoint();
+    }
+
+    /**
+     * 关闭所有段文件的通道
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            for (LogSegment segment : segments.values())
+                segment.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除所有段文件、索引文件和统计检查点
+     */
+    public void destroy() throws IOException {
+        lock.lock();
+        try {
+            for (LogSegment segment : segments.values())
+                segment.delete();
+            segments.clear();
+            liveMessages.clear();
+            setWatermark(-1, -1, -1);
+            deleteTemporaryFiles();
+            File statFile = new File(dir, STAT_FILE);
+            if (statFile.exists() && !statFile.delete())
+                throw new IOException("[QueueLog] 删除统计检查点失败! file=" + statFile.getAbsolutePath());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
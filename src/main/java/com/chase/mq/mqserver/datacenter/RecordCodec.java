@@ -0,0 +1,312 @@
+package com.chase.mq.mqserver.datacenter;
+
+import com.chase.mq.common.server.MQException;
+import com.chase.mq.mqserver.core.Message;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 段文件中消息记录的编码和解码，取代 Java 序列化（ObjectOutputStream 每条消息都要写类描述信息，又大又慢）
+ * 一条记录 = 记录头 + 消息内容
+ * 记录头：消息内容长度(4 字节) + 标记(1 字节) + 消息内容的 CRC32C(4 字节)
+ * 消息内容：消息 ID 长度(2 字节) + 消息 ID + routingKey 长度(2 字节) + routingKey + 持久化方式(1 字节) + 消息体
+ * 字符串使用 UTF-8 编码，长度为 -1 表示 null，消息体的长度由消息内容长度推算出来
+ * 标记会在确认消息的时候被原地改写，所以不参与 CRC 的计算
+ * 开启压缩的队列，消息内容可以整体压缩之后再保存，标记中带有 FLAG_COMPRESSED，CRC 按照压缩之后的数据计算
+ * 共享日志中的记录在（可能压缩过的）消息内容前面再加上队列名：长度(2 字节) + 队列名，标记中带有 FLAG_TAGGED
+ * 引用公共消息体的记录，消息体的位置保存的是公共消息体的 ID（UTF-8），标记中带有 FLAG_BODY_REF
+ */
+public class RecordCodec {
+
+    /**
+     * 消息 ID 和 routingKey 编码之后允许的最大字节数
+     */
+    public static final int MAX_STRING_SIZE = Short.MAX_VALUE;
+
+    /**
+     * 小于这个长度的消息内容压缩不了多少，不尝试压缩
+     */
+    public static final int MIN_COMPRESS_SIZE = 64;
+
+    /**
+     * 复用 Deflater / Inflater 的池的大小，它们内部的 zlib 缓冲区创建起来开销很大，又占用堆外内存
+     * 不能按线程缓存：虚拟线程模式下每个请求一个线程，按线程缓存的对象永远不会被复用，堆外内存也不会及时释放
+     * 池里没有空闲的对象时临时创建一个，用完之后池已经满了就直接 end() 释放
+     */
+    private static final int CODER_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+    /**
+     * 使用最快的压缩级别：JSON 这样的消息在最快级别下也能压缩好几倍，写入线程的 CPU 开销更重要
+     */
+    private static final ArrayBlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(CODER_POOL_SIZE);
+
+    private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(CODER_POOL_SIZE);
+
+    /**
+     * 把消息编码成记录的消息内容（不包含记录头）
+     * 引用公共消息体的消息只写消息体的 ID，不写消息体
+     */
+    public static byte[] encode(Message message) {
+        byte[] messageId = toBytes(message.getMessageId(), "messageId");
+        byte[] routingKey = toBytes(message.getRoutingKey(), "routingKey");
+        byte[] body = message.getBodyRef() == null ? message.getBody() : message.getBodyRef().getBytes(StandardCharsets.UTF_8);
+        int bodyLength = body == null ? 0 : body.length;
+        ByteBuffer buffer = ByteBuffer.allocate(2 + length(messageId) + 2 + length(routingKey) + 1 + bodyLength);
+        putString(buffer, messageId);
+        putString(buffer, routingKey);
+        buffer.put((byte) message.getDeliverModel());
+        if (body != null) buffer.put(body);
+        return buffer.array();
+    }
+
+    /**
+     * 消息体在消息内容中的起始位置，消息体前面是消息 ID、routingKey 和持久化方式
+     * lazy 队列内存中的消息没有消息体，但是消息 ID 和 routingKey 都还在，可以直接算出来
+     */
+    public static int bodyOffset(Message message) {
+        return 2 + length(toBytes(message.getMessageId(), "messageId"))
+                + 2 + length(toBytes(message.getRoutingKey(), "routingKey")) + 1;
+    }
+
+    /**
+     * 把一条完整的记录（记录头 + 消息内容）写到缓冲区中
+     */
+    public static void putRecord(ByteBuffer buffer, byte flag, byte[] payload, int crc) {
+        buffer.putInt(payload.length).put(flag).putInt(crc).put(payload);
+    }
+
+    /**
+     * 从记录的消息内容中解码出消息，解码出来的消息都是有效的（isValid = 0x1）
+     * @param data 包含消息内容的数组
+     * @param offset 消息内容在数组中的起始位置
+     * @param length 消息内容的长度
+     */
+    public static Message decode(byte[] data, int offset, int length) {
+        return decodeFields(ByteBuffer.wrap(data, offset, length), length, true);
+    }
+
+    /**
+     * 从缓冲区中的消息内容解码出消息，缓冲区可以是内存映射的（没有底层数组）
+     * @param index 消息内容在缓冲区中的起始位置
+     */
+    public static Message decode(ByteBuffer buffer, int index, int length) {
+        return decode(buffer, index, length, true);
+    }
+
+    /**
+     * @param withBody 是否解码消息体，为 false 的时候只解码消息 ID 等字段，不复制消息体（lazy 队列恢复时使用）
+     */
+    public static Message decode(ByteBuffer buffer, int index, int length, boolean withBody) {
+        return decodeFields(buffer.slice(index, length), length, withBody);
+    }
+
+    private static Message decodeFields(ByteBuffer buffer, int length, boolean withBody) {
+        try {
+            Message message = new Message();
+            message.setMessageId(getString(buffer));
+            message.setRoutingKey(getString(buffer));
+            message.setDeliverModel(buffer.get());
+            if (withBody) {
+                byte[] body = new byte[buffer.remaining()];
+                buffer.get(body);
+                message.setBody(body);
+            } else {
+                message.setBody(null);
+            }
+            return message;
+        } catch (RuntimeException e) {
+            throw new MQException("[RecordCodec] 消息内容格式错误! length=" + length);
+        }
+    }
+
+    /**
+     * 在要保存的消息内容前面加上队列名，队列名不参与压缩，恢复的时候不需要解压就能知道消息属于哪个队列
+     */
+    public static byte[] tag(String queueName, byte[] payload) {
+        byte[] name = toBytes(queueName, "queueName");
+        ByteBuffer buffer = ByteBuffer.allocate(2 + length(name) + payload.length);
+        putString(buffer, name);
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    /**
+     * 带队列名的记录中，队列名部分的长度
+     * @param index 消息内容在缓冲区中的起始位置
+     */
+    public static int tagSize(ByteBuffer buffer, int index) {
+        return 2 + Math.max(buffer.getShort(index), 0);
+    }
+
+    /**
+     * 读取带队列名的记录中的队列名
+     * @param index 消息内容在缓冲区中的起始位置
+     */
+    public static String readTag(ByteBuffer buffer, int index) {
+        short length = buffer.getShort(index);
+        if (length < 0) return null;
+        byte[] name = new byte[length];
+        buffer.get(index + 2, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 压缩消息内容，格式：压缩前的长度(4 字节) + deflate 数据（不带 zlib 头）
+     * @return 压缩之后没有变小的时候返回 null，调用方按原样保存
+     */
+    public static byte[] compress(byte[] payload) {
+        if (payload.length < MIN_COMPRESS_SIZE) return null;
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            byte[] output = new byte[payload.length];
+            int length = 4;
+            while (!deflater.finished()) {
+                if (length == output.length) return null;
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            if (length >= payload.length) return null;
+            ByteBuffer.wrap(output).putInt(payload.length);
+            return Arrays.copyOf(output, length);
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) deflater.end();
+        }
+    }
+
+    /**
+     * 解压 {@link #compress(byte[])} 压缩过的消息内容
+     * @param offset 压缩数据在数组中的起始位置
+     * @param length 压缩数据的长度
+     */
+    public static byte[] decompress(byte[] data, int offset, int length) {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) inflater = new Inflater(true);
+        try {
+            int rawLength = ByteBuffer.wrap(data, offset, length).getInt();
+            if (rawLength < 0)
+                throw new MQException("[RecordCodec] 压缩数据格式错误! rawLength=" + rawLength);
+            byte[] payload = new byte[rawLength];
+            inflater.setInput(data, offset + 4, length - 4);
+            int inflated = 0;
+            while (inflated < rawLength) {
+                int n = inflater.inflate(payload, inflated, rawLength - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput()))
+                    throw new MQException("[RecordCodec] 压缩数据不完整! rawLength=" + rawLength);
+                inflated += n;
+            }
+            return payload;
+        } catch (DataFormatException | BufferUnderflowException e) {
+            throw new MQException("[RecordCodec] 压缩数据格式错误! " + e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) inflater.end();
+        }
+    }
+
+    /**
+     * 解码一条记录的消息内容，标记中带有 FLAG_TAGGED 的时候先跳过队列名，带有 FLAG_COMPRESSED 的时候先解压
+     * 带有 FLAG_BODY_REF 的记录解码出来的消息没有消息体，只有公共消息体的 ID
+     */
+    public static Message decode(byte flag, ByteBuffer buffer, int index, int length) {
+        return decode(flag, buffer, index, length, true);
+    }
+
+    /**
+     * @param withBody 是否解码消息体，为 false 的时候解码出来的消息没有消息体，引用公共消息体的记录仍然会解码出消息体的 ID
+     */
+    public static Message decode(byte flag, ByteBuffer buffer, int index, int length, boolean withBody) {
+        Message message = decodePayload(flag, buffer, index, length, withBody || LogSegment.isBodyRef(flag));
+        if (LogSegment.isBodyRef(flag)) {
+            message.setBodyRef(new String(message.getBody(), StandardCharsets.UTF_8));
+            message.setBody(null);
+        }
+        return message;
+    }
+
+    private static Message decodePayload(byte flag, ByteBuffer buffer, int index, int length, boolean withBody) {
+        if (LogSegment.isTagged(flag)) {
+            int tagSize = tagSize(buffer, index);
+            if (tagSize > length)
+                throw new MQException("[RecordCodec] 队列名长度错误! length=" + length);
+            index += tagSize;
+            length -= tagSize;
+        }
+        if (!LogSegment.isCompressed(flag)) return decode(buffer, index, length, withBody);
+        byte[] data;
+        int offset;
+        if (buffer.hasArray()) {
+            data = buffer.array();
+            offset = buffer.arrayOffset() + index;
+        } else {
+            data = new byte[length];
+            buffer.get(index, data);
+            offset = 0;
+        }
+        byte[] payload = decompress(data, offset, length);
+        return decodeFields(ByteBuffer.wrap(payload), payload.length, withBody);
+    }
+
+    /**
+     * 计算缓冲区中消息内容的校验和，不改变缓冲区的 position
+     */
+    public static int crc(ByteBuffer buffer, int index, int length) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(buffer.slice(index, length));
+        return (int) crc32c.getValue();
+    }
+
+    /**
+     * 计算消息内容的校验和
+     */
+    public static int crc(byte[] data, int offset, int length) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(data, offset, length);
+        return (int) crc32c.getValue();
+    }
+
+    private static byte[] toBytes(String value, String name) {
+        if (value == null) return null;
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_SIZE)
+            throw new MQException("[RecordCodec] " + name + " 太长! length=" + bytes.length);
+        return bytes;
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        short length = buffer.getShort();
+        if (length < 0) return null;
+        if (!buffer.hasArray()) {
+            byte[] value = new byte[length];
+            buffer.get(value);
+            return new String(value, StandardCharsets.UTF_8);
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+}
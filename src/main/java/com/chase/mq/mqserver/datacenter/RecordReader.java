@@ -0,0 +1,122 @@
+package com.chase.mq.mqserver.datacenter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 顺序读取段文件中记录的工具
+ * 通过一个大缓冲区批量读取文件，解析记录的时候直接访问缓冲区，不需要每条记录都调用一次 read
+ * 封存段直接使用它的内存映射作为缓冲区，整个段都已经在缓冲区中，不需要再读取文件
+ */
+class RecordReader implements Closeable {
+
+    private final FileChannel channel;
+
+    /**
+     * 使用内存映射时持有的映射引用，关闭的时候释放
+     */
+    private final SegmentMapping mapping;
+
+    /**
+     * 最多读到文件中的这个位置
+     */
+    private final long limit;
+
+    private ByteBuffer buffer;
+
+    /**
+     * 下一次从文件中读取的位置（缓冲区中数据的末尾）
+     */
+    private long filePosition;
+
+    /**
+     * @param file 段文件
+     * @param start 开始读取的位置
+     * @param limit 最多读到这个位置
+     * @param bufferSize 缓冲区大小
+     */
+    RecordReader(File file, long start, long limit, int bufferSize) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.mapping = null;
+        this.limit = limit;
+        this.filePosition = start;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.flip();
+    }
+
+    /**
+     * 从段的内存映射中读取
+     * @param mapping 已经增加过引用的映射，关闭的时候释放
+     * @param start 开始读取的位置
+     * @param limit 最多读到这个位置，不能超过映射的长度
+     */
+    RecordReader(SegmentMapping mapping, long start, long limit) {
+        this.channel = null;
+        this.mapping = mapping;
+        this.limit = limit;
+        this.filePosition = limit;
+        this.buffer = mapping.buffer();
+        this.buffer.limit((int) limit).position((int) start);
+    }
+
+    /**
+     * 封存段使用内存映射，活跃段或者不能映射的段通过文件通道读取
+     */
+    static RecordReader open(LogSegment segment, long start, int bufferSize) throws IOException {
+        SegmentMapping mapping = segment.acquireMapping();
+        if (mapping != null) return new RecordReader(mapping, start, segment.getSize());
+        return new RecordReader(segment.getFile(), start, segment.getSize(), bufferSize);
+    }
+
+    /**
+     * 当前读到的位置（缓冲区中下一个未处理字节在文件中的位置）
+     */
+    long position() {
+        return filePosition - buffer.remaining();
+    }
+
+    /**
+     * 缓冲区，从 position 开始是还没有处理的数据
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * 保证缓冲区中至少有 n 个字节可以读取，缓冲区不够大的时候会扩容
+     * @return 文件中剩余的字节不够 n 个（记录被截断了）的时候返回 false
+     */
+    boolean ensure(int n) throws IOException {
+        if (buffer.remaining() >= n) return true;
+        if (limit - position() < n) return false;
+        if (buffer.capacity() < n) {
+            ByteBuffer bigger = ByteBuffer.allocate(n);
+            bigger.put(buffer);
+            buffer = bigger;
+        } else {
+            buffer.compact();
+        }
+        while (buffer.position() < n) {
+            buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + (limit - filePosition)));
+            int read = channel.read(buffer, filePosition);
+            if (read < 0) {
+                buffer.flip();
+                return false;
+            }
+            filePosition += read;
+        }
+        buffer.flip();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+        if (mapping != null) mapping.release();
+    }
+
+}
@@ -0,0 +1,299 @@
+package com.chase.mq.mqserver.datacenter;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 段文件的稀疏索引，保存在段文件旁边的 <baseOffset>.idx 文件中
+ * 消息序号是记录在段中的顺序（从 0 开始），每隔 INTERVAL 字节的记录记一条索引项：序号(4 字节) + 记录在段文件中的位置(8 字节)
+ * 文件头：magic(4 字节) + version(4 字节)
+ * 索引文件不做 fsync，宕机之后可能缺少末尾的索引项，或者多出段文件中已经不存在的索引项，
+ * 打开的时候丢弃越界或者不递增的索引项；索引文件丢失的时候在下一次完整扫描段文件时重建
+ * 只有从段的第一条记录开始记录的索引才是完整的（complete），不完整的索引不能用来定位
+ */
+public class SegmentIndex {
+
+    /**
+     * 索引文件的魔数 "CMQI"
+     */
+    public static final int MAGIC = 0x434D5149;
+
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 8;
+
+    public static final int ENTRY_SIZE = 12;
+
+    /**
+     * 两条索引项之间至少间隔的记录字节数
+     */
+    public static final int INTERVAL = 4096;
+
+    public static final String SUFFIX = ".idx";
+
+    private final File file;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private int[] sequences = new int[16];
+
+    private long[] positions = new long[16];
+
+    private int entryCount = 0;
+
+    /**
+     * 追加索引项的通道，只有活跃段并且索引完整的时候才打开
+     */
+    private FileChannel channel;
+
+    /**
+     * 索引是否从段的第一条记录开始就是完整的
+     */
+    @Getter
+    private boolean complete;
+
+    private SegmentIndex(File file, boolean complete) {
+        this.file = file;
+        this.complete = complete;
+    }
+
+    /**
+     * 段文件对应的索引文件
+     */
+    public static File fileOf(File segmentFile) {
+        String name = segmentFile.getName();
+        return new File(segmentFile.getParentFile(), name.substring(0, name.length() - LogSegment.SUFFIX.length()) + SUFFIX);
+    }
+
+    /**
+     * 为新建的段创建一个空的索引文件
+     */
+    public static SegmentIndex create(File segmentFile) throws IOException {
+        SegmentIndex index = new SegmentIndex(fileOf(segmentFile), true);
+        Files.deleteIfExists(index.file.toPath());
+        index.openForAppend();
+        return index;
+    }
+
+    /**
+     * 没有索引文件的索引（例如压缩、格式升级时的临时段，或者重建索引时用来收集索引项），只在内存中记录索引项
+     */
+    public static SegmentIndex none() {
+        return new SegmentIndex(null, false);
+    }
+
+    /**
+     * 打开已经存在的段的索引文件，校验所有索引项，并把索引文件截断到最后一条合法的索引项
+     * @param segmentSize 段文件的长度
+     */
+    public static SegmentIndex load(File segmentFile, long segmentSize) throws IOException {
+        File indexFile = fileOf(segmentFile);
+        SegmentIndex index = new SegmentIndex(indexFile, false);
+        if (!indexFile.exists()) return index;
+        try (FileChannel readChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(readChannel.size(), Integer.MAX_VALUE));
+            while (buffer.hasRemaining() && readChannel.read(buffer) >= 0) ;
+            buffer.flip();
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return index;
+            while (buffer.remaining() >= ENTRY_SIZE) {
+                int sequence = buffer.getInt();
+                long position = buffer.getLong();
+                boolean increasing = index.entryCount == 0
+                        || (sequence > index.sequences[index.entryCount - 1] && position > index.positions[index.entryCount - 1]);
+                if (!increasing || position < LogSegment.HEADER_SIZE || position >= segmentSize) break;
+                index.append(sequence, position);
+            }
+            readChannel.truncate(HEADER_SIZE + (long) index.entryCount * ENTRY_SIZE);
+        }
+        index.complete = index.entryCount == 0
+                ? segmentSize == LogSegment.HEADER_SIZE
+                : index.sequences[0] == 0 && index.positions[0] == LogSegment.HEADER_SIZE;
+        if (!index.complete) index.entryCount = 0;
+        return index;
+    }
+
+    /**
+     * 打开索引文件的追加通道，文件不存在的时候先写入文件头
+     */
+    public void openForAppend() throws IOException {
+        lock.lock();
+        try {
+            if (!complete || channel != null) return;
+            boolean exists = file.exists();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (!exists) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                while (header.hasRemaining()) channel.write(header, 0);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void append(int sequence, long position) {
+        if (entryCount == sequences.length) {
+            sequences = Arrays.copyOf(sequences, entryCount * 2);
+            positions = Arrays.copyOf(positions, entryCount * 2);
+        }
+        sequences[entryCount] = sequence;
+        positions[entryCount] = position;
+        entryCount++;
+    }
+
+    /**
+     * 记录一条记录的位置，和上一条索引项的间隔不够 INTERVAL 字节的时候不记
+     * 新记录的索引项要调用 {@link #flush(int)} 才会写到索引文件中
+     */
+    public void add(int sequence, long position) {
+        lock.lock();
+        try {
+            if (entryCount > 0 && position - positions[entryCount - 1] < INTERVAL) return;
+            append(sequence, position);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getEntryCount() {
+        lock.lock();
+        try {
+            return entryCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把第 from 条之后的索引项追加到索引文件中，一批写入只调用一次写操作
+     */
+    public void flush(int from) throws IOException {
+        lock.lock();
+        try {
+            if (channel == null || from >= entryCount) return;
+            ByteBuffer buffer = ByteBuffer.allocate((entryCount - from) * ENTRY_SIZE);
+            for (int i = from; i < entryCount; i++)
+                buffer.putInt(sequences[i]).putLong(positions[i]);
+            buffer.flip();
+            long position = HEADER_SIZE + (long) from * ENTRY_SIZE;
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 找到位置不超过 position 的最后一条索引项
+     * @return {序号, 位置}，索引不完整或者没有这样的索引项时返回 null
+     */
+    public long[] floor(long position) {
+        lock.lock();
+        try {
+            if (!complete) return null;
+            int low = 0;
+            int high = entryCount - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (positions[mid] <= position) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found < 0 ? null : new long[]{sequences[found], positions[found]};
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 段文件被截断之后，丢弃截断位置之后的索引项
+     */
+    public void truncate(long segmentSize) throws IOException {
+        lock.lock();
+        try {
+            while (entryCount > 0 && positions[entryCount - 1] >= segmentSize) entryCount--;
+            if (file == null || !file.exists()) return;
+            try (FileChannel truncateChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                truncateChannel.truncate(HEADER_SIZE + (long) entryCount * ENTRY_SIZE);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 丢弃所有索引项，准备从头重建
+     */
+    public void reset() {
+        lock.lock();
+        try {
+            entryCount = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把收集到的所有索引项写成完整的索引文件（先写临时文件再改名），用于扫描段文件之后重建索引
+     * @param segmentFile 段文件，用来确定索引文件名
+     * @param entries 扫描时收集索引项的 {@link #none()} 索引
+     */
+    public static SegmentIndex rebuild(File segmentFile, SegmentIndex entries) throws IOException {
+        SegmentIndex index = new SegmentIndex(fileOf(segmentFile), true);
+        index.sequences = Arrays.copyOf(entries.sequences, Math.max(entries.entryCount, 16));
+        index.positions = Arrays.copyOf(entries.positions, Math.max(entries.entryCount, 16));
+        index.entryCount = entries.entryCount;
+        File tmpFile = new File(index.file.getParentFile(), index.file.getName() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + index.entryCount * ENTRY_SIZE);
+        buffer.putInt(MAGIC).putInt(VERSION);
+        for (int i = 0; i < index.entryCount; i++)
+            buffer.putInt(index.sequences[i]).putLong(index.positions[i]);
+        buffer.flip();
+        try (FileChannel writeChannel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) writeChannel.write(buffer);
+        }
+        Files.move(tmpFile.toPath(), index.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return index;
+    }
+
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (channel == null) return;
+            channel.close();
+            channel = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 删除索引文件
+     */
+    public void delete() throws IOException {
+        lock.lock();
+        try {
+            close();
+            entryCount = 0;
+            complete = false;
+            if (file != null) Files.deleteIfExists(file.toPath());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.chase.mq.mqserver.datacenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 封存段文件的内存映射，读取记录的时候直接访问映射的内存，每条消息不需要一次系统调用
+ * 映射带引用计数：段自己持有一个引用，每个读取者在使用期间再持有一个引用
+ * 段被关闭、删除或者截断的时候放弃自己的引用，等所有读取者都释放之后才真正解除映射，
+ * 不会出现读取者还在访问的时候映射被解除（访问已经解除映射的内存会导致 JVM 崩溃）
+ */
+class SegmentMapping {
+
+    /**
+     * 解除映射用的 Unsafe.invokeCleaner，MappedByteBuffer 没有公开的解除映射方法，不手动解除的话要等 GC 回收之后才会解除
+     * 拿不到的时候（例如运行在不提供 jdk.unsupported 模块的 JVM 上）退回到由 GC 解除映射
+     */
+    private static final Object UNSAFE;
+
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("[SegmentMapping] 无法获取 Unsafe.invokeCleaner，内存映射将由 GC 解除! " + e);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * 引用计数，为 0 的时候映射已经解除
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private SegmentMapping(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * 把段文件的 [0, size) 映射到内存中，映射建立之后通道就可以关闭了
+     * 映射是可写的：确认封存段中的消息时直接改写映射内存中的有效标记
+     */
+    static SegmentMapping map(File file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new SegmentMapping(channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    /**
+     * 映射的内存，返回的是一个独立的视图，读取者可以随意修改它的 position 和 limit
+     */
+    ByteBuffer buffer() {
+        return buffer.duplicate();
+    }
+
+    /**
+     * 把映射的内存中改写过的数据刷到硬盘上
+     */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * 增加一个引用，只能在已经持有一个引用（或者持有段的锁，段自己的引用还在）的时候调用
+     */
+    SegmentMapping retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * 释放一个引用，最后一个引用释放的时候解除映射
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) unmap();
+    }
+
+    private void unmap() {
+        if (INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("[SegmentMapping] 解除内存映射失败! " + e);
+        }
+    }
+
+}
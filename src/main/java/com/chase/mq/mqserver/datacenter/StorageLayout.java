@@ -0,0 +1,205 @@
+package com.chase.mq.mqserver.datacenter;
+
+import com.chase.mq.MqApplication;
+import com.chase.mq.common.server.MQException;
+import lombok.Getter;
+import org.springframework.core.env.ConfigurableEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 存储目录的布局，在 application.yml 中通过 mq.storage.* 配置：
+ * data-dirs : 消息数据目录的列表（逗号分隔），一般每块硬盘一个目录，默认 ./data
+ * placement : 新队列放到哪个数据目录中，hash 按照队列名哈希，least-used 放到剩余空间最多的目录，默认 hash
+ * 元数据库（meta.db）的位置由 spring.datasource.url 决定，和消息数据目录分开配置
+ * 已经存在的队列总是留在它原来所在的目录中，调整目录的顺序或者追加新目录都不会影响已有的队列
+ * 每个数据目录有自己的 I/O 线程，不同硬盘上的队列的组提交和 fsync 可以并行执行
+ */
+public class StorageLayout {
+
+    public static final String DATA_DIRS_KEY = "mq.storage.data-dirs";
+
+    public static final String PLACEMENT_KEY = "mq.storage.placement";
+
+    public static final String DATASOURCE_URL_KEY = "spring.datasource.url";
+
+    public static final String SQLITE_URL_PREFIX = "jdbc:sqlite:";
+
+    public static final String DEFAULT_DATA_DIR = "./data";
+
+    public static final String DEFAULT_META_DB = "./data/meta.db";
+
+    /**
+     * 新队列的放置策略
+     */
+    public enum Placement {
+        HASH("hash"),
+        LEAST_USED("least-used");
+
+        @Getter
+        private final String value;
+
+        Placement(String value) {
+            this.value = value;
+        }
+
+        public static Placement fromValue(String value) {
+            for (Placement placement : values())
+                if (placement.value.equalsIgnoreCase(value)) return placement;
+            throw new MQException("[StorageLayout] 不支持的放置策略! " + PLACEMENT_KEY + "=" + value);
+        }
+    }
+
+    /**
+     * 所有的消息数据目录
+     */
+    @Getter
+    private final List<File> dataDirs;
+
+    @Getter
+    private final Placement placement;
+
+    /**
+     * 每个数据目录的 I/O 线程，和 dataDirs 一一对应
+     */
+    private final List<ExecutorService> ioExecutors = new ArrayList<>();
+
+    /**
+     * 队列（日志）所在的数据目录的下标
+     * key : 队列名或者日志名
+     */
+    private final ConcurrentHashMap<String, Integer> placements = new ConcurrentHashMap<>();
+
+    public StorageLayout(List<File> dataDirs, Placement placement) {
+        if (dataDirs.isEmpty())
+            throw new MQException("[StorageLayout] " + DATA_DIRS_KEY + " 至少需要一个目录!");
+        this.dataDirs = Collections.unmodifiableList(new ArrayList<>(dataDirs));
+        this.placement = placement;
+        for (int i = 0; i < dataDirs.size(); i++) {
+            String name = "mq-io-" + i;
+            ioExecutors.add(Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }));
+        }
+    }
+
+    /**
+     * 从 Spring 的配置中读取存储布局，没有启动 Spring 上下文（例如单独使用存储层）时只使用 ./data 一个目录
+     */
+    public static StorageLayout load() {
+        if (MqApplication.context == null)
+            return new StorageLayout(List.of(new File(DEFAULT_DATA_DIR)), Placement.HASH);
+        ConfigurableEnvironment environment = MqApplication.context.getEnvironment();
+        String[] paths = environment.getProperty(DATA_DIRS_KEY, String[].class, new String[]{DEFAULT_DATA_DIR});
+        List<File> dataDirs = new ArrayList<>();
+        for (String path : paths) {
+            File dir = new File(path.trim());
+            if (path.isBlank() || dataDirs.contains(dir)) continue;
+            dataDirs.add(dir);
+        }
+        return new StorageLayout(dataDirs,
+                Placement.fromValue(environment.getProperty(PLACEMENT_KEY, Placement.HASH.getValue())));
+    }
+
+    /**
+     * 元数据库文件，从 spring.datasource.url 中解析出来，不是 SQLite 文件的时候使用默认位置
+     */
+    public static File metaDbFile() {
+        if (MqApplication.context == null) return new File(DEFAULT_META_DB);
+        String url = MqApplication.context.getEnvironment().getProperty(DATASOURCE_URL_KEY, "");
+        if (!url.startsWith(SQLITE_URL_PREFIX)) return new File(DEFAULT_META_DB);
+        return new File(url.substring(SQLITE_URL_PREFIX.length()));
+    }
+
+    /**
+     * 查找已经存在的队列目录，所有数据目录中都没有的时候返回 null
+     */
+    public File find(String name) {
+        Integer index = placements.get(name);
+        if (index != null && new File(dataDirs.get(index), name).isDirectory())
+            return new File(dataDirs.get(index), name);
+        for (int i = 0; i < dataDirs.size(); i++) {
+            File dir = new File(dataDirs.get(i), name);
+            if (dir.isDirectory()) {
+                placements.put(name, i);
+                return dir;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 队列的目录：已经存在的就用原来的，不存在的按照放置策略选一个数据目录（只选定，不创建）
+     */
+    public File dirOf(String name) {
+        File existing = find(name);
+        if (existing != null) return existing;
+        return new File(dataDirs.get(placements.computeIfAbsent(name, this::place)), name);
+    }
+
+    /**
+     * 队列所在数据目录的 I/O 线程
+     */
+    public ExecutorService ioExecutorOf(String name) {
+        dirOf(name);
+        return ioExecutors.get(placements.get(name));
+    }
+
+    /**
+     * 队列删除之后忘掉它的位置，同名的队列再次创建的时候重新选择目录
+     */
+    public void forget(String name) {
+        placements.remove(name);
+    }
+
+    private int place(String name) {
+        if (dataDirs.size() == 1) return 0;
+        if (placement == Placement.HASH) return Math.floorMod(name.hashCode(), dataDirs.size());
+        int best = 0;
+        long bestSpace = -1;
+        for (int i = 0; i < dataDirs.size(); i++) {
+            long usableSpace = usableSpace(dataDirs.get(i));
+            if (usableSpace > bestSpace) {
+                best = i;
+                bestSpace = usableSpace;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 目录所在硬盘的剩余空间，目录还不存在的时候看它最近的已存在的上级目录
+     */
+    static long usableSpace(File dir) {
+        File existing = existingAncestor(dir);
+        return existing == null ? 0 : existing.getUsableSpace();
+    }
+
+    private static File existingAncestor(File dir) {
+        File existing = dir.getAbsoluteFile();
+        while (existing != null && !existing.exists()) existing = existing.getParentFile();
+        return existing;
+    }
+
+    /**
+     * 所有数据目录中使用率最高的硬盘的使用率
+     */
+    public double maxDiskUsage() {
+        double max = 0;
+        for (File dir : dataDirs) {
+            File existing = existingAncestor(dir);
+            if (existing == null || existing.getTotalSpace() == 0) continue;
+            max = Math.max(max, 1 - (double) existing.getUsableSpace() / existing.getTotalSpace());
+        }
+        return max;
+    }
+
+}